@@ -15,17 +15,24 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.topology.ITopologyService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.blacklist.api.RestApi;
+import com.tallac.blacklist.module.BlacklistConfig;
 import com.tallac.blacklist.module.BlacklistMgr;
 import com.tallac.blacklist.module.FlowMgr;
+import com.tallac.blacklist.module.FlowTableMgr;
+import com.tallac.blacklist.module.LatencyMgr;
 import com.tallac.blacklist.module.MessageListener;
+import com.tallac.blacklist.module.PacketInDispatcher;
 import com.tallac.blacklist.module.StatisticsMgr;
 import com.tallac.blacklist.module.SwitchListener;
+import com.tallac.blacklist.module.TopologyListener;
 
 public class BlackListModule implements IFloodlightModule
 {
@@ -49,6 +56,8 @@ public class BlackListModule implements IFloodlightModule
 
         dependencies.add(IFloodlightProviderService.class);
         dependencies.add(IRestApiService.class);
+        dependencies.add(ITopologyService.class);
+        dependencies.add(IDeviceService.class);
 
         return dependencies;
     }
@@ -59,11 +68,16 @@ public class BlackListModule implements IFloodlightModule
     {
         LOG.trace("Init");
 
+        BlacklistConfig.getInstance().init(context.getConfigParams(this));
         FlowMgr.getInstance().        init(context);  // Initialize all of our Blacklist modules
+        FlowTableMgr.getInstance().   init(context);
         SwitchListener.getInstance(). init(context);
+        TopologyListener.getInstance().init(context);
         MessageListener.getInstance().init(context);
         BlacklistMgr.getInstance().   init(context);
         StatisticsMgr.getInstance().  init(context);
+        LatencyMgr.getInstance().     init(context);
+        PacketInDispatcher.getInstance().init(context);
         RestApi.getInstance().        init(context);
 
     }
@@ -74,6 +88,7 @@ public class BlackListModule implements IFloodlightModule
         LOG.trace("StartUp");
 
         SwitchListener.getInstance(). startUp();
+        TopologyListener.getInstance().startUp();
         MessageListener.getInstance().startUp();
         RestApi.getInstance().        startUp();
     }
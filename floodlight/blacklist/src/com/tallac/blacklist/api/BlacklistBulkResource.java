@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
+import org.restlet.Response;
+import org.restlet.data.MediaType;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.WriterRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.Post;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.BlacklistMgr;
+import com.tallac.blacklist.module.BlacklistSnapshot;
+import com.tallac.blacklist.module.FlowOperation;
+import com.tallac.blacklist.utils.DomainTrie;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.RecordStreamReader;
+
+/**
+ * Bulk import and export of the DNS ("dns") or IPv4 ("ip") blacklist.
+ *
+ * POST takes a newline separated or JSON array body, which is parsed as it
+ * is read. The whole body is applied as one blacklist snapshot and
+ * appended to the blacklist journal in one write. Any invalid record
+ * rejects the request without changing the blacklist. With
+ * "?mode=replace" the body replaces the list instead of being merged.
+ *
+ * GET streams the list, one record per line, or as a JSON array of strings
+ * with "?format=json".
+ */
+public class BlacklistBulkResource extends ServerResource
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BlacklistBulkResource.class);
+
+    private static final String LIST_DNS  = "dns";
+    private static final String LIST_IPV4 = "ip";
+
+    static class BulkImportResult {
+        private final String list;
+        private final String mode;
+        private final int    received;
+        private final int    size;
+        private final long   version;
+        private final Long   operation;
+
+        public BulkImportResult( String list, String mode, int received, int size, long version, Long operation ) {
+            this.list      = list;
+            this.mode      = mode;
+            this.received  = received;
+            this.size      = size;
+            this.version   = version;
+            this.operation = operation;
+        }
+
+        @JsonProperty( "list" )
+        public String getList() { return list; }
+
+        @JsonProperty( "mode" )
+        public String getMode() { return mode; }
+
+        /**
+         * @return number of records in the request body
+         */
+        @JsonProperty( "received" )
+        public int getReceived() { return received; }
+
+        /**
+         * @return number of records in the list after the import
+         */
+        @JsonProperty( "size" )
+        public int getSize() { return size; }
+
+        @JsonProperty( "version" )
+        public long getVersion() { return version; }
+
+        /**
+         * @return id of the flow deletion started by the import, see
+         *         blacklist/flows/operations/{id}
+         */
+        @JsonProperty( "operation" )
+        @JsonSerialize( include = Inclusion.NON_NULL )
+        public Long getOperation() { return operation; }
+    }
+
+    @Post
+    public BulkImportResult importRecords(Representation entity)
+    {
+        final String  list    = (String) getRequest().getAttributes().get("list");
+        final boolean replace = "replace".equals(getQueryValue("mode"));
+
+        LOG.debug("Received REST POST request to import {} blacklist records.", list);
+
+        if (!LIST_DNS.equals(list) && !LIST_IPV4.equals(list))
+        {
+            setError(Status.CLIENT_ERROR_NOT_FOUND, "Unknown blacklist \"" + list + "\".");
+            return null;
+        }
+        if (entity == null)
+        {
+            setError(Status.CLIENT_ERROR_BAD_REQUEST, "Request body is empty.");
+            return null;
+        }
+
+        final boolean isDns = LIST_DNS.equals(list);
+        final BlacklistSnapshot.Builder batch = new BlacklistSnapshot.Builder();
+        if (replace)
+        {
+            if (isDns) batch.replaceDnsRecords();
+            else       batch.replaceIpv4Records();
+        }
+
+        RecordStreamReader reader = null;
+        try
+        {
+            reader = new RecordStreamReader(entity.getReader());
+
+            String record;
+            while ((record = reader.next()) != null)
+            {
+                if (record.isEmpty()) continue;
+
+                if (isDns)
+                {
+                    if (!DomainTrie.isValidName(record))
+                    {
+                        setError(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid DNS name [" + record +
+                                 "] (record " + reader.getRecordCount() + "). Nothing imported.");
+                        return null;
+                    }
+                    try
+                    {
+                        batch.addDnsRecord(record);
+                    }
+                    catch (IllegalArgumentException e)
+                    {
+                        setError(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid DNS record (record " + reader.getRecordCount() +
+                                 "). " + e.getMessage() + " Nothing imported.");
+                        return null;
+                    }
+                    continue;
+                }
+
+                Ipv4Prefix prefix = Ipv4Prefix.parse(record);
+                if (prefix == null)
+                {
+                    setError(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid IPv4 address [" + record +
+                             "] (record " + reader.getRecordCount() + "), prefixes shorter than /" +
+                             Ipv4Prefix.MIN_LENGTH + " are not accepted. Nothing imported.");
+                    return null;
+                }
+                batch.addIpv4Record(prefix);
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.error("Unable to import {} blacklist. {}", list, e.getMessage());
+            setError(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage() + " Nothing imported.");
+            return null;
+        }
+        finally
+        {
+            closeQuietly(reader);
+        }
+
+        // applied and journaled as one change
+        final BlacklistSnapshot snapshot = BlacklistMgr.getInstance().applyBatch(batch);
+
+        final int size = isDns ? snapshot.getDnsRecords().size() : snapshot.getIpv4Records().size();
+        LOG.info("Imported {} {} blacklist records, list has {} records.",
+                 new Object[] { reader.getRecordCount(), list, size });
+
+        Response.getCurrent().setStatus(Status.SUCCESS_OK);
+        final FlowOperation op = batch.getFlowOperation();
+        return new BulkImportResult(list, replace ? "replace" : "merge",
+                                    reader.getRecordCount(), size, snapshot.getVersion(),
+                                    (op == null) ? null : op.getId());
+    }
+
+    @Get
+    public Representation exportRecords()
+    {
+        final String  list = (String) getRequest().getAttributes().get("list");
+        final boolean json = "json".equals(getQueryValue("format"));
+
+        LOG.debug("Received REST GET request to export {} blacklist.", list);
+
+        final BlacklistSnapshot snapshot = BlacklistMgr.getInstance().getSnapshot();
+        final Collection<?> records;
+
+        if      (LIST_DNS.equals(list))  records = snapshot.getDnsRecords();
+        else if (LIST_IPV4.equals(list)) records = snapshot.getIpv4Records();
+        else
+        {
+            setError(Status.CLIENT_ERROR_NOT_FOUND, "Unknown blacklist \"" + list + "\".");
+            return null;
+        }
+
+        return new WriterRepresentation(json ? MediaType.APPLICATION_JSON : MediaType.TEXT_PLAIN) {
+            @Override
+            public void write(Writer out) throws IOException
+            {
+                if (json) out.write('[');
+
+                boolean first = true;
+                for (Object record : records)
+                {
+                    if (json)
+                    {
+                        if (!first) out.write(',');
+                        out.write('"');
+                        writeJsonEscaped(out, record.toString());
+                        out.write('"');
+                    }
+                    else
+                    {
+                        out.write(record.toString());
+                        out.write('\n');
+                    }
+                    first = false;
+                }
+
+                if (json) out.write(']');
+                out.flush();
+            }
+        };
+    }
+
+    private static void writeJsonEscaped(Writer out, String str) throws IOException
+    {
+        for (int i = 0; i < str.length(); i++)
+        {
+            final char c = str.charAt(i);
+            if (c == '"' || c == '\\')   { out.write('\\'); out.write(c); }
+            else if (c < 0x20)           { out.write(String.format("\\u%04x", (int) c)); }
+            else                         { out.write(c); }
+        }
+    }
+
+    private static void closeQuietly(RecordStreamReader reader)
+    {
+        if (reader == null) return;
+        try { reader.close(); } catch (IOException e) { /* nothing to do */ }
+    }
+
+    private void setError(Status status, String errStr)
+    {
+        Response.getCurrent().setStatus(status, errStr);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.PacketInDispatcher;
+import com.tallac.blacklist.module.PacketInDispatcher.DispatchStats;
+
+/**
+ * Queue and drop counters of the PacketIn worker threads.
+ */
+public class BlacklistDispatchStatsResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistDispatchStatsResource.class);
+
+    @Get("json")
+    public DispatchStats retrieve()
+    {
+        LOG.debug("Received REST GET blacklist PacketIn dispatch stats request.");
+
+        return PacketInDispatcher.getInstance().getStats();
+    }
+}
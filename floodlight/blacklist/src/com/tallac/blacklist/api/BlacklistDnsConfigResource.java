@@ -19,6 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.blacklist.module.BlacklistMgr;
+import com.tallac.blacklist.utils.DomainTrie;
 
 public class BlacklistDnsConfigResource extends ServerResource
 {
@@ -56,9 +57,16 @@ public class BlacklistDnsConfigResource extends ServerResource
             return null;
         }
 
-        // Check if record already exist in the blacklist
+        if (!DomainTrie.isValidName(record))
+        {
+            setError("Invalid DNS name [" + record + "].");
+            return null;
+        }
+
+        // Check if exactly this record already exists in the blacklist; a listed
+        // parent zone does not make it a duplicate
         boolean isRecordFound = BlacklistMgr.getInstance()
-                                            .checkDnsBlacklist(record);
+                                            .containsDnsRecord(record);
 
         // If command is add and record does not exist - add record
         if (isRecordFound)
@@ -68,10 +76,15 @@ public class BlacklistDnsConfigResource extends ServerResource
             return null;
         }
 
-        BlacklistMgr.getInstance().addDnsRecord(record);
-
-        // save modification in DNS configuration file
-        BlacklistMgr.getInstance().saveDnsBlacklist();
+        try
+        {
+            BlacklistMgr.getInstance().addDnsRecord(record);
+        }
+        catch (IllegalArgumentException e)
+        {
+            setError("Invalid record [" + record + "]. " + e.getMessage());
+            return null;
+        }
 
         Response.getCurrent().setStatus(Status.SUCCESS_OK);
         return cfgRecord;
@@ -82,8 +95,13 @@ public class BlacklistDnsConfigResource extends ServerResource
 
         String id = (String) getRequest().getAttributes().get("id");
         if( id != null ) {
-            BlacklistMgr.getInstance().removeDnsRecord( id );
-            BlacklistMgr.getInstance().saveDnsBlacklist();
+            try {
+                BlacklistMgr.getInstance().removeDnsRecord( id );
+            }
+            catch( IllegalArgumentException e ) {
+                setError( "Invalid record. " + e.getMessage() );
+                return;
+            }
         }
 
         Response.getCurrent().setStatus(Status.SUCCESS_OK);
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import org.restlet.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.FlowMgr;
+import com.tallac.blacklist.module.FlowOperation;
+
+/**
+ * Progress of the flow deletions started by blacklist changes. Without an
+ * id, the most recent operations are listed, newest first.
+ */
+public class BlacklistFlowOperationResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistFlowOperationResource.class);
+
+    @Get("json")
+    public Object retrieve()
+    {
+        final String id = (String) getRequest().getAttributes().get("id");
+        LOG.debug("Received REST GET blacklist flow operation {} request.", id);
+
+        if (id == null)
+        {
+            return FlowMgr.getInstance().getFlowOperations();
+        }
+
+        FlowOperation op = null;
+        try
+        {
+            op = FlowMgr.getInstance().getFlowOperation(Long.parseLong(id));
+        }
+        catch (NumberFormatException e)
+        {
+            // reported as unknown below
+        }
+
+        if (op == null)
+        {
+            Response.getCurrent().setStatus(Status.CLIENT_ERROR_NOT_FOUND, "Unknown flow operation \"" + id + "\".");
+        }
+        return op;
+    }
+}
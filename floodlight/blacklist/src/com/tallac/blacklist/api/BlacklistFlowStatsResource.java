@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.DestinationFlowCache.FlowCacheStats;
+import com.tallac.blacklist.module.FlowMgr;
+
+/**
+ * Hit and miss counters of the destination flow cache, used to tune the
+ * destination flow idle timeout.
+ */
+public class BlacklistFlowStatsResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistFlowStatsResource.class);
+
+    @Get("json")
+    public FlowCacheStats retrieve()
+    {
+        LOG.debug("Received REST GET blacklist flow cache stats request.");
+
+        return FlowMgr.getInstance().getFlowCacheStats();
+    }
+}
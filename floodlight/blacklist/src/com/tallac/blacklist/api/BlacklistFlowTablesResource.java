@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.util.List;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.FlowTableMgr;
+import com.tallac.blacklist.module.FlowTableMgr.FlowTableStats;
+
+/**
+ * Flow table occupancy, capacity and evictions of every switch.
+ */
+public class BlacklistFlowTablesResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistFlowTablesResource.class);
+
+    @Get("json")
+    public List<FlowTableStats> retrieve()
+    {
+        LOG.debug("Received REST GET blacklist flow table stats request.");
+
+        return FlowTableMgr.getInstance().getTableStats();
+    }
+}
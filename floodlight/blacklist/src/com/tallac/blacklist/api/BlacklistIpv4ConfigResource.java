@@ -5,12 +5,14 @@
 
 package com.tallac.blacklist.api;
 
-import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.codehaus.jackson.map.annotate.JsonSerialize.Inclusion;
 import org.restlet.Response;
+import org.restlet.data.Reference;
 import org.restlet.data.Status;
 import org.restlet.resource.Delete;
 import org.restlet.resource.Get;
@@ -20,6 +22,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.blacklist.module.BlacklistMgr;
+import com.tallac.blacklist.module.FlowOperation;
+import com.tallac.blacklist.utils.Ipv4Prefix;
 
 public class BlacklistIpv4ConfigResource extends ServerResource
 {
@@ -28,6 +32,7 @@ public class BlacklistIpv4ConfigResource extends ServerResource
     static class Ipv4BlacklistRecord {
         private final String record;
         private final String id;
+        private Long         operation;
 
         public Ipv4BlacklistRecord( @JsonProperty( "record" ) String rec ) {
             id = record = rec;
@@ -41,6 +46,16 @@ public class BlacklistIpv4ConfigResource extends ServerResource
 
         @JsonProperty( "id" )
         public String getId() { return id; }
+
+        /**
+         * @return id of the flow deletion started by adding the record,
+         *         see blacklist/flows/operations/{id}
+         */
+        @JsonProperty( "operation" )
+        @JsonSerialize( include = Inclusion.NON_NULL )
+        public Long getOperation() { return operation; }
+
+        void setOperation( Long op ) { operation = op; }
     }
 
     @Post
@@ -58,26 +73,29 @@ public class BlacklistIpv4ConfigResource extends ServerResource
             return null;
         }
 
-        // Convert string representation of IPv4 address to InetAddress
-        InetAddress ipAddr = BlacklistMgr.convertIpv4Address(record);
+        // Convert string representation of IPv4 address or CIDR prefix
+        Ipv4Prefix ipAddr = BlacklistMgr.convertIpv4Address(record);
         if (ipAddr == null)
         {
-            setError("Unable to parse IPv4 address: " + record);
+            setError("Unable to parse IPv4 address: " + record +
+                     " (prefixes shorter than /" + Ipv4Prefix.MIN_LENGTH + " are not accepted)");
             return null;
         }
 
         // Check if record already exist in the blacklist
         boolean isRecordFound = BlacklistMgr.getInstance()
-                                            .checkIpv4Blacklist(ipAddr);
+                                            .containsIpv4Record(ipAddr);
         if (isRecordFound)
         {
             setError("Unable to add record. Record [" + record +
                      "] already exists in IPv4 blacklist.");
             return null;
         }
-        BlacklistMgr.getInstance().addIpv4Record(ipAddr);
-        // save modification in IPv4 configuration file
-        BlacklistMgr.getInstance().saveIpv4Blacklist();
+        FlowOperation op = BlacklistMgr.getInstance().addIpv4Record(ipAddr);
+        if (op != null)
+        {
+            cfgRecord.setOperation(op.getId());
+        }
 
         Response.getCurrent().setStatus(Status.SUCCESS_OK);
         return cfgRecord;
@@ -93,9 +111,9 @@ public class BlacklistIpv4ConfigResource extends ServerResource
     public void removeEntry()
     {
         String id = (String) getRequest().getAttributes().get("id");
-        if( id != null ) {
-            BlacklistMgr.getInstance().removeIpv4Record( BlacklistMgr.convertIpv4Address( id ) );
-            BlacklistMgr.getInstance().saveIpv4Blacklist();
+        Ipv4Prefix record = ( id == null ) ? null : BlacklistMgr.convertIpv4Address( Reference.decode( id ) );  // CIDR ids arrive as a.b.c.d%2Fn
+        if( record != null ) {
+            BlacklistMgr.getInstance().removeIpv4Record( record );
         }
 
         Response.getCurrent().setStatus(Status.SUCCESS_OK);
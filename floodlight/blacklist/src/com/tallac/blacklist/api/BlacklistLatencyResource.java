@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.util.List;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.LatencyMgr;
+import com.tallac.blacklist.module.LatencyMgr.StageLatency;
+
+/**
+ * PacketIn processing time per stage since start up: count, mean, p50,
+ * p99, p99.9 and maximum in microseconds.
+ */
+public class BlacklistLatencyResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistLatencyResource.class);
+
+    @Get("json")
+    public List<StageLatency> retrieve()
+    {
+        LOG.debug("Received REST GET blacklist latency request.");
+
+        return LatencyMgr.getInstance().getLatencies();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.FlowMgr;
+import com.tallac.blacklist.module.OutputPortCache.PortCacheStats;
+
+/**
+ * Hit and miss counters of the output port cache.
+ */
+public class BlacklistPortCacheStatsResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistPortCacheStatsResource.class);
+
+    @Get("json")
+    public PortCacheStats retrieve()
+    {
+        LOG.debug("Received REST GET blacklist output port cache stats request.");
+
+        return FlowMgr.getInstance().getPortCacheStats();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.util.HexString;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.StatisticsMgr;
+import com.tallac.blacklist.module.StatisticsMgr.SwitchCounters;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.PaddedAtomicLong;
+
+/**
+ * Blocked packet counts per switch and per blacklist entry. Entries are
+ * sorted by count, highest first; "?limit=N" returns up to N entries
+ * instead of the default 100.
+ */
+public class BlacklistStatsCountersResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistStatsCountersResource.class);
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    static class SwitchCount
+    {
+        public String switchId;
+        public long   ipv4Blocked;
+        public long   dnsBlocked;
+        public long   rateLimited;
+
+        public SwitchCount() {}
+        public SwitchCount(long dpid, SwitchCounters counters)
+        {
+            switchId    = HexString.toHexString(dpid);
+            ipv4Blocked = counters.getIpv4Blocked();
+            dnsBlocked  = counters.getDnsBlocked();
+            rateLimited = counters.getRateLimited();
+        }
+    }
+
+    static class EntryCount
+    {
+        public String entry;
+        public String list;
+        public long   blocked;
+
+        public EntryCount() {}
+        public EntryCount(String entry, String list, long blocked)
+        {
+            this.entry   = entry;
+            this.list    = list;
+            this.blocked = blocked;
+        }
+    }
+
+    static class BlacklistCounters
+    {
+        public List<SwitchCount> switches = new ArrayList<SwitchCount>();
+        public List<EntryCount>  entries  = new ArrayList<EntryCount>();
+    }
+
+    @Get("json")
+    public BlacklistCounters retrieve()
+    {
+        LOG.debug("Received REST GET blacklist stats counters request.");
+
+        final StatisticsMgr     statsMgr = StatisticsMgr.getInstance();
+        final BlacklistCounters retVal   = new BlacklistCounters();
+
+        for (Map.Entry<Long, SwitchCounters> e : statsMgr.getSwitchCounters().entrySet())
+        {
+            retVal.switches.add(new SwitchCount(e.getKey(), e.getValue()));
+        }
+
+        for (Map.Entry<Ipv4Prefix, PaddedAtomicLong> e : statsMgr.getIpv4EntryCounters().entrySet())
+        {
+            retVal.entries.add(new EntryCount(e.getKey().toString(), "ip", e.getValue().get()));
+        }
+        for (Map.Entry<String, PaddedAtomicLong> e : statsMgr.getDnsEntryCounters().entrySet())
+        {
+            retVal.entries.add(new EntryCount(e.getKey(), "dns", e.getValue().get()));
+        }
+
+        Collections.sort(retVal.entries, new Comparator<EntryCount>() {
+            public int compare(EntryCount a, EntryCount b)
+            {
+                return (a.blocked < b.blocked) ? 1 : (a.blocked > b.blocked) ? -1 : 0;
+            }
+        });
+
+        final int limit = getLimit(this, DEFAULT_LIMIT);
+        if (retVal.entries.size() > limit)
+        {
+            retVal.entries = new ArrayList<EntryCount>(retVal.entries.subList(0, limit));
+        }
+        return retVal;
+    }
+
+    static int getLimit(ServerResource resource, int defaultLimit)
+    {
+        final String limitStr = resource.getQueryValue("limit");
+        if (limitStr == null) return defaultLimit;
+
+        try { return Math.max(0, Integer.parseInt(limitStr)); }
+        catch (NumberFormatException e) { return defaultLimit; }
+    }
+}
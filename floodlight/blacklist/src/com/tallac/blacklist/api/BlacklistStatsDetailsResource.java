@@ -15,7 +15,10 @@ import org.slf4j.LoggerFactory;
 import com.tallac.blacklist.module.StatisticsMgr;
 import com.tallac.blacklist.module.StatisticsMgr.StatisticsDetails;
 
-
+/**
+ * Details of the latest blocked packets, oldest first. "?limit=N" returns
+ * up to N details instead of the default 100.
+ */
 public class BlacklistStatsDetailsResource extends ServerResource
 {
     private static final Logger LOG =
@@ -27,8 +30,16 @@ public class BlacklistStatsDetailsResource extends ServerResource
     {
         LOG.debug("Received REST GET blacklist stats details request.");
 
+        int limit = StatisticsMgr.DEFAULT_DETAILS_LIMIT;
+        String limitStr = getQueryValue("limit");
+        if (limitStr != null)
+        {
+            try { limit = Integer.parseInt(limitStr); }
+            catch (NumberFormatException e) { LOG.debug("Ignoring invalid limit \"{}\".", limitStr); }
+        }
+
         StatisticsMgr statsMgr = StatisticsMgr.getInstance();
-        List<StatisticsDetails> retVal = statsMgr.getDetails();
+        List<StatisticsDetails> retVal = statsMgr.getDetails(limit);
 
         return retVal;
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.restlet.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.StatisticsMgr;
+import com.tallac.blacklist.utils.TimeSeries;
+import com.tallac.blacklist.utils.TimeSeries.Resolution;
+
+/**
+ * Blocked IPv4 and DNS packets and PacketIn processing times per second
+ * (last minute), per minute (last hour) or per hour (last day), oldest
+ * first, for graphing.
+ */
+public class BlacklistStatsHistoryResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistStatsHistoryResource.class);
+
+    static class CountPoint
+    {
+        public long time;
+        public long count;
+
+        public CountPoint() {}
+        public CountPoint(TimeSeries.Bucket bucket)
+        {
+            time  = bucket.getTime();
+            count = bucket.getCount();
+        }
+    }
+
+    static class LatencyPoint extends CountPoint
+    {
+        public double avgMicros;
+        public double maxMicros;
+
+        public LatencyPoint() {}
+        public LatencyPoint(TimeSeries.Bucket bucket)
+        {
+            super(bucket);
+            avgMicros = (count == 0) ? 0 : bucket.getSum() / 1000.0 / count;
+            maxMicros = bucket.getMax() / 1000.0;
+        }
+    }
+
+    static class BlacklistHistory
+    {
+        public String             resolution;
+        public List<CountPoint>   ipv4Blocked = new ArrayList<CountPoint>();
+        public List<CountPoint>   dnsBlocked  = new ArrayList<CountPoint>();
+        public List<LatencyPoint> packetIn    = new ArrayList<LatencyPoint>();
+    }
+
+    @Get("json")
+    public BlacklistHistory retrieve()
+    {
+        final String resStr = (String) getRequest().getAttributes().get("resolution");
+        LOG.debug("Received REST GET blacklist stats history request, resolution {}.", resStr);
+
+        final Resolution res;
+        if      ("second".equals(resStr)) res = Resolution.SECOND;
+        else if ("minute".equals(resStr)) res = Resolution.MINUTE;
+        else if ("hour".equals(resStr))   res = Resolution.HOUR;
+        else
+        {
+            Response.getCurrent().setStatus(Status.CLIENT_ERROR_NOT_FOUND,
+                                            "Unknown resolution \"" + resStr + "\", use second, minute or hour.");
+            return null;
+        }
+
+        final StatisticsMgr    statsMgr = StatisticsMgr.getInstance();
+        final BlacklistHistory retVal   = new BlacklistHistory();
+
+        retVal.resolution = resStr;
+        for (TimeSeries.Bucket b : statsMgr.getIpv4History().getBuckets(res))     retVal.ipv4Blocked.add(new CountPoint(b));
+        for (TimeSeries.Bucket b : statsMgr.getDnsHistory().getBuckets(res))      retVal.dnsBlocked.add(new CountPoint(b));
+        for (TimeSeries.Bucket b : statsMgr.getPacketInHistory().getBuckets(res)) retVal.packetIn.add(new LatencyPoint(b));
+
+        return retVal;
+    }
+}
@@ -27,10 +27,14 @@ public class BlacklistStatsResource extends ServerResource
         public long   dnsCount;
         public String dnsLastMatch;
         public long dnsLastMatchTimestamp;
+        public long   rateLimitCount;
+        public String rateLimitLastSource;
+        public long rateLimitLastTimestamp;
 
         public BlacklistStatistics() {}
         public BlacklistStatistics(StatisticsTotal ipv4Stats,
-                                   StatisticsTotal dnsStats)
+                                   StatisticsTotal dnsStats,
+                                   StatisticsTotal rateLimitStats)
         {
             ipv4Count = ipv4Stats.getMatchCounter();
             ipv4LastMatch = "";
@@ -49,6 +53,16 @@ public class BlacklistStatsResource extends ServerResource
                 dnsLastMatch = dnsStats.getMatch();
                 dnsLastMatchTimestamp = dnsStats.getLastMatchTime().getTime();
             }
+
+            // sources blocked by the PacketIn rate limiter, as MAC@switch
+            rateLimitCount = rateLimitStats.getMatchCounter();
+            rateLimitLastSource = "";
+            rateLimitLastTimestamp = 0;
+            if (rateLimitCount > 0)
+            {
+                rateLimitLastSource = rateLimitStats.getMatch();
+                rateLimitLastTimestamp = rateLimitStats.getLastMatchTime().getTime();
+            }
         }
     }
 
@@ -59,6 +73,7 @@ public class BlacklistStatsResource extends ServerResource
 
         StatisticsMgr statsMgr = StatisticsMgr.getInstance();
         return new BlacklistStatistics(statsMgr.getIpv4Stats(),
-                                       statsMgr.getDnsStats());
+                                       statsMgr.getDnsStats(),
+                                       statsMgr.getRateLimitStats());
     }
 }
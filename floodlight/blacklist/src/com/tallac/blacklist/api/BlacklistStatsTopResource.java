@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+
+import org.restlet.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.StatisticsMgr;
+import com.tallac.blacklist.utils.SpaceSaving;
+
+/**
+ * Heavy hitters among blocked packets: the most often blocked queried
+ * domain names ("domains") or the source IPv4 addresses sending the most
+ * blocked packets ("sources"). Counts are approximate; a count
+ * overestimates the true count by at most its error. "?limit=N" returns
+ * up to N keys instead of the default 10.
+ */
+public class BlacklistStatsTopResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistStatsTopResource.class);
+
+    private static final String LIST_DOMAINS = "domains";
+    private static final String LIST_SOURCES = "sources";
+
+    private static final int DEFAULT_LIMIT = 10;
+
+    static class TopCount
+    {
+        public String key;
+        public long   count;
+        public long   error;
+
+        public TopCount() {}
+        public TopCount(String key, SpaceSaving.Counter<?> counter)
+        {
+            this.key = key;
+            count    = counter.getCount();
+            error    = counter.getError();
+        }
+    }
+
+    @Get("json")
+    public List<TopCount> retrieve()
+    {
+        final String list = (String) getRequest().getAttributes().get("list");
+        LOG.debug("Received REST GET blacklist top {} request.", list);
+
+        final StatisticsMgr  statsMgr = StatisticsMgr.getInstance();
+        final int            limit    = BlacklistStatsCountersResource.getLimit(this, DEFAULT_LIMIT);
+        final List<TopCount> retVal   = new ArrayList<TopCount>();
+
+        if (LIST_DOMAINS.equals(list))
+        {
+            for (SpaceSaving.Counter<String> c : statsMgr.getTopDomains(limit))
+            {
+                retVal.add(new TopCount(c.getKey(), c));
+            }
+        }
+        else if (LIST_SOURCES.equals(list))
+        {
+            for (SpaceSaving.Counter<Integer> c : statsMgr.getTopSources(limit))
+            {
+                retVal.add(new TopCount(IPv4.fromIPv4Address(c.getKey()), c));
+            }
+        }
+        else
+        {
+            Response.getCurrent().setStatus(Status.CLIENT_ERROR_NOT_FOUND, "Unknown list \"" + list + "\".");
+            return null;
+        }
+        return retVal;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.api;
+
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.module.FlowMgr;
+import com.tallac.blacklist.module.OFMessageBatcher.WriteStats;
+
+/**
+ * Batch size and queueing latency of OpenFlow messages written by the
+ * BlackList module.
+ */
+public class BlacklistWriteStatsResource extends ServerResource
+{
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BlacklistWriteStatsResource.class);
+
+    @Get("json")
+    public WriteStats retrieve()
+    {
+        LOG.debug("Received REST GET blacklist write stats request.");
+
+        return FlowMgr.getInstance().getWriteStats();
+    }
+}
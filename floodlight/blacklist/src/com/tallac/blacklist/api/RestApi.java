@@ -40,6 +40,24 @@ public class RestApi
 	// Rest API /tallac/api/...
         mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/details",
                                     BlacklistStatsDetailsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/history/{resolution}",
+                                    BlacklistStatsHistoryResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/latency",
+                                    BlacklistLatencyResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/writes",
+                                    BlacklistWriteStatsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/dispatch",
+                                    BlacklistDispatchStatsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/ports",
+                                    BlacklistPortCacheStatsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/tables",
+                                    BlacklistFlowTablesResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/flows",
+                                    BlacklistFlowStatsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/counters",
+                                    BlacklistStatsCountersResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats/top/{list}",
+                                    BlacklistStatsTopResource.class));
         mRestApi.addRestletRoutable(new RestRoutable("blacklist/stats",
                                     BlacklistStatsResource.class));
 
@@ -53,6 +71,14 @@ public class RestApi
         mRestApi.addRestletRoutable(new RestRoutable("blacklist/sites/ip",
                                     BlacklistIpv4ConfigResource.class));
 
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/bulk/{list}",
+                                                     BlacklistBulkResource.class));
+
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/flows/operations/{id}",
+                                                     BlacklistFlowOperationResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("blacklist/flows/operations",
+                                                     BlacklistFlowOperationResource.class));
+
 	// Web UI routable is under /tallac/ui/...
         mRestApi.addRestletRoutable(new WebUiRoutable());
     }
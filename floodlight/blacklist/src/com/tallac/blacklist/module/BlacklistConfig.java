@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BlacklistConfig class holds the BlackList module configuration
+ * parameters, set in floodlight.properties as
+ * "com.tallac.blacklist.BlackListModule.&lt;name&gt; = &lt;value&gt;".
+ */
+public class BlacklistConfig
+{
+    private static final BlacklistConfig INSTANCE = new BlacklistConfig();
+    private static final Logger          LOG      = LoggerFactory.getLogger(BlacklistConfig.class);
+
+    private volatile Map<String, String> mParams = Collections.emptyMap();
+
+    //---------------------------------------------------------------------------------------------
+    private BlacklistConfig() { }  // private constructor - prevent external instantiation
+
+    //---------------------------------------------------------------------------------------------
+    public static BlacklistConfig getInstance() { return INSTANCE; }
+
+    //---------------------------------------------------------------------------------------------
+    public void init( final Map<String, String> params )
+    {
+        if( params != null ) mParams = params;
+        LOG.debug( "BlackList configuration: {}", mParams );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param name         - parameter name
+     * @param defaultValue - value used if the parameter is not set or invalid
+     * @return parameter value
+     */
+    public long getLong( final String name, final long defaultValue )
+    {
+        final String value = mParams.get( name );
+        if( value == null ) return defaultValue;
+
+        try
+        {
+            return Long.parseLong( value.trim() );
+        }
+        catch( NumberFormatException e )
+        {
+            LOG.error( "Invalid value \"{}\" of parameter {}, using {}.", new Object[] { value, name, defaultValue } );
+            return defaultValue;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int getInt( final String name, final int defaultValue )
+    {
+        return (int) getLong( name, defaultValue );
+    }
+}
@@ -1,29 +1,26 @@
 package com.tallac.blacklist.module;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.tallac.blacklist.utils.DnsQuestionParser;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+
 /**
  * The BlacklistMgr class responsible for reading and parsing DNS and IPv4
- * configuration files.
+ * configuration files. Changes are saved through {@link BlacklistStore}.
  */
 public class BlacklistMgr
 {
@@ -32,17 +29,29 @@ public class BlacklistMgr
 
     private static final String DNSBlacklistFilename  = "dnsBlacklist.txt";
     private static final String IPv4BlacklistFilename = "ipv4Blacklist.txt";
+    private static final String SnapshotFilename      = "blacklist.snapshot";
+    private static final String JournalFilename       = "blacklist.journal";
+
+    private static final int JOURNAL_SYNC_INTERVAL_MS   = 1000;
+    private static final int COMPACT_CHECK_INTERVAL_SEC = 60;
+    private static final int COMPACT_MIN_JOURNAL_OPS    = 1000;
+
+    //---- Current DNS and IPv4 blacklists. Replaced as a whole on every change; readers never lock.
+    private volatile BlacklistSnapshot mSnapshot;
 
-    //---- Two hashes, one for DNS and one for IP traffic
-    HashSet<String>      mDnsBlacklist;
-    HashSet<InetAddress> mIpv4Blacklist;
+    //---- Serializes writers, so each change is applied to the latest snapshot
+    private final Object mUpdateLock = new Object();
+
+    private final BlacklistStore           mStore;
+    private final ScheduledExecutorService mScheduler;
 
     //---------------------------------------------------------------------------------------------
     private BlacklistMgr()
     {
         // private constructor - prevent external instantiation
-        mDnsBlacklist  = new HashSet<String>();
-        mIpv4Blacklist = new HashSet<InetAddress>();
+        mSnapshot  = BlacklistSnapshot.empty();
+        mStore     = new BlacklistStore( SnapshotFilename, JournalFilename, DNSBlacklistFilename, IPv4BlacklistFilename );
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
     }
 
     //---------------------------------------------------------------------------------------------
@@ -56,196 +65,238 @@ public class BlacklistMgr
     {
         LOG.debug( "Read configured blacklist' records." );
 
-        LOG.debug( "Read DNS blacklist. File {}", DNSBlacklistFilename );
-        mDnsBlacklist = readDnsBlacklistFile();
-        dumpDnsBlacklist();
+        final BlacklistSnapshot loaded = mStore.load();
+        synchronized( mUpdateLock ) { mSnapshot = loaded; }
 
-        LOG.debug( "Read IPv4 blacklist. File {}", IPv4BlacklistFilename );
-        mIpv4Blacklist = readIpv4BlacklistFile();
+        dumpDnsBlacklist();
         dumpIpv4Blacklist();
-    }
-
-    //---------------------------------------------------------------------------------------------
-    public boolean checkIpv4Blacklist( InetAddress ipAddr ) { return mIpv4Blacklist.contains(ipAddr); }
-    public void    addDnsRecord(    String record ) { mDnsBlacklist.add( record.toLowerCase() ); }
-    public void    removeDnsRecord( String record ) { mDnsBlacklist.remove( record.toLowerCase() ); }
 
-    //---------------------------------------------------------------------------------------------
-    public boolean checkDnsBlacklist( String domainName )
-    {
-        String domainNameLC= domainName.toLowerCase();
+        try
+        {
+            mStore.open();
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to open blacklist journal {}. Changes will not be saved. {}", JournalFilename, e );
+            return;
+        }
 
-        if( mDnsBlacklist. contains( domainNameLC ) ) return true; // If string matches, return true.
+        mScheduler.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run() { mStore.sync(); }
+        }, JOURNAL_SYNC_INTERVAL_MS, JOURNAL_SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS );
 
-       if( !domainNameLC.startsWith( "www." ) ) {
-            if( mDnsBlacklist.contains( "www." + domainNameLC ) ) return true; // Add "www.", if result matches, return true.
+        // The journal is all that is left to recover the records of an unreadable snapshot
+        if( mStore.hasCorruptSnapshot() )
+        {
+            LOG.error( "Blacklist compaction is disabled until {}.corrupt is recovered or removed.", SnapshotFilename );
+            return;
         }
 
-        return false;  // No match, return false.
-    }
-
-    //---------------------------------------------------------------------------------------------
-    public void addIpv4Record( InetAddress record )
-    {
-        mIpv4Blacklist.add( record );
+        // Fold imported and replayed changes into the snapshot file right away
+        if( mStore.getJournalOps() > 0 ) compact();
 
-        // Delete flow with target destination IP address on all connected switches
-        FlowMgr.getInstance().deleteIPFlowOnAllConnectedSwitches( record );
+        mScheduler.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                if( mStore.getJournalOps() >= COMPACT_MIN_JOURNAL_OPS ) compact();
+            }
+        }, COMPACT_CHECK_INTERVAL_SEC, COMPACT_CHECK_INTERVAL_SEC, TimeUnit.SECONDS );
     }
 
     //---------------------------------------------------------------------------------------------
-    public void removeIpv4Record( InetAddress record ) { mIpv4Blacklist.remove( record ); }
+    public BlacklistSnapshot getSnapshot() { return mSnapshot; }
 
     //---------------------------------------------------------------------------------------------
-    public void saveDnsBlacklist()
+    /**
+     * Apply a batch of changes and publish the resulting snapshot. The new
+     * snapshot is built on the calling thread; PacketIn processing keeps
+     * using the previous one until the reference is swapped.
+     * @param batch - changes to apply
+     * @return published snapshot
+     */
+    public BlacklistSnapshot applyBatch( BlacklistSnapshot.Builder batch )
     {
-        try
+        BlacklistSnapshot  snapshot;
+        BlacklistSnapshot  previous;
+
+        synchronized( mUpdateLock )
         {
-            File        file = new File( DNSBlacklistFilename );
-            PrintWriter out  = new PrintWriter( new FileWriter(file) );
+            previous  = mSnapshot;
+            snapshot  = batch.build( previous );
+            mSnapshot = snapshot;
 
-            for( String str : mDnsBlacklist ) { out.println(str); }
-            out.close();
+            mStore.append( batch );  // journal order must match publish order
         }
-        catch( Exception e )
+        LOG.debug( "Published blacklist version {} ({} changes).", snapshot.getVersion(), batch.size() );
+
+        // Delete flows with newly blacklisted destination IP addresses on all connected switches;
+        // the deletes are written in the background and tracked by one operation per batch
+        final List<Ipv4Prefix> added = new ArrayList<Ipv4Prefix>();
+        for( Ipv4Prefix record : batch.getIpv4Added() )
         {
-            LOG.error( "Unable to save modified DNS blacklist in a file {}. {}", DNSBlacklistFilename, e );
+            if( !previous.getIpv4Matcher().containsEntry( record ) ) added.add( record );
         }
-    }
-
-    //---------------------------------------------------------------------------------------------
-    public void saveIpv4Blacklist()
-    {
-        try
+        if( !added.isEmpty() )
         {
-            File file = new File( IPv4BlacklistFilename );
-            PrintWriter out = new PrintWriter( new FileWriter( file ) );
+            final FlowOperation op = FlowMgr.getInstance().newFlowOperation( "Delete flows to new IPv4 entries of blacklist version "
+                                                                             + snapshot.getVersion() );
+            FlowMgr.getInstance().deleteIPFlowsOnAllConnectedSwitches( added, op );
+            op.seal();
+            batch.setFlowOperation( op );
+        }
 
-            for( InetAddress ipAddr : mIpv4Blacklist ) { out.println(ipAddr.getHostAddress()); }
-            out.close();
+        // Forget the per-entry hit counters of removed entries
+        if( !batch.getIpv4Removed().isEmpty() || !batch.getDnsRemoved().isEmpty() || batch.isReplaceIpv4() || batch.isReplaceDns() )
+        {
+            StatisticsMgr.getInstance().removeEntryCounters( snapshot );
         }
-        catch (Exception e)
+
+        // Install or remove proactive drop flows for the changed IPv4 entries
+        if( !batch.getIpv4Added().isEmpty() || !batch.getIpv4Removed().isEmpty() || batch.isReplaceIpv4() )
         {
-            LOG.error("Unable to save modified IPv4 blacklist in a file {}. {}", IPv4BlacklistFilename, e);
+            FlowMgr.getInstance().syncDropFlows();
         }
+
+        return snapshot;
     }
 
     //---------------------------------------------------------------------------------------------
-    public HashSet<String> getDnsBlacklistConfig() { return mDnsBlacklist; }
+    //  checkIpv4Blacklist:  true if the address is listed or falls within a listed prefix
+    public boolean checkIpv4Blacklist( int ipAddr )            { return mSnapshot.getIpv4Matcher().contains( ipAddr ); }
+    public boolean containsIpv4Record( Ipv4Prefix record )     { return mSnapshot.getIpv4Matcher().containsEntry( record ); }
 
     //---------------------------------------------------------------------------------------------
-    public HashSet<String> getIpv4BlacklistConfig()
+    //  findIpv4Record:  the most specific listed host or prefix covering the address, or null
+    public Ipv4Prefix findIpv4Record( int ipAddr )
     {
-        HashSet<String> ipv4Str = new HashSet<String>();
-
-        for( InetAddress ipAddr : mIpv4Blacklist ) { ipv4Str.add(ipAddr.getHostAddress()); }
-        return ipv4Str;
+        final int length = mSnapshot.getIpv4Matcher().matchLength( ipAddr );
+        return ( length < 0 ) ? null : new Ipv4Prefix( ipAddr & Ipv4Prefix.mask( length ), length );
     }
 
     //---------------------------------------------------------------------------------------------
-    private void dumpDnsBlacklist()
-    {
-        String outString = "DNS blacklist:\n";
+    public void addDnsRecord(    String record ) { applyBatch( new BlacklistSnapshot.Builder().addDnsRecord( record ) ); }
+    public void removeDnsRecord( String record ) { applyBatch( new BlacklistSnapshot.Builder().removeDnsRecord( record ) ); }
 
-        Iterator<String> it = mDnsBlacklist.iterator();
-        while( it.hasNext() ) { outString += it.next().toString() + "\n"; }
+    //---------------------------------------------------------------------------------------------
+    //  checkDnsBlacklist:  true if the domain name, any of its parent zones, or "www." + name is
+    //                      listed. Case-insensitive and allocation free.
+    public boolean checkDnsBlacklist( CharSequence domainName )
+    {
+        return mSnapshot.getDnsMatcher().matches( domainName );
+    }
 
-        LOG.debug(outString);
+    //---------------------------------------------------------------------------------------------
+    //  containsDnsRecord:  true if exactly this name is listed
+    public boolean containsDnsRecord( CharSequence record )
+    {
+        return mSnapshot.getDnsMatcher().contains( record );
     }
 
     //---------------------------------------------------------------------------------------------
-    private void dumpIpv4Blacklist()
+    //  findDnsRecord:  the listed name that makes checkDnsBlacklist( domainName ) true, or null
+    public String findDnsRecord( CharSequence domainName )
     {
-        String outString = "Ipv4 blacklist:\n";
+        return mSnapshot.getDnsMatcher().findListedName( domainName );
+    }
 
-        Iterator<InetAddress> it = mIpv4Blacklist.iterator();
-        while( it.hasNext() ) { outString += it.next().getHostAddress() + "\n"; }
+    //---------------------------------------------------------------------------------------------
+    //  checkDnsBlacklist:  same check for a question of a parsed DNS query, done on packet bytes.
+    public boolean checkDnsBlacklist( DnsQuestionParser parser, int question )
+    {
+        return parser.matches( question, mSnapshot.getDnsMatcher() );
+    }
 
-        LOG.debug(outString);
+    //---------------------------------------------------------------------------------------------
+    //  addIpv4Record:  returns the deletion of flows to the record, null if it was listed already
+    public FlowOperation addIpv4Record( Ipv4Prefix record )
+    {
+        final BlacklistSnapshot.Builder batch = new BlacklistSnapshot.Builder().addIpv4Record( record );
+        applyBatch( batch );
+        return batch.getFlowOperation();
     }
 
     //---------------------------------------------------------------------------------------------
-    private HashSet<InetAddress> readIpv4BlacklistFile()
+    public void removeIpv4Record( Ipv4Prefix record ) { applyBatch( new BlacklistSnapshot.Builder().removeIpv4Record( record ) ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Write the current blacklists to the snapshot file and start a new
+     * journal. Runs periodically from the scheduler; writers are only
+     * blocked while the journal is switched. Does nothing while a corrupt
+     * snapshot is kept for recovery.
+     */
+    public void compact()
     {
-        HashSet<InetAddress> ipSet = new HashSet<InetAddress>();
-        File file = new File(IPv4BlacklistFilename);
+        if( mStore.hasCorruptSnapshot() )
+        {
+            LOG.warn( "Not compacting blacklist journal {}, a corrupt snapshot is kept for recovery.", JournalFilename );
+            return;
+        }
+
+        BlacklistSnapshot snapshot;
+
         try
         {
-            FileInputStream f = new FileInputStream(file);
-            BufferedReader br = new BufferedReader(new InputStreamReader(f));
-            String line;
-            while ((line = br.readLine()) != null)
+            synchronized( mUpdateLock )
             {
-                InetAddress ipAddr = convertIpv4Address(line); // Convert IP address to InetAddress
-
-                if( ipAddr == null ) LOG.error( "Unable to parse IPv4 address \"{}\"", line );
-                else ipSet.add( ipAddr );
+                snapshot = mSnapshot;
+                mStore.roll();
             }
+
+            mStore.compact( snapshot );
+            LOG.info( "Compacted blacklist version {}.", snapshot.getVersion() );
         }
-        catch (FileNotFoundException e)
-        {
-            LOG.error("File \"{}\" not found.", IPv4BlacklistFilename);
-            e.printStackTrace();
-        }
-        catch (IOException e)
+        catch( Exception e )
         {
-            LOG.error("Unable to read file \"{}\". {}", IPv4BlacklistFilename, e);
-            e.printStackTrace();
+            LOG.error( "Unable to compact blacklist journal {}. {}", JournalFilename, e );
         }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public Set<String> getDnsBlacklistConfig() { return mSnapshot.getDnsRecords(); }
+
+    //---------------------------------------------------------------------------------------------
+    public HashSet<String> getIpv4BlacklistConfig()
+    {
+        HashSet<String> ipv4Str = new HashSet<String>();
 
-        return ipSet;
+        for( Ipv4Prefix record : mSnapshot.getIpv4Records() ) { ipv4Str.add( record.toString() ); }
+        return ipv4Str;
     }
 
     //---------------------------------------------------------------------------------------------
-    public static InetAddress convertIpv4Address(String line)
+    private void dumpDnsBlacklist()
     {
+        if( !LOG.isDebugEnabled() ) return;
 
-        if( line == null || line.isEmpty() )                return null;  // return if line is empty or null
-        if( (line.length() < 7 ) & ( line.length() > 15 ) ) return null;  // return if line is too short or long
+        StringBuilder outString = new StringBuilder( "DNS blacklist:\n" );
 
-        try
-        {   // Examine the input IP address and make sure it is valid
-            Pattern pattern = Pattern.compile("^(?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)$");
-            Matcher matcher = pattern.matcher(line);
-            if (matcher.matches())
-            {
-                try { return InetAddress.getByName( line ); }  // Return the IP address InetAddress object
-                catch (UnknownHostException e) {}
-            }
-        }
-        catch (PatternSyntaxException ex) {}
+        Iterator<String> it = mSnapshot.getDnsRecords().iterator();
+        while( it.hasNext() ) { outString.append( it.next() ).append( "\n" ); }
 
-        return null;  // If we were ultimately unsuccessful in parsing or translating the IP address, return null.
+        LOG.debug(outString.toString());
     }
 
     //---------------------------------------------------------------------------------------------
-    private HashSet<String> readDnsBlacklistFile()
+    private void dumpIpv4Blacklist()
     {
-        HashSet<String> fileLines = new HashSet<String>();
-        File file = new File(DNSBlacklistFilename);
-        try
-        {
-            FileInputStream f  = new FileInputStream( file );
-            BufferedReader  br = new BufferedReader( new InputStreamReader( f ) );
+        if( !LOG.isDebugEnabled() ) return;
 
-            String line;
-            while( ( line = br.readLine() ) != null )
-            {
-                fileLines.add( line.toLowerCase() );
-            }
-        }
-        catch (FileNotFoundException e)
-        {
-            LOG.error("File \"{}\" not found.", DNSBlacklistFilename);
-            e.printStackTrace();
-        }
-        catch (IOException e)
-        {
-            LOG.error("Unable to read file \"{}\". {}", DNSBlacklistFilename, e);
-            e.printStackTrace();
-        }
+        StringBuilder outString = new StringBuilder( "Ipv4 blacklist:\n" );
+
+        Iterator<Ipv4Prefix> it = mSnapshot.getIpv4Records().iterator();
+        while( it.hasNext() ) { outString.append( it.next() ).append( "\n" ); }
+
+        LOG.debug(outString.toString());
+    }
 
-        return fileLines;
+    //---------------------------------------------------------------------------------------------
+    //  convertIpv4Address:  parse "a.b.c.d" or "a.b.c.d/n", returns null if the string is invalid
+    public static Ipv4Prefix convertIpv4Address( String line )
+    {
+        return Ipv4Prefix.parse( line );
     }
 
 }
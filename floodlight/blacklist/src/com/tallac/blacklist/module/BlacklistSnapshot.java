@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.tallac.blacklist.utils.DomainTrie;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
+/**
+ * Immutable, versioned view of the DNS and IPv4 blacklists.
+ *
+ * A snapshot is never modified after it is built, so PacketIn threads can
+ * read it without locking while REST threads build its successor. Changes
+ * are collected in a {@link Builder} and applied to a copy of the current
+ * snapshot's matchers to produce the next version.
+ *
+ * The matchers are the primary representation. The record sets used by the
+ * REST API are derived from them on first use, so a snapshot loaded from
+ * the binary snapshot file does not build them unless they are asked for.
+ */
+public class BlacklistSnapshot
+{
+    private final long          mVersion;
+    private final DomainTrie    mDnsMatcher;
+    private final Ipv4PrefixSet mIpv4Matcher;
+
+    //---- Derived on first use; recomputing in a race gives the same sets
+    private volatile Set<String>     mDnsRecords;
+    private volatile Set<Ipv4Prefix> mIpv4Records;
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param version     - snapshot version
+     * @param dnsMatcher  - DNS blacklist, must not be changed afterwards
+     * @param ipv4Matcher - IPv4 blacklist, must not be changed afterwards
+     */
+    public BlacklistSnapshot( final long          version,
+                              final DomainTrie    dnsMatcher,
+                              final Ipv4PrefixSet ipv4Matcher )
+    {
+        mVersion     = version;
+        mDnsMatcher  = dnsMatcher;
+        mIpv4Matcher = ipv4Matcher;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static BlacklistSnapshot empty()
+    {
+        return new BlacklistSnapshot( 0, new DomainTrie(), new Ipv4PrefixSet() );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public long          getVersion()     { return mVersion; }
+    public DomainTrie    getDnsMatcher()  { return mDnsMatcher; }
+    public Ipv4PrefixSet getIpv4Matcher() { return mIpv4Matcher; }
+
+    //---------------------------------------------------------------------------------------------
+    public Set<String> getDnsRecords()
+    {
+        Set<String> records = mDnsRecords;
+        if( records == null )
+        {
+            final Set<String> names = new HashSet<String>( mDnsMatcher.size() * 2 );
+            mDnsMatcher.getNames( names );
+            mDnsRecords = records = Collections.unmodifiableSet( names );
+        }
+        return records;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public Set<Ipv4Prefix> getIpv4Records()
+    {
+        Set<Ipv4Prefix> records = mIpv4Records;
+        if( records == null )
+        {
+            mIpv4Records = records = Collections.unmodifiableSet( new HashSet<Ipv4Prefix>( mIpv4Matcher.getEntries() ) );
+        }
+        return records;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Batch of blacklist changes. Changes are recorded rather than applied,
+     * and replayed onto whatever snapshot is current when the batch is
+     * published, so concurrent batches never lose each other's updates.
+     * Removals are applied before additions.
+     */
+    public static class Builder
+    {
+        private boolean                mReplaceDns;
+        private boolean                mReplaceIpv4;
+        private final List<String>     mDnsAdded     = new ArrayList<String>();
+        private final List<String>     mDnsRemoved   = new ArrayList<String>();
+        private final List<Ipv4Prefix> mIpv4Added    = new ArrayList<Ipv4Prefix>();
+        private final List<Ipv4Prefix> mIpv4Removed  = new ArrayList<Ipv4Prefix>();
+        private FlowOperation          mFlowOperation;
+
+        //---- Discard the current records of a list before the additions are applied (full reload)
+        public Builder replaceDnsRecords()  { mReplaceDns  = true; return this; }
+        public Builder replaceIpv4Records() { mReplaceIpv4 = true; return this; }
+
+        //---- DNS records may not contain control characters; a line break would forge journal entries
+        public Builder addDnsRecord(     String record )     { mDnsAdded.add( checkDnsRecord( record ) );     return this; }
+        public Builder removeDnsRecord(  String record )     { mDnsRemoved.add( checkDnsRecord( record ) );   return this; }
+        public Builder addIpv4Record(    Ipv4Prefix record ) { mIpv4Added.add( record );                  return this; }
+        public Builder removeIpv4Record( Ipv4Prefix record ) { mIpv4Removed.add( record );                return this; }
+
+        public boolean          isReplaceDns()    { return mReplaceDns; }
+        public boolean          isReplaceIpv4()   { return mReplaceIpv4; }
+        public List<String>     getDnsAdded()     { return mDnsAdded; }
+        public List<String>     getDnsRemoved()   { return mDnsRemoved; }
+        public List<Ipv4Prefix> getIpv4Added()    { return mIpv4Added; }
+        public List<Ipv4Prefix> getIpv4Removed()  { return mIpv4Removed; }
+        public int size() { return mDnsAdded.size() + mDnsRemoved.size() + mIpv4Added.size() + mIpv4Removed.size(); }
+
+        //-----------------------------------------------------------------------------------------
+        /**
+         * @param record - DNS record
+         * @return record in lower case
+         * @throws IllegalArgumentException if the record contains a control character
+         */
+        public static String checkDnsRecord( final String record )
+        {
+            for( int i = 0; i < record.length(); i++ )
+            {
+                final char c = record.charAt( i );
+                if( c < 0x20 || c == 0x7f ) throw new IllegalArgumentException( "DNS record contains control character 0x" + Integer.toHexString( c ) );
+            }
+            return DomainTrie.toLowerCase( record );   // ASCII, as the trie folds
+        }
+
+        //---- Deletion of the flows to newly listed IPv4 entries, set when the batch is applied; null if none
+        public FlowOperation getFlowOperation()                 { return mFlowOperation; }
+        void                 setFlowOperation( FlowOperation op ) { mFlowOperation = op; }
+
+        //-----------------------------------------------------------------------------------------
+        /**
+         * @param base - snapshot the changes are applied to
+         * @return new snapshot with the next version number
+         */
+        public BlacklistSnapshot build( final BlacklistSnapshot base )
+        {
+            // Matchers of an unchanged list are shared with the base snapshot. A changed list is
+            // copied as a whole, so a batch costs O(list size) whatever its number of changes.
+            DomainTrie    dns  = base.mDnsMatcher;
+            Ipv4PrefixSet ipv4 = base.mIpv4Matcher;
+
+            if( mReplaceDns || !mDnsAdded.isEmpty() || !mDnsRemoved.isEmpty() )
+            {
+                dns = mReplaceDns ? new DomainTrie( mDnsAdded.size() * 8 ) : new DomainTrie( base.mDnsMatcher );
+
+                for( String record : mDnsRemoved ) { dns.remove( record ); }
+                for( String record : mDnsAdded )   { dns.add( record ); }
+            }
+
+            if( mReplaceIpv4 || !mIpv4Added.isEmpty() || !mIpv4Removed.isEmpty() )
+            {
+                ipv4 = mReplaceIpv4 ? new Ipv4PrefixSet( mIpv4Added.size() ) : new Ipv4PrefixSet( base.mIpv4Matcher );
+
+                for( Ipv4Prefix record : mIpv4Removed ) { ipv4.remove( record ); }
+                for( Ipv4Prefix record : mIpv4Added )   { ipv4.add( record ); }
+            }
+
+            return new BlacklistSnapshot( base.mVersion + 1, dns, ipv4 );
+        }
+    }
+}
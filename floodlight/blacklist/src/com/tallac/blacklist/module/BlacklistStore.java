@@ -0,0 +1,625 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.utils.DomainTrie;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
+/**
+ * Persistent storage of the DNS and IPv4 blacklists.
+ *
+ * The lists are kept as a binary snapshot file plus an append-only journal
+ * of the changes made since the snapshot was written. Every change appends
+ * a few lines to the journal and flushes them to the OS; {@link #sync()}
+ * forces them to disk and is meant to be called periodically from a
+ * background thread. {@link #compact(BlacklistSnapshot)} writes a new
+ * snapshot (to a temporary file that is then renamed over the old one) and
+ * drops the journal it covers.
+ *
+ * The snapshot file holds the IPv4 hosts as a sorted int array, the IPv4
+ * prefixes as (address, length) pairs and the DNS trie node arrays as they
+ * are kept in memory, followed by a CRC32 of everything before it. It is
+ * memory-mapped and the arrays are bulk copied out of the mapping, so
+ * startup does not parse or insert DNS names. The
+ * text files are an import format only: one is imported at startup if
+ * there is no snapshot yet or the text file is newer than the snapshot,
+ * replacing that list.
+ *
+ * Journal lines are "+D name", "-D name", "+I prefix", "-I prefix", and
+ * "*D" / "*I" for clearing a list. A line is only valid once its newline
+ * is written, so a torn last line after a crash is ignored on replay.
+ * Replaying a journal on a snapshot that already contains its changes
+ * gives the same lists, which keeps compaction crash safe.
+ */
+public class BlacklistStore
+{
+    private static final Logger  LOG     = LoggerFactory.getLogger(BlacklistStore.class);
+    private static final Charset CHARSET = Charset.forName( "UTF-8" );
+
+    private static final int    SNAPSHOT_MAGIC  = 0x54424C53;  // "TBLS"
+    private static final int    SNAPSHOT_FORMAT = 2;           // 1 had no checksum
+    private static final int    TRAILER_SIZE    = 4 + 4;       // checksum, end marker
+    private static final String ROLLED_SUFFIX   = ".1";
+    private static final String TEMP_SUFFIX     = ".tmp";
+    private static final String CORRUPT_SUFFIX  = ".corrupt";
+
+    private final File mSnapshotFile;
+    private final File mCorruptFile;
+    private final File mJournalFile;
+    private final File mRolledFile;
+    private final File mDnsImportFile;
+    private final File mIpv4ImportFile;
+
+    //---- Journal writer. Guarded by this.
+    private FileOutputStream mJournalStream;
+    private Writer           mJournal;
+    private boolean          mDirty;
+    private int              mJournalOps;
+    private boolean          mSnapshotUnreadable;
+
+    //---- Lists being loaded; a clear replaces the instance
+    private static class Lists
+    {
+        DomainTrie    dns  = new DomainTrie();
+        Ipv4PrefixSet ipv4 = new Ipv4PrefixSet();
+        long          version;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public BlacklistStore( final String snapshotFilename,
+                           final String journalFilename,
+                           final String dnsImportFilename,
+                           final String ipv4ImportFilename )
+    {
+        mSnapshotFile   = new File( snapshotFilename );
+        mCorruptFile    = new File( snapshotFilename + CORRUPT_SUFFIX );
+        mJournalFile    = new File( journalFilename );
+        mRolledFile     = new File( journalFilename + ROLLED_SUFFIX );
+        mDnsImportFile  = new File( dnsImportFilename );
+        mIpv4ImportFile = new File( ipv4ImportFilename );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Read the snapshot file, import newer text files and replay the
+     * journal(s) on top. Afterwards {@link #getJournalOps()} counts the
+     * changes that are not in the snapshot file yet.
+     *
+     * A snapshot file that can not be read is renamed to "*.corrupt" and
+     * the lists are loaded from the text files and journal alone; see
+     * {@link #hasCorruptSnapshot()}.
+     * @return loaded blacklists
+     */
+    public BlacklistSnapshot load()
+    {
+        final Lists lists = new Lists();
+        int         ops   = 0;
+
+        final boolean haveSnapshot = mSnapshotFile.exists() && readSnapshot( mSnapshotFile, lists );
+        if( mSnapshotFile.exists() && !haveSnapshot ) setAsideSnapshot();
+        final long    snapshotTime = haveSnapshot ? mSnapshotFile.lastModified() : 0;
+
+        if( mDnsImportFile.exists() && ( !haveSnapshot || mDnsImportFile.lastModified() > snapshotTime ) )
+        {
+            LOG.info( "Import DNS blacklist. File {}", mDnsImportFile );
+            lists.dns = new DomainTrie();
+            ops += readDnsFile( mDnsImportFile, lists.dns );
+        }
+
+        if( mIpv4ImportFile.exists() && ( !haveSnapshot || mIpv4ImportFile.lastModified() > snapshotTime ) )
+        {
+            LOG.info( "Import IPv4 blacklist. File {}", mIpv4ImportFile );
+            lists.ipv4 = new Ipv4PrefixSet();
+            ops += readIpv4File( mIpv4ImportFile, lists.ipv4 );
+        }
+
+        // A rolled journal is left behind if the controller stopped during compaction
+        ops += replay( mRolledFile, lists );
+        ops += replay( mJournalFile, lists );
+
+        synchronized( this ) { mJournalOps = ops; }
+
+        return new BlacklistSnapshot( lists.version, lists.dns, lists.ipv4 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Open the journal for appending.
+     */
+    public synchronized void open() throws IOException
+    {
+        truncateIncompleteEntry( mJournalFile );
+
+        mJournalStream = new FileOutputStream( mJournalFile, true );
+        mJournal       = new BufferedWriter( new OutputStreamWriter( mJournalStream, CHARSET ), 64 * 1024 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Append a batch of changes to the journal, in the order
+     * {@link BlacklistSnapshot.Builder#build(BlacklistSnapshot)} applies them.
+     * Must be called in the same order the batches are applied.
+     * @param batch - applied changes
+     */
+    public synchronized void append( final BlacklistSnapshot.Builder batch )
+    {
+        if( mJournal == null || ( batch.size() == 0 && !batch.isReplaceDns() && !batch.isReplaceIpv4() ) ) return;
+
+        try
+        {
+            if( batch.isReplaceDns() )  mJournal.write( "*D\n" );
+            if( batch.isReplaceIpv4() ) mJournal.write( "*I\n" );
+
+            for( String     record : batch.getDnsRemoved() )  { writeOp( "-D ", record ); }
+            for( Ipv4Prefix record : batch.getIpv4Removed() ) { writeOp( "-I ", record.toString() ); }
+            for( String     record : batch.getDnsAdded() )    { writeOp( "+D ", record ); }
+            for( Ipv4Prefix record : batch.getIpv4Added() )   { writeOp( "+I ", record.toString() ); }
+
+            mJournal.flush();
+            mDirty       = true;
+            mJournalOps += batch.size();
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to write blacklist journal {}. {}", mJournalFile, e );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Force appended journal entries to disk.
+     */
+    public synchronized void sync()
+    {
+        if( !mDirty ) return;
+
+        try
+        {
+            mJournalStream.getFD().sync();
+            mDirty = false;
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to sync blacklist journal {}. {}", mJournalFile, e );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public synchronized int getJournalOps() { return mJournalOps; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return true if a snapshot file could not be read and is kept as
+     *         "*.corrupt". The loaded lists may then miss records, and
+     *         compacting would drop the journal needed to recover them,
+     *         so nothing should be compacted until the file is dealt with.
+     */
+    public synchronized boolean hasCorruptSnapshot() { return mSnapshotUnreadable || mCorruptFile.exists(); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Set the current journal aside and start a new one. Call while no
+     * batch can be applied, right after taking the snapshot that is about
+     * to be compacted, so the set-aside journal holds exactly the changes
+     * the snapshot contains.
+     */
+    public synchronized void roll() throws IOException
+    {
+        closeJournal();
+
+        if( mRolledFile.exists() )
+        {
+            // An earlier compaction failed; keep its changes ahead of the current ones
+            appendFile( mJournalFile, mRolledFile );
+        }
+        else if( !mJournalFile.renameTo( mRolledFile ) && mJournalFile.exists() )
+        {
+            throw new IOException( "Unable to rename " + mJournalFile + " to " + mRolledFile );
+        }
+        mJournalFile.delete();
+
+        mJournalOps = 0;
+        open();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Write the snapshot file for the given lists and drop the rolled journal.
+     * @param snapshot - snapshot taken when the journal was rolled
+     */
+    public void compact( final BlacklistSnapshot snapshot ) throws IOException
+    {
+        writeSnapshot( mSnapshotFile, snapshot );
+
+        if( mRolledFile.exists() && !mRolledFile.delete() )
+        {
+            throw new IOException( "Unable to delete " + mRolledFile );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public synchronized void close()
+    {
+        sync();
+        closeJournal();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void writeOp( final String op, final String record ) throws IOException
+    {
+        // Builder rejects these; never let a record split into journal lines of its own
+        if( record.indexOf( '\n' ) >= 0 || record.indexOf( '\r' ) >= 0 )
+        {
+            LOG.error( "Not journaling blacklist record with a line break: \"{}\"", record.replace( "\n", "\\n" ).replace( "\r", "\\r" ) );
+            return;
+        }
+
+        mJournal.write( op );
+        mJournal.write( record );
+        mJournal.write( '\n' );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void closeJournal()
+    {
+        if( mJournal == null ) return;
+
+        try
+        {
+            mJournal.flush();
+            mJournalStream.getFD().sync();
+            mJournal.close();
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to close blacklist journal {}. {}", mJournalFile, e );
+        }
+        mJournal       = null;
+        mJournalStream = null;
+        mDirty         = false;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  setAsideSnapshot:  keep an unreadable snapshot for recovery instead of writing over it later
+    private void setAsideSnapshot()
+    {
+        synchronized( this ) { mSnapshotUnreadable = true; }
+
+        if( mSnapshotFile.renameTo( mCorruptFile ) )
+        {
+            LOG.error( "Blacklist snapshot \"{}\" is unreadable and was moved to \"{}\". Loading the text files and journal only.",
+                       mSnapshotFile, mCorruptFile );
+        }
+        else
+        {
+            LOG.error( "Blacklist snapshot \"{}\" is unreadable and could not be moved to \"{}\". Loading the text files and journal only.",
+                       mSnapshotFile, mCorruptFile );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  writeSnapshot:  write to a temporary file, sync it, and rename it over the target
+    private static void writeSnapshot( final File file, final BlacklistSnapshot snapshot ) throws IOException
+    {
+        final File             temp   = new File( file.getPath() + TEMP_SUFFIX );
+        final FileOutputStream stream = new FileOutputStream( temp );
+        try
+        {
+            // The checksum is updated per buffered block, not per field
+            final CRC32            crc = new CRC32();
+            final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream( new CheckedOutputStream( stream, crc ), 64 * 1024 ) );
+
+            out.writeInt( SNAPSHOT_MAGIC );
+            out.writeInt( SNAPSHOT_FORMAT );
+            out.writeLong( snapshot.getVersion() );
+            snapshot.getIpv4Matcher().writeTo( out );
+            snapshot.getDnsMatcher().writeTo( out );
+            out.flush();
+
+            final DataOutputStream trailer = new DataOutputStream( stream );
+            trailer.writeInt( (int) crc.getValue() );
+            trailer.writeInt( SNAPSHOT_MAGIC );  // end marker
+
+            stream.getFD().sync();
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        if( !temp.renameTo( file ) )
+        {
+            // Not atomic, but some platforms refuse to rename over an existing file
+            file.delete();
+            if( !temp.renameTo( file ) ) throw new IOException( "Unable to rename " + temp + " to " + file );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static boolean readSnapshot( final File file, final Lists lists )
+    {
+        try
+        {
+            final FileInputStream stream = new FileInputStream( file );
+            try
+            {
+                final FileChannel channel = stream.getChannel();
+                final ByteBuffer  in      = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+
+                final int magic  = in.getInt();
+                final int format = in.getInt();
+                if( magic != SNAPSHOT_MAGIC || ( format != SNAPSHOT_FORMAT && format != 1 ) )
+                {
+                    LOG.error( "File \"{}\" is not a blacklist snapshot.", file );
+                    return false;
+                }
+
+                // Format 1 snapshots end with the marker only
+                final int end = in.limit() - ( ( format == 1 ) ? 4 : TRAILER_SIZE );
+                if( end < in.position() || in.getInt( in.limit() - 4 ) != SNAPSHOT_MAGIC )
+                {
+                    LOG.error( "Blacklist snapshot \"{}\" is truncated.", file );
+                    return false;
+                }
+                if( format != 1 && in.getInt( end ) != checksum( in, end ) )
+                {
+                    LOG.error( "Blacklist snapshot \"{}\" is corrupt, checksum mismatch.", file );
+                    return false;
+                }
+                in.limit( end );
+
+                final long          version = in.getLong();
+                final Ipv4PrefixSet ipv4    = Ipv4PrefixSet.readFrom( in );
+                final DomainTrie    dns     = DomainTrie.readFrom( in );
+
+                if( in.hasRemaining() )
+                {
+                    LOG.error( "Blacklist snapshot \"{}\" is corrupt.", file );
+                    return false;
+                }
+
+                lists.version = version;
+                lists.ipv4    = ipv4;
+                lists.dns     = dns;
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch( Exception e )
+        {
+            // Short sections surface as BufferUnderflowException, bad counts and links as IllegalArgumentException
+            LOG.error( "Unable to read blacklist snapshot \"{}\". {}", file, e );
+            return false;
+        }
+
+        LOG.info( "Loaded blacklist snapshot version {}: {} DNS, {} IPv4 records.",
+                  new Object[] { lists.version, lists.dns.size(), lists.ipv4.size() } );
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  checksum:  CRC32 of the bytes before end, copied out of the mapping in blocks
+    private static int checksum( final ByteBuffer in, final int end )
+    {
+        final CRC32      crc   = new CRC32();
+        final byte[]     block = new byte[64 * 1024];
+        final ByteBuffer data  = in.duplicate();
+
+        data.position( 0 );
+        data.limit( end );
+        while( data.hasRemaining() )
+        {
+            final int length = Math.min( block.length, data.remaining() );
+            data.get( block, 0, length );
+            crc.update( block, 0, length );
+        }
+        return (int) crc.getValue();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  truncateIncompleteEntry:  cut a torn last line, so new entries do not get appended to it
+    private static void truncateIncompleteEntry( final File file ) throws IOException
+    {
+        if( !file.exists() ) return;
+
+        final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try
+        {
+            final long length = raf.length();
+
+            long end = length;
+            for( ; end > 0; end-- )
+            {
+                raf.seek( end - 1 );
+                if( raf.read() == '\n' ) break;
+            }
+
+            if( end < length )
+            {
+                LOG.warn( "Dropping incomplete last blacklist journal entry in {}.", file );
+                raf.setLength( end );
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static void appendFile( final File from, final File to ) throws IOException
+    {
+        if( !from.exists() ) return;
+
+        final FileInputStream  in  = new FileInputStream( from );
+        final FileOutputStream out = new FileOutputStream( to, true );
+        try
+        {
+            final byte[] buf = new byte[64 * 1024];
+            for( int n = in.read( buf ); n > 0; n = in.read( buf ) ) out.write( buf, 0, n );
+            out.getFD().sync();
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int replay( final File file, final Lists lists )
+    {
+        if( !file.exists() ) return 0;
+
+        int ops = 0;
+        try
+        {
+            final Reader        in   = new BufferedReader( new InputStreamReader( new FileInputStream( file ), CHARSET ) );
+            final StringBuilder line = new StringBuilder();
+            try
+            {
+                for( int c = in.read(); c != -1; c = in.read() )
+                {
+                    if( c != '\n' ) { line.append( (char) c ); continue; }
+
+                    if( replayOp( line, lists ) ) ops++;
+                    else LOG.warn( "Skipping invalid blacklist journal entry \"{}\" in {}.", line, file );
+
+                    line.setLength( 0 );
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            if( line.length() > 0 ) LOG.warn( "Ignoring incomplete last blacklist journal entry in {}.", file );
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to read blacklist journal {}. {}", file, e );
+        }
+
+        if( ops > 0 ) LOG.info( "Replayed {} blacklist changes from {}.", ops, file );
+        return ops;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static boolean replayOp( final CharSequence line, final Lists lists )
+    {
+        if( line.length() < 2 ) return false;
+
+        final char    op     = line.charAt( 0 );
+        final boolean isDns  = line.charAt( 1 ) == 'D';
+        if( !isDns && line.charAt( 1 ) != 'I' ) return false;
+
+        if( op == '*' )
+        {
+            if( isDns ) lists.dns  = new DomainTrie();
+            else        lists.ipv4 = new Ipv4PrefixSet();
+            return true;
+        }
+
+        if( ( op != '+' && op != '-' ) || line.length() < 4 || line.charAt( 2 ) != ' ' ) return false;
+
+        final String record = line.subSequence( 3, line.length() ).toString();
+        if( isDns )
+        {
+            if( op == '+' ) lists.dns.add( record );
+            else            lists.dns.remove( record );
+            return true;
+        }
+
+        final Ipv4Prefix prefix = Ipv4Prefix.parse( record );
+        if( prefix == null ) return false;
+
+        if( op == '+' ) lists.ipv4.add( prefix );
+        else            lists.ipv4.remove( prefix );
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int readIpv4File( final File file, final Ipv4PrefixSet ipv4 )
+    {
+        int records = 0;
+        try
+        {
+            BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( file ), CHARSET ) );
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                if( line.trim().isEmpty() ) continue;
+
+                Ipv4Prefix record = Ipv4Prefix.parse( line ); // Convert IP address or CIDR prefix
+
+                if( record == null ) LOG.error( "Unable to parse IPv4 address \"{}\"", line );
+                else if( ipv4.add( record ) ) records++;
+            }
+            br.close();
+        }
+        catch (FileNotFoundException e)
+        {
+            LOG.error("File \"{}\" not found.", file);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Unable to read file \"{}\". {}", file, e);
+        }
+        return records;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int readDnsFile( final File file, final DomainTrie dns )
+    {
+        int records = 0;
+        try
+        {
+            BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( file ), CHARSET ) );
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                if( !line.trim().isEmpty() && dns.add( line.trim() ) ) records++;
+            }
+            br.close();
+        }
+        catch (FileNotFoundException e)
+        {
+            LOG.error("File \"{}\" not found.", file);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Unable to read file \"{}\". {}", file, e);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import com.tallac.blacklist.utils.IntLongHashMap;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
+/**
+ * Destination flows installed by {@link FlowMgr#createDataStreamFlow}, per
+ * switch and IPv4 destination.
+ *
+ * An entry is added when the flow-mod is sent. While it is younger than the
+ * pending timeout the flow-mod is assumed to be in flight, and PacketIns
+ * for the same destination are forwarded without sending it again. A
+ * PacketIn for an older entry means the switch does not have the flow, so
+ * it is installed again. Entries are removed when the switch reports the
+ * flow removed, the destination is blacklisted or the switch disconnects.
+ */
+public class DestinationFlowCache
+{
+    private final ConcurrentHashMap<Long, IntLongHashMap> mSwitches = new ConcurrentHashMap<Long, IntLongHashMap>();
+    private final long                                    mPendingMillis;
+    private final int                                     mMaxEntries;
+
+    //---- Metrics
+    private final AtomicLong mHits           = new AtomicLong();
+    private final AtomicLong mMisses         = new AtomicLong();
+    private final AtomicLong mReinstalls     = new AtomicLong();
+    private final AtomicLong mUntracked      = new AtomicLong();
+    private final AtomicLong mIdleExpired    = new AtomicLong();
+    private final AtomicLong mRemoved        = new AtomicLong();
+    private final AtomicLong mLifetimeMillis = new AtomicLong();
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param pendingMillis - how long a sent flow-mod is assumed to be in flight
+     * @param maxEntries    - maximum entries per switch; further flows are installed but not tracked
+     */
+    public DestinationFlowCache( final long pendingMillis, final int maxEntries )
+    {
+        mPendingMillis = Math.max( 0, pendingMillis );
+        mMaxEntries    = Math.max( 0, maxEntries );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Called for each PacketIn that would install a destination flow.
+     * @param dpid  - switch DPID
+     * @param nwDst - IPv4 destination, not 0
+     * @return true if the flow-mod has to be sent, false if one is in flight
+     */
+    public boolean shouldInstall( final long dpid, final int nwDst )
+    {
+        final IntLongHashMap flows = flowsFor( dpid );
+        final long           now   = nowMillis();
+
+        synchronized( flows )
+        {
+            final long issuedAt = flows.get( nwDst );
+            if( issuedAt == IntLongHashMap.NO_VALUE )
+            {
+                mMisses.incrementAndGet();
+                if( flows.size() >= mMaxEntries )
+                {
+                    mUntracked.incrementAndGet();
+                    return true;
+                }
+            }
+            else if( now - issuedAt < mPendingMillis )
+            {
+                mHits.incrementAndGet();
+                return false;
+            }
+            else
+            {
+                // Lost flow-mod, full flow table or a missed FLOW_REMOVED
+                mReinstalls.incrementAndGet();
+            }
+
+            flows.put( nwDst, now );
+            return true;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Called when a switch reports a destination flow removed.
+     * @param dpid        - switch DPID
+     * @param nwDst       - IPv4 destination
+     * @param idleTimeout - true if the flow expired, false if it was deleted
+     */
+    public void flowRemoved( final long dpid, final int nwDst, final boolean idleTimeout )
+    {
+        final IntLongHashMap flows = mSwitches.get( dpid );
+        if( flows == null ) return;
+
+        final long issuedAt;
+        synchronized( flows ) { issuedAt = flows.remove( nwDst ); }
+        if( issuedAt == IntLongHashMap.NO_VALUE ) return;
+
+        if( idleTimeout )
+        {
+            mIdleExpired.incrementAndGet();
+            mLifetimeMillis.addAndGet( nowMillis() - issuedAt );
+        }
+        else
+        {
+            mRemoved.incrementAndGet();
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Forget the flows of every switch within a set of hosts and prefixes,
+     * e.g. when they are blacklisted and the flows are deleted.
+     * @param prefixes - IPv4 hosts and prefixes
+     */
+    public void removePrefixes( final Ipv4PrefixSet prefixes )
+    {
+        for( final IntLongHashMap flows : mSwitches.values() )
+        {
+            final int count;
+            synchronized( flows ) { count = flows.removeCovered( prefixes ); }
+            mRemoved.addAndGet( count );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Forget the flows of a disconnected switch.
+     * @param dpid - switch DPID
+     */
+    public void removeSwitch( final long dpid ) { mSwitches.remove( dpid ); }
+
+    //---------------------------------------------------------------------------------------------
+    private IntLongHashMap flowsFor( final long dpid )
+    {
+        final Long     key   = dpid;
+        IntLongHashMap flows = mSwitches.get( key );
+        if( flows == null )
+        {
+            final IntLongHashMap created = new IntLongHashMap();
+            flows = mSwitches.putIfAbsent( key, created );
+            if( flows == null ) flows = created;
+        }
+        return flows;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static long nowMillis() { return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() ); }
+
+    //---------------------------------------------------------------------------------------------
+    public FlowCacheStats getStats() { return new FlowCacheStats( this ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time copy of the destination flow cache metrics.
+     */
+    public static class FlowCacheStats
+    {
+        private final long mHits;
+        private final long mMisses;
+        private final long mReinstalls;
+        private final long mUntracked;
+        private final long mIdleExpired;
+        private final long mRemoved;
+        private final long mLifetimeMillis;
+        private final long mEntries;
+        private final int  mSwitches;
+
+        FlowCacheStats( final DestinationFlowCache c )
+        {
+            mHits           = c.mHits.get();
+            mMisses         = c.mMisses.get();
+            mReinstalls     = c.mReinstalls.get();
+            mUntracked      = c.mUntracked.get();
+            mIdleExpired    = c.mIdleExpired.get();
+            mRemoved        = c.mRemoved.get();
+            mLifetimeMillis = c.mLifetimeMillis.get();
+
+            long entries  = 0;
+            int  switches = 0;
+            for( final IntLongHashMap flows : c.mSwitches.values() )
+            {
+                synchronized( flows ) { entries += flows.size(); }
+                switches++;
+            }
+            mEntries  = entries;
+            mSwitches = switches;
+        }
+
+        /**
+         * @return PacketIns forwarded without a flow-mod because one was in flight
+         */
+        @JsonProperty( "hits" )        public long getHits()        { return mHits; }
+
+        /**
+         * @return PacketIns for destinations without a known flow
+         */
+        @JsonProperty( "misses" )      public long getMisses()      { return mMisses; }
+
+        /**
+         * @return PacketIns for destinations whose flow should have been installed already
+         */
+        @JsonProperty( "reinstalls" )  public long getReinstalls()  { return mReinstalls; }
+
+        @JsonProperty( "untracked" )   public long getUntracked()   { return mUntracked; }
+        @JsonProperty( "idleExpired" ) public long getIdleExpired() { return mIdleExpired; }
+        @JsonProperty( "removed" )     public long getRemoved()     { return mRemoved; }
+        @JsonProperty( "entries" )     public long getEntries()     { return mEntries; }
+        @JsonProperty( "switches" )    public int  getSwitches()    { return mSwitches; }
+
+        @JsonProperty( "hitRatio" )
+        public double getHitRatio()
+        {
+            final long total = mHits + mMisses + mReinstalls;
+            return ( total == 0 ) ? 0 : (double) mHits / total;
+        }
+
+        /**
+         * @return average time from install to idle expiry; close to the idle
+         *         timeout means most flows carried a single burst
+         */
+        @JsonProperty( "avgIdleFlowLifetimeSec" )
+        public double getAvgIdleFlowLifetimeSec()
+        {
+            return ( mIdleExpired == 0 ) ? 0 : mLifetimeMillis / 1000.0 / mIdleExpired;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
+/**
+ * Proactive drop flows for blacklisted IPv4 hosts and prefixes, per switch.
+ *
+ * Only the smallest set of entries covering the blacklist is wanted on a
+ * switch: an entry within a listed shorter prefix is dropped by that
+ * prefix's flow. Of those, at most maxFlows are installed per switch,
+ * shortest prefixes first; packets to the remaining entries still reach
+ * the controller and are dropped there.
+ *
+ * The caller diffs a switch with {@link #sync} and sends the resulting
+ * flow-mods while holding the table's monitor, so the flows on a switch
+ * follow the same order as the recorded state.
+ */
+public class DropFlowTable
+{
+    private final int                            mMaxFlows;
+    private final HashMap<Long, Set<Ipv4Prefix>> mInstalled = new HashMap<Long, Set<Ipv4Prefix>>();
+
+    //---- Wanted entries of the last synced blacklist version
+    private long            mWantedVersion = -1;
+    private Set<Ipv4Prefix> mWanted        = Collections.emptySet();
+    private int             mCoverSize;
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param maxFlows - maximum drop flows per switch
+     */
+    public DropFlowTable( final int maxFlows )
+    {
+        mMaxFlows = Math.max( 0, maxFlows );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Compute the changes that bring a switch to the blacklist and record
+     * them as done.
+     * @param dpid     - switch DPID
+     * @param snapshot - current blacklist
+     * @param toAdd    - filled with entries to install
+     * @param toRemove - filled with entries to remove
+     * @return true if the switch gets fewer flows than the blacklist needs
+     */
+    public synchronized boolean sync( final long              dpid,
+                                      final BlacklistSnapshot snapshot,
+                                      final List<Ipv4Prefix>  toAdd,
+                                      final List<Ipv4Prefix>  toRemove )
+    {
+        final Set<Ipv4Prefix> wanted = wantedFor( snapshot );
+
+        Set<Ipv4Prefix> installed = mInstalled.get( dpid );
+        if( installed == null )
+        {
+            installed = new HashSet<Ipv4Prefix>();
+            mInstalled.put( dpid, installed );
+        }
+
+        for( final Iterator<Ipv4Prefix> it = installed.iterator(); it.hasNext(); )
+        {
+            final Ipv4Prefix prefix = it.next();
+            if( wanted.contains( prefix ) ) continue;
+
+            toRemove.add( prefix );
+            it.remove();
+        }
+
+        for( final Ipv4Prefix prefix : wanted )
+        {
+            if( installed.add( prefix ) ) toAdd.add( prefix );
+        }
+
+        return mCoverSize > mMaxFlows;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Forget the flows within a set of prefixes, after non-strict deletes
+     * removed them from every switch. One pass over the installed flows.
+     * @param prefixes - deleted hosts and prefixes
+     */
+    public synchronized void forgetCovered( final Ipv4PrefixSet prefixes )
+    {
+        for( final Set<Ipv4Prefix> installed : mInstalled.values() )
+        {
+            for( final Iterator<Ipv4Prefix> it = installed.iterator(); it.hasNext(); )
+            {
+                if( prefixes.covers( it.next() ) ) it.remove();
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public synchronized void removeSwitch( final long dpid ) { mInstalled.remove( dpid ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return number of drop flows installed on the switch
+     */
+    public synchronized int getInstalled( final long dpid )
+    {
+        final Set<Ipv4Prefix> installed = mInstalled.get( dpid );
+        return ( installed == null ) ? 0 : installed.size();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return number of drop flows the blacklist synced last needs on a switch
+     */
+    public synchronized int getNeeded() { return mCoverSize; }
+
+    //---------------------------------------------------------------------------------------------
+    //  wantedFor:  the blacklist's covering entries, shortest prefix first, up to maxFlows
+    private Set<Ipv4Prefix> wantedFor( final BlacklistSnapshot snapshot )
+    {
+        if( snapshot.getVersion() == mWantedVersion ) return mWanted;
+
+        final List<Ipv4Prefix> entries = new ArrayList<Ipv4Prefix>( snapshot.getIpv4Matcher().getEntries() );
+        Collections.sort( entries, new Comparator<Ipv4Prefix>()
+        {
+            public int compare( final Ipv4Prefix a, final Ipv4Prefix b )
+            {
+                if( a.getLength() != b.getLength() ) return a.getLength() - b.getLength();
+                final int x = a.getAddress() ^ Integer.MIN_VALUE;   // unsigned order
+                final int y = b.getAddress() ^ Integer.MIN_VALUE;
+                return ( x < y ) ? -1 : ( x > y ) ? 1 : 0;
+            }
+        } );
+
+        //---- Entries come shortest first, so every covering prefix is kept before the entries within it
+        final Ipv4PrefixSet   cover  = new Ipv4PrefixSet();
+        final Set<Ipv4Prefix> wanted = new HashSet<Ipv4Prefix>();
+        for( final Ipv4Prefix entry : entries )
+        {
+            if( cover.contains( entry.getAddress() ) ) continue;
+
+            cover.add( entry );
+            if( wanted.size() < mMaxFlows ) wanted.add( entry );
+        }
+
+        mWantedVersion = snapshot.getVersion();
+        mWanted        = wanted;
+        mCoverSize     = cover.size();
+        return wanted;
+    }
+}
@@ -15,10 +15,11 @@ import static org.openflow.protocol.OFMatch.OFPFW_DL_TYPE;
 import static org.openflow.protocol.OFMatch.OFPFW_NW_PROTO;
 import static org.openflow.protocol.OFMatch.OFPFW_TP_DST;
 
-import java.io.IOException;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -31,8 +32,10 @@ import net.floodlightcontroller.devicemanager.SwitchPort;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.topology.ITopologyService;
+import net.floodlightcontroller.util.MACAddress;
 
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMatch;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
@@ -44,6 +47,9 @@ import org.openflow.util.HexString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
 /**
  * The FlowMgr class responsible for creating and sending OpenFlow messages
  * to OpenFlow switches.
@@ -61,13 +67,68 @@ public class FlowMgr
     public static final short PRIORITY_DNS_PACKETS = 2000;
     public static final short PRIORITY_IP_FLOWS = 1500;
     public static final short PRIORITY_ARP_PACKETS = 1500;
+    public static final short PRIORITY_DROP_FLOWS = 2500;
+    public static final short PRIORITY_RATE_LIMIT = 3000;
 
     public static final short IP_FLOW_IDLE_TIMEOUT = 15;
     public static final short NO_IDLE_TIMEOUT = 0;
+    public static final short NO_HARD_TIMEOUT = 0;
     public static final int BUFFER_ID_NONE = 0xffffffff;
 
     public static final short DNS_QUERY_DEST_PORT = 53;
 
+    //---- Configuration parameter: how long messages sent outside a PacketIn dispatch are held for batching
+    public static final String CFG_WRITE_BATCH_WINDOW_US     = "writeBatchWindowUs";
+    public static final long   DEFAULT_WRITE_BATCH_WINDOW_US = 100;
+
+    //---- Configuration parameter: threads writing queued messages to switches
+    public static final String CFG_WRITE_THREADS     = "writeThreads";
+    public static final int    DEFAULT_WRITE_THREADS = 4;
+
+    //---- Configuration parameter: entries of the (switch, destination MAC) output port cache
+    public static final String CFG_OUTPUT_PORT_CACHE_SIZE     = "outputPortCacheSize";
+    public static final int    DEFAULT_OUTPUT_PORT_CACHE_SIZE = 16384;
+
+    //---- Flow operations kept for status queries
+    private static final int MAX_FLOW_OPERATIONS = 256;
+
+    //---- Configuration parameters: destination flow cache
+    public static final String CFG_FLOW_PENDING_TIMEOUT_MS     = "flowPendingTimeoutMs";
+    public static final long   DEFAULT_FLOW_PENDING_TIMEOUT_MS = 1000;
+    public static final String CFG_FLOW_CACHE_MAX_ENTRIES      = "flowCacheMaxEntries";
+    public static final int    DEFAULT_FLOW_CACHE_MAX_ENTRIES  = 65536;
+
+    //---- Configuration parameters: proactive drop flows for blacklisted IPv4 entries (1 = on)
+    public static final String CFG_PROACTIVE_DROP                = "proactiveDrop";
+    public static final int    DEFAULT_PROACTIVE_DROP            = 0;
+    public static final String CFG_PROACTIVE_DROP_MAX_FLOWS      = "proactiveDropMaxFlows";
+    public static final int    DEFAULT_PROACTIVE_DROP_MAX_FLOWS  = 1000;
+
+    //---- Wildcards of the per-destination flows created for forwarded packets
+    private static final int DATA_FLOW_WILDCARDS = allExclude( OFMatch.OFPFW_NW_DST_MASK, OFMatch.OFPFW_DL_TYPE );
+
+    //---- Action lists shared by all packet-outs; unmodifiable, since queued messages keep a reference
+    private static final List<OFAction> NO_ACTIONS    = Collections.emptyList();
+    private static final List<OFAction> FLOOD_ACTIONS = Collections.<OFAction>singletonList( new OFActionOutput( OFPort.OFPP_FLOOD.getValue() ) );
+    private static final List<OFAction> ALL_ACTIONS   = Collections.<OFAction>singletonList( new OFActionOutput( OFPort.OFPP_ALL.getValue() ) );
+
+    private OFMessageBatcher     mBatcher;
+    private DestinationFlowCache mFlowCache;
+    private DropFlowTable        mDropFlows;   // null in reactive mode
+    private OutputPortCache      mPortCache;
+
+    //---- Most recent flow operations by id, oldest first
+    private final Map<Long, FlowOperation> mOperations = new LinkedHashMap<Long, FlowOperation>()
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry<Long, FlowOperation> eldest )
+        {
+            return size() > MAX_FLOW_OPERATIONS;
+        }
+    };
+
     //---------------------------------------------------------------------------------------------
     private FlowMgr()
     {
@@ -91,8 +152,140 @@ public class FlowMgr
 
         mProvider = context.getServiceImpl(IFloodlightProviderService.class);
         mTopology = context.getServiceImpl(ITopologyService.class);
+
+        mBatcher = new OFMessageBatcher( BlacklistConfig.getInstance().getLong( CFG_WRITE_BATCH_WINDOW_US,
+                                                                                DEFAULT_WRITE_BATCH_WINDOW_US ),
+                                         BlacklistConfig.getInstance().getInt(  CFG_WRITE_THREADS,
+                                                                                DEFAULT_WRITE_THREADS ) );
+        mFlowCache = new DestinationFlowCache(
+                BlacklistConfig.getInstance().getLong( CFG_FLOW_PENDING_TIMEOUT_MS, DEFAULT_FLOW_PENDING_TIMEOUT_MS ),
+                BlacklistConfig.getInstance().getInt(  CFG_FLOW_CACHE_MAX_ENTRIES,  DEFAULT_FLOW_CACHE_MAX_ENTRIES ) );
+
+        mPortCache = new OutputPortCache( BlacklistConfig.getInstance().getInt( CFG_OUTPUT_PORT_CACHE_SIZE,
+                                                                                DEFAULT_OUTPUT_PORT_CACHE_SIZE ) );
+
+        if( BlacklistConfig.getInstance().getInt( CFG_PROACTIVE_DROP, DEFAULT_PROACTIVE_DROP ) != 0 )
+        {
+            mDropFlows = new DropFlowTable( BlacklistConfig.getInstance().getInt( CFG_PROACTIVE_DROP_MAX_FLOWS,
+                                                                                  DEFAULT_PROACTIVE_DROP_MAX_FLOWS ) );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  beginDispatch/endDispatch:  messages sent in between are written per switch in one batch
+    public void beginDispatch() { mBatcher.beginDispatch(); }
+    public void endDispatch()   { mBatcher.endDispatch(); }
+
+    //---------------------------------------------------------------------------------------------
+    public void removeSwitch( final IOFSwitch ofSwitch )
+    {
+        mBatcher.removeSwitch( ofSwitch.getId() );
+        mFlowCache.removeSwitch( ofSwitch.getId() );
+        if( mDropFlows != null ) mDropFlows.removeSwitch( ofSwitch.getId() );
+        FlowTableMgr.getInstance().removeSwitch( ofSwitch.getId() );
     }
 
+    //---------------------------------------------------------------------------------------------
+    public OFMessageBatcher.WriteStats getWriteStats() { return mBatcher.getStats(); }
+
+    //---------------------------------------------------------------------------------------------
+    public DestinationFlowCache.FlowCacheStats getFlowCacheStats() { return mFlowCache.getStats(); }
+
+    //---------------------------------------------------------------------------------------------
+    public OutputPortCache.PortCacheStats getPortCacheStats() { return mPortCache.getStats(); }
+
+    //---------------------------------------------------------------------------------------------
+    //  invalidateOutputPorts:  resolve output ports again after a topology change or device move
+    public void invalidateOutputPorts() { mPortCache.invalidate(); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Start an operation; it is kept for status queries until
+     * MAX_FLOW_OPERATIONS newer ones were started.
+     * @param description - what the operation does
+     * @return operation to pass to {@link #deleteIPFlowOnAllConnectedSwitches}
+     *         and seal when all its messages are queued
+     */
+    public FlowOperation newFlowOperation( final String description )
+    {
+        final FlowOperation op = new FlowOperation( description );
+        synchronized( mOperations ) { mOperations.put( op.getId(), op ); }
+        return op;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public FlowOperation getFlowOperation( final long id )
+    {
+        synchronized( mOperations ) { return mOperations.get( id ); }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return recent flow operations, newest first
+     */
+    public List<FlowOperation> getFlowOperations()
+    {
+        final List<FlowOperation> list;
+        synchronized( mOperations ) { list = new ArrayList<FlowOperation>( mOperations.values() ); }
+        Collections.reverse( list );
+        return list;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Handle a FLOW_REMOVED message; destination flows are created with the
+     * SEND_FLOW_REM flag so that the flow cache sees them expire.
+     * @param ofSwitch    - OpenFlow switch
+     * @param flowRemoved - message
+     */
+    public void flowRemoved( final IOFSwitch ofSwitch, final OFFlowRemoved flowRemoved )
+    {
+        final OFMatch match = flowRemoved.getMatch();
+        if( !isDataFlow( flowRemoved.getPriority(), match ) ) return;
+
+        LOG.trace( "Flow to {} removed from switch {}, reason {}",
+                   new Object[] { IPv4.fromIPv4Address( match.getNetworkDestination() ),
+                                  ofSwitch.getStringId(), flowRemoved.getReason() } );
+
+        mFlowCache.flowRemoved( ofSwitch.getId(), match.getNetworkDestination(),
+                                flowRemoved.getReason() == OFFlowRemoved.OFFlowRemovedReason.OFPRR_IDLE_TIMEOUT );
+        FlowTableMgr.getInstance().flowRemoved( ofSwitch.getId(), match.getNetworkDestination() );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  isDataFlow:  true for the per-destination flows created for forwarded packets
+    static boolean isDataFlow( final short priority, final OFMatch match )
+    {
+        return priority == PRIORITY_IP_FLOWS && match.getWildcards() == DATA_FLOW_WILDCARDS;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Delete destination flows chosen for eviction by the FlowTableMgr.
+     * @param ofSwitch - OpenFlow switch
+     * @param victims  - IPv4 destinations of the flows
+     */
+    public void evictDataFlows( final IOFSwitch ofSwitch, final int[] victims )
+    {
+        if( victims.length == 0 ) return;
+        LOG.debug( "Evicting {} destination flows from switch {}", victims.length, ofSwitch.getStringId() );
+
+        final OFMatch match = new OFMatch();
+        match.setWildcards( DATA_FLOW_WILDCARDS ).setDataLayerType( Ethernet.TYPE_IPv4 );
+
+        for( final int nwDst : victims )
+        {
+            match.setNetworkDestination( nwDst );
+            sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_DELETE_STRICT, match, NO_ACTIONS,
+                                PRIORITY_IP_FLOWS, IP_FLOW_IDLE_TIMEOUT, BUFFER_ID_NONE );
+            mFlowCache.flowRemoved( ofSwitch.getId(), nwDst, false );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  forgetDataFlow:  a destination flow found missing from the switch
+    void forgetDataFlow( final long dpid, final int nwDst ) { mFlowCache.flowRemoved( dpid, nwDst, false ); }
+
     //---------------------------------------------------------------------------------------------
     public void setDefaultFlows(final IOFSwitch ofSwitch)
     {
@@ -101,6 +294,64 @@ public class FlowMgr
         setArpFlow(ofSwitch);
         //!!!test
 //        setNormalFlow(ofSwitch);
+        syncDropFlows(ofSwitch);
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Bring the proactive drop flows of all connected switches in line with
+     * the current IPv4 blacklist. Does nothing in reactive mode.
+     */
+    public void syncDropFlows()
+    {
+        if( mDropFlows == null ) return;
+
+        for( final IOFSwitch ofSwitch : mProvider.getSwitches().values() ) syncDropFlows( ofSwitch );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void syncDropFlows( final IOFSwitch ofSwitch )
+    {
+        if( mDropFlows == null ) return;
+
+        final List<Ipv4Prefix> toAdd    = new ArrayList<Ipv4Prefix>();
+        final List<Ipv4Prefix> toRemove = new ArrayList<Ipv4Prefix>();
+
+        synchronized( mDropFlows )
+        {
+            //---- Read under the lock, so the last sync always installs the latest blacklist
+            final BlacklistSnapshot snapshot = BlacklistMgr.getInstance().getSnapshot();
+            final boolean           overflow = mDropFlows.sync( ofSwitch.getId(), snapshot, toAdd, toRemove );
+
+            for( final Ipv4Prefix prefix : toRemove )
+            {
+                sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_DELETE_STRICT, dropFlowMatch( prefix ), NO_ACTIONS,
+                                    PRIORITY_DROP_FLOWS, NO_IDLE_TIMEOUT, BUFFER_ID_NONE );
+            }
+            for( final Ipv4Prefix prefix : toAdd )
+            {
+                sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_ADD, dropFlowMatch( prefix ), NO_ACTIONS,
+                                    PRIORITY_DROP_FLOWS, NO_IDLE_TIMEOUT, BUFFER_ID_NONE );
+            }
+
+            FlowTableMgr.getInstance().setDropFlows( ofSwitch.getId(), mDropFlows.getInstalled( ofSwitch.getId() ) );
+
+            if( overflow && !toAdd.isEmpty() )
+            {
+                LOG.warn( "Blacklist needs {} drop flows, switch {} has room for {}; the rest are dropped by the controller.",
+                          new Object[] { mDropFlows.getNeeded(), ofSwitch.getStringId(), mDropFlows.getInstalled( ofSwitch.getId() ) } );
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static OFMatch dropFlowMatch( final Ipv4Prefix prefix )
+    {
+        final OFMatch match = new OFMatch();
+        match.setWildcards( DATA_FLOW_WILDCARDS | ( ( 32 - prefix.getLength() ) << OFMatch.OFPFW_NW_DST_SHIFT ) )
+             .setDataLayerType( Ethernet.TYPE_IPv4 )
+             .setNetworkDestination( prefix.getAddress() );
+        return match;
     }
     //---------------------------------------------------------------------------------------------
     public void sendPacketOut( final IOFSwitch         ofSwitch,
@@ -141,17 +392,8 @@ public class FlowMgr
         }
         packetOut.setLength(poLength);
 
-        try
-        {
-            LOG.trace( "Writing PacketOut switch={} packet-out={}", new Object[] { ofSwitch, packetOut } );
-
-            ofSwitch.write(packetOut, cntx);
-            ofSwitch.flush();
-        }
-        catch (final IOException e)
-        {
-            LOG.error("Failure writing PacketOut switch={} packet-out={}", new Object[] { ofSwitch, packetOut }, e);
-        }
+        LOG.trace( "Writing PacketOut switch={} packet-out={}", new Object[] { ofSwitch, packetOut } );
+        mBatcher.write( ofSwitch, packetOut );
     }
 
     //---------------------------------------------------------------------------------------------
@@ -161,60 +403,167 @@ public class FlowMgr
     {
         LOG.debug("Drop packet");
 
-        final List<OFAction> flActions = new ArrayList<OFAction>();
-        sendPacketOut( ofSwitch, cntx, packetIn, flActions );
+        sendPacketOut( ofSwitch, cntx, packetIn, NO_ACTIONS );
     }
 
     //---------------------------------------------------------------------------------------------
+    /**
+     * Install a flow for the destination of a forwarded packet.
+     * @param match   - match loaded from the PacketIn; its wildcards are overwritten
+     * @param actions - actions of the flow
+     */
     public void createDataStreamFlow( final IOFSwitch         ofSwitch,
                                       final FloodlightContext context,
                                       final OFPacketIn        packetIn,
+                                      final OFMatch           match,
                                              List<OFAction>   actions)
     {
-        final OFMatch match = new OFMatch();
-        match.loadFromPacket(packetIn.getPacketData(), packetIn.getInPort());
-
         //---- Ignore packet if it is an ARP, or has not source/dest, or is not IPv4.
         if (match.getDataLayerType()      == Ethernet.TYPE_ARP)   return;
         if( match.getNetworkDestination() == 0 )                  return;
         if( match.getNetworkSource()      == 0 )                  return;
         if( match.getDataLayerType()      != Ethernet.TYPE_IPv4 ) return;
 
+        //---- Skip the flow-mod if one for this destination is already on its way to the switch
+        if( !mFlowCache.shouldInstall( ofSwitch.getId(), match.getNetworkDestination() ) ) return;
+
+        //---- Make room first if the flow would fill the switch's table
+        evictDataFlows( ofSwitch, FlowTableMgr.getInstance().reserve( ofSwitch.getId(), match.getNetworkDestination() ) );
+
         //---- Send the flow modifications for this specific IP destination address
-        match.setWildcards(allExclude( OFMatch.OFPFW_NW_DST_MASK, OFMatch.OFPFW_DL_TYPE) );
+        match.setWildcards( DATA_FLOW_WILDCARDS );
         sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_ADD, match, actions,
-                            PRIORITY_IP_FLOWS, IP_FLOW_IDLE_TIMEOUT, packetIn.getBufferId() );
+                            PRIORITY_IP_FLOWS, IP_FLOW_IDLE_TIMEOUT, packetIn.getBufferId(),
+                            OFFlowMod.OFPFF_SEND_FLOW_REM );
+
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Drop all packets from a source MAC address on a switch for a while,
+     * e.g. when the source sends more PacketIns than its rate limit allows.
+     * @param ofSwitch - OpenFlow switch
+     * @param mac      - source MAC address
+     * @param seconds  - hard timeout of the drop flow
+     */
+    public void installSourceDropFlow( final IOFSwitch ofSwitch, final long mac, final int seconds )
+    {
+        final OFMatch match = new OFMatch();
+        match.setWildcards( OFPFW_ALL & ~OFMatch.OFPFW_DL_SRC )
+             .setDataLayerSource( MACAddress.valueOf( mac ).toBytes() );
 
+        sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_ADD, match, NO_ACTIONS,
+                            PRIORITY_RATE_LIMIT, NO_IDLE_TIMEOUT, (short) Math.min( seconds, Short.MAX_VALUE ),
+                            BUFFER_ID_NONE, (short) 0, null );
     }
 
     //---------------------------------------------------------------------------------------------
-    public void deleteIPFlowOnAllConnectedSwitches(InetAddress ipAddr)
+    /**
+     * Drop all IPv4 packets from a source address on a switch for a while,
+     * e.g. when the source sends more PacketIns than its rate limit allows.
+     * @param ofSwitch - OpenFlow switch
+     * @param ipAddr   - source IPv4 address
+     * @param seconds  - hard timeout of the drop flow
+     */
+    public void installIpv4SourceDropFlow( final IOFSwitch ofSwitch, final int ipAddr, final int seconds )
     {
         final OFMatch match = new OFMatch();
+        match.setWildcards( allExclude( OFMatch.OFPFW_NW_SRC_MASK, OFPFW_DL_TYPE ) )
+             .setDataLayerType( Ethernet.TYPE_IPv4 )
+             .setNetworkSource( ipAddr );
+
+        sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_ADD, match, NO_ACTIONS,
+                            PRIORITY_RATE_LIMIT, NO_IDLE_TIMEOUT, (short) Math.min( seconds, Short.MAX_VALUE ),
+                            BUFFER_ID_NONE, (short) 0, null );
+    }
 
-        match.setWildcards( allExclude( OFMatch.OFPFW_NW_DST_MASK, OFMatch.OFPFW_DL_TYPE ) )
-                           .setDataLayerType(Ethernet.TYPE_IPv4)
-                           .setNetworkDestination( ByteBuffer.wrap( ipAddr.getAddress() ).getInt() );
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Queue the deletion of flows within a batch of prefixes on every
+     * connected switch. Prefixes within another prefix of the batch are
+     * left to that prefix's delete, and the flow tables are cleaned in one
+     * pass per batch. The deletes are written by the writer threads,
+     * batched per switch with the other pending messages; the operation
+     * reports their progress.
+     * @param prefixes - newly blacklisted hosts and prefixes
+     * @param op       - operation the deletes are counted in
+     */
+    public void deleteIPFlowsOnAllConnectedSwitches( final List<Ipv4Prefix> prefixes, final FlowOperation op )
+    {
+        //---- Shortest first, so a prefix covering others of the batch is seen before them
+        final List<Ipv4Prefix> sorted = new ArrayList<Ipv4Prefix>( prefixes );
+        Collections.sort( sorted, new Comparator<Ipv4Prefix>()
+        {
+            public int compare( final Ipv4Prefix a, final Ipv4Prefix b ) { return a.getLength() - b.getLength(); }
+        } );
 
-        Map<Long,IOFSwitch> switches = mProvider.getSwitches();
-        for( Map.Entry<Long,IOFSwitch> ofSwitchEntry : switches.entrySet() )
+        final Ipv4PrefixSet    cover   = new Ipv4PrefixSet( sorted.size() );
+        final List<Ipv4Prefix> deletes = new ArrayList<Ipv4Prefix>();
+        for( final Ipv4Prefix prefix : sorted )
         {
-            IOFSwitch ofSwitch = ofSwitchEntry.getValue();
-            deleteFlow(ofSwitch, match);
+            if( prefix.getLength() < Ipv4Prefix.MIN_LENGTH )
+            {
+                LOG.error( "Not deleting flows to {}, prefixes shorter than /{} are not accepted.", prefix, Ipv4Prefix.MIN_LENGTH );
+                continue;
+            }
+            if( cover.covers( prefix ) ) continue;
+
+            cover.add( prefix );
+            deletes.add( prefix );
         }
+        if( deletes.isEmpty() ) return;
 
-    }
+        if( mDropFlows == null )
+        {
+            deleteIPFlows( deletes, cover, op );
+            FlowTableMgr.getInstance().removePrefixes( cover );
+            return;
+        }
 
+        //---- The non-strict deletes remove drop flows within the prefixes too
+        synchronized( mDropFlows )
+        {
+            deleteIPFlows( deletes, cover, op );
+            FlowTableMgr.getInstance().removePrefixes( cover );
+            mDropFlows.forgetCovered( cover );
+            for( final IOFSwitch ofSwitch : mProvider.getSwitches().values() )
+            {
+                FlowTableMgr.getInstance().setDropFlows( ofSwitch.getId(), mDropFlows.getInstalled( ofSwitch.getId() ) );
+            }
+        }
+    }
 
     //---------------------------------------------------------------------------------------------
-    private void deleteFlow( final IOFSwitch ofSwitch,
-                             final OFMatch   match )
+    private void deleteIPFlows( final List<Ipv4Prefix> deletes, final Ipv4PrefixSet cover, final FlowOperation op )
     {
+        final Collection<IOFSwitch> switches = mProvider.getSwitches().values();
+        for( final Ipv4Prefix prefix : deletes )
+        {
+            final OFMatch match = new OFMatch();
 
-        final List<OFAction> actions = new ArrayList<OFAction>();
+            //---- Non-strict delete with a masked destination removes every flow within the prefix.
+            //     OpenFlow 1.0 deletes can not filter on cookie or priority; the control flows
+            //     wildcard nw_dst, so a delete that matches at least /MIN_LENGTH never selects them.
+            int wildcards = DATA_FLOW_WILDCARDS | ( ( 32 - prefix.getLength() ) << OFMatch.OFPFW_NW_DST_SHIFT );
 
-        sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_DELETE, match, actions,
-                            PRIORITY_IP_FLOWS, IP_FLOW_IDLE_TIMEOUT, BUFFER_ID_NONE);
+            match.setWildcards( wildcards )
+                               .setDataLayerType(Ethernet.TYPE_IPv4)
+                               .setNetworkDestination( prefix.getAddress() );
+
+            for( final IOFSwitch ofSwitch : switches ) deleteFlow( ofSwitch, match, op );
+        }
+        mFlowCache.removePrefixes( cover );
+    }
+
+
+    //---------------------------------------------------------------------------------------------
+    private void deleteFlow( final IOFSwitch     ofSwitch,
+                             final OFMatch       match,
+                             final FlowOperation op )
+    {
+        op.expect( ofSwitch.getId() );
+        sendFlowModMessage( ofSwitch, OFFlowMod.OFPFC_DELETE, match, NO_ACTIONS,
+                            PRIORITY_IP_FLOWS, IP_FLOW_IDLE_TIMEOUT, NO_HARD_TIMEOUT, BUFFER_ID_NONE, (short) 0, op );
     }
 
 
@@ -235,9 +584,6 @@ public class FlowMgr
                             final FloodlightContext context,
                             final OFPacketIn packetIn)
     {
-        // Create action flood/all
-        final List<OFAction> actions = new ArrayList<OFAction>();
-
         if (mTopology.isIncomingBroadcastAllowed(ofSwitch.getId(),
                                                  packetIn.getInPort()) == false)
         {
@@ -250,16 +596,15 @@ public class FlowMgr
             return;
         }
 
+        // Action flood/all
         if (ofSwitch.hasAttribute(IOFSwitch.PROP_SUPPORTS_OFPP_FLOOD))
         {
-            actions.add(new OFActionOutput(OFPort.OFPP_FLOOD.getValue()));
+            sendPacketOut(ofSwitch, context, packetIn, FLOOD_ACTIONS);
         }
         else
         {
-            actions.add(new OFActionOutput(OFPort.OFPP_ALL.getValue()));
+            sendPacketOut(ofSwitch, context, packetIn, ALL_ACTIONS);
         }
-
-        sendPacketOut(ofSwitch, context, packetIn, actions);
     }
 
     //---------------------------------------------------------------------------------------------
@@ -304,19 +649,44 @@ public class FlowMgr
             return OFPort.OFPP_FLOOD.getValue();  // Flood the packet
         }
 
+        final long dpid = ofSwitch.getId();
+        final long mac  = dstDevice.getMACAddress();
+
+        short port = mPortCache.get( dpid, mac );
+        if( port == OutputPortCache.NO_ENTRY )
+        {
+            final long generation = mPortCache.getGeneration();
+            port = resolveOutputPort( ofSwitch, dstDevice );
+            mPortCache.put( dpid, mac, port, generation );
+        }
+
+        if( port == packetIn.getInPort() )
+        {
+            LOG.trace( "Both source and destination are on the same " +
+                       "switch/port {}/{}, Action = NOP", ofSwitch.toString(), packetIn.getInPort() );
+            return OFPort.OFPP_NONE.getValue();  // Drop the packet
+        }
+
+        return port;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  resolveOutputPort:  port of the destination on the switch; flood if it is on another island,
+    //                      none if it is elsewhere on this island or the switch has no island
+    private short resolveOutputPort( final IOFSwitch ofSwitch,
+                                     final IDevice   dstDevice )
+    {
         final Long srcIsland = mTopology.getL2DomainId(ofSwitch.getId());
         if (srcIsland == null)
         {
-            LOG.error("No openflow island found for source {}/{}",
-                      HexString.toHexString(ofSwitch.getId()), packetIn.getInPort());
+            LOG.error("No openflow island found for source {}",
+                      HexString.toHexString(ofSwitch.getId()));
             return OFPort.OFPP_NONE.getValue();   // Drop the packet
 
         }
 
         // Validate that we have a destination known on the same island
-        // Validate that the source and destination are not on the same switch port
         boolean sameIsland = false;
-        boolean sameInterface = false;
         short dstPort = 0;
         for (final SwitchPort dstDap : dstDevice.getAttachmentPoints())
         {
@@ -325,11 +695,7 @@ public class FlowMgr
             if( (dstIsland != null) && dstIsland.equals( srcIsland ) )
             {
                 sameIsland = true;
-                if( ofSwitch.getId() == dstSwDpid )
-                {
-                    if( packetIn.getInPort() == dstDap.getPort() ) sameInterface = true;
-                    dstPort = (short) dstDap.getPort();
-                }
+                if( ofSwitch.getId() == dstSwDpid ) dstPort = (short) dstDap.getPort();
                 break;
             }
         }
@@ -338,13 +704,6 @@ public class FlowMgr
             LOG.trace( "No first hop island found for destination " + "device {}, Action = flooding", dstDevice );
             return OFPort.OFPP_FLOOD.getValue(); // Flood since we don't know the dst device
         }
-        if( sameInterface )
-        {
-            LOG.trace( "Both source and destination are on the same " +
-                       "switch/port {}/{}, Action = NOP", ofSwitch.toString(), packetIn.getInPort() );
-            return OFPort.OFPP_NONE.getValue();  // Drop the packet
-        }
-
         if( dstPort == 0 )
         {
             return OFPort.OFPP_NONE.getValue();  // Flood the packet
@@ -370,28 +729,54 @@ public class FlowMgr
                                      final short          priority,
                                      final short          idleTimeout,
                                      final int            bufferId )
+    {
+        sendFlowModMessage( ofSwitch, command, ofMatch, actions, priority, idleTimeout, NO_HARD_TIMEOUT, bufferId, (short) 0, null );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void sendFlowModMessage( final IOFSwitch      ofSwitch,
+                                     final short          command,
+                                     final OFMatch        ofMatch,
+                                     final List<OFAction> actions,
+                                     final short          priority,
+                                     final short          idleTimeout,
+                                     final int            bufferId,
+                                     final short          flags )
+    {
+        sendFlowModMessage( ofSwitch, command, ofMatch, actions, priority, idleTimeout, NO_HARD_TIMEOUT, bufferId, flags, null );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void sendFlowModMessage( final IOFSwitch      ofSwitch,
+                                     final short          command,
+                                     final OFMatch        ofMatch,
+                                     final List<OFAction> actions,
+                                     final short          priority,
+                                     final short          idleTimeout,
+                                     final short          hardTimeout,
+                                     final int            bufferId,
+                                     final short          flags,
+                                     final FlowOperation  op )
     {
         if (mProvider == null)
         {
             LOG.error("FlowMgr is not initialized yet.");
+            if( op != null ) op.messageWritten( false );
             return;
         }
 
         final OFFlowMod ofm = (OFFlowMod) mProvider.getOFMessageFactory().getMessage(OFType.FLOW_MOD);
         ofm.setCommand(     command)
            .setIdleTimeout( idleTimeout )
+           .setHardTimeout( hardTimeout )
            .setPriority(    priority )
            .setMatch(       ofMatch.clone() )
            .setBufferId(    bufferId )
            .setOutPort(     OFPort.OFPP_NONE )
            .setActions(     actions )
+           .setFlags(       flags )
            .setXid(         ofSwitch.getNextTransactionId() );
 
-        /* If application need to be notified about removed/expired flows, for
-         * example to collect flow statistics, then setup SEND_FLOW_REM flag.
-         * .setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM)
-         */
-
         /*
          * According to Rob Sherwood comment:
          * https://groups.google.com/a/openflowhub
@@ -408,17 +793,8 @@ public class FlowMgr
 
         ofm.setLengthU(OFFlowMod.MINIMUM_LENGTH + actionsLength);
 
-        try
-        {
-            ofSwitch.write(ofm, null);
-            ofSwitch.flush();
-
-            LOG.info("Flow {} is set on switch {}", ofm, ofSwitch.getId());
-        }
-        catch (final IOException e)
-        {
-            LOG.error("Unable to set flow " + ofm + " on switch {} err: {}", ofSwitch.getId(), e);
-        }
+        mBatcher.write( ofSwitch, ofm, op );
+        LOG.info("Flow {} is queued for switch {}", ofm, ofSwitch.getId());
     }
 
     //---------------------------------------------------------------------------------------------
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+/**
+ * Completion handle of flow-mods sent to many switches, e.g. the deletes
+ * of a newly blacklisted prefix on every connected switch.
+ *
+ * Every queued message is counted with {@link #expect} and reported by
+ * the writer once its batch was written to the switch. The operation is
+ * done when it is sealed and every expected message was reported.
+ */
+public class FlowOperation
+{
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long           mId;
+    private final String         mDescription;
+    private final long           mCreatedMillis;
+    private final Set<Long>      mSwitches = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+    private final AtomicInteger  mExpected = new AtomicInteger();
+    private final AtomicInteger  mWritten  = new AtomicInteger();
+    private final AtomicInteger  mFailed   = new AtomicInteger();
+    private final CountDownLatch mDone     = new CountDownLatch( 1 );
+    private volatile boolean     mSealed;
+    private volatile long        mDoneMillis;
+
+    //---------------------------------------------------------------------------------------------
+    FlowOperation( final String description )
+    {
+        mId            = NEXT_ID.incrementAndGet();
+        mDescription   = description;
+        mCreatedMillis = System.currentTimeMillis();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  expect:  count a message for a switch, before it is queued
+    void expect( final long dpid )
+    {
+        mSwitches.add( dpid );
+        mExpected.incrementAndGet();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  messageWritten:  report a message of the operation as written or failed
+    void messageWritten( final boolean success )
+    {
+        if( success ) mWritten.incrementAndGet();
+        else          mFailed.incrementAndGet();
+        checkDone();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  seal:  no more messages are queued for the operation
+    void seal()
+    {
+        mSealed = true;
+        checkDone();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void checkDone()
+    {
+        if( !mSealed || mWritten.get() + mFailed.get() < mExpected.get() ) return;
+
+        synchronized( this )
+        {
+            if( mDoneMillis != 0 ) return;
+            mDoneMillis = System.currentTimeMillis();
+        }
+        mDone.countDown();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Wait until every message of the operation was written.
+     * @param timeout - maximum time to wait
+     * @param unit    - unit of the timeout
+     * @return true if the operation is done
+     */
+    public boolean await( final long timeout, final TimeUnit unit ) throws InterruptedException
+    {
+        return mDone.await( timeout, unit );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public boolean isDone() { return mDoneMillis != 0; }
+
+    @JsonProperty( "id" )          public long   getId()          { return mId; }
+    @JsonProperty( "description" ) public String getDescription() { return mDescription; }
+    @JsonProperty( "created" )     public long   getCreated()     { return mCreatedMillis; }
+    @JsonProperty( "switches" )    public int    getSwitches()    { return mSwitches.size(); }
+    @JsonProperty( "messages" )    public int    getMessages()    { return mExpected.get(); }
+    @JsonProperty( "written" )     public int    getWritten()     { return mWritten.get(); }
+    @JsonProperty( "failed" )      public int    getFailed()      { return mFailed.get(); }
+
+    /**
+     * @return "pending", "done", or "failed" if any message could not be written
+     */
+    @JsonProperty( "state" )
+    public String getState()
+    {
+        if( !isDone() ) return "pending";
+        return ( mFailed.get() == 0 ) ? "done" : "failed";
+    }
+
+    /**
+     * @return milliseconds from creation until done, or until now while pending
+     */
+    @JsonProperty( "elapsedMs" )
+    public long getElapsedMs()
+    {
+        final long end = isDone() ? mDoneMillis : System.currentTimeMillis();
+        return end - mCreatedMillis;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPort;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.OFType;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.openflow.protocol.statistics.OFTableStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.utils.IntLongHashMap;
+import com.tallac.blacklist.utils.Ipv4PrefixSet;
+
+/**
+ * The FlowTableMgr class keeps account of the flow table of every switch:
+ * how many entries it holds, how many it can hold, and when each
+ * destination flow last carried traffic.
+ *
+ * Occupancy follows the flows FlowMgr installs and removes, and is
+ * corrected by table and flow statistics polled from every switch. When a
+ * destination flow would take the table above the high water mark, the
+ * least recently used destination flows are deleted down to the low water
+ * mark. Default and drop flows are never evicted. A FLOW_MOD_FAILED /
+ * ALL_TABLES_FULL error lowers the switch's capacity to what it holds.
+ */
+public class FlowTableMgr
+{
+    private static final FlowTableMgr INSTANCE = new FlowTableMgr();
+    private static final Logger       LOG      = LoggerFactory.getLogger(FlowTableMgr.class);
+
+    //---- Configuration parameters: flow table capacity per switch (0 = as reported by the switch)
+    //     and the occupancy percentages that start and stop eviction
+    public static final String CFG_TABLE_CAPACITY         = "flowTableCapacity";
+    public static final int    DEFAULT_TABLE_CAPACITY     = 0;
+    public static final String CFG_HIGH_WATER_PCT         = "flowTableHighWaterPct";
+    public static final int    DEFAULT_HIGH_WATER_PCT     = 90;
+    public static final String CFG_LOW_WATER_PCT          = "flowTableLowWaterPct";
+    public static final int    DEFAULT_LOW_WATER_PCT      = 80;
+    public static final String CFG_STATS_INTERVAL_SEC     = "flowStatsIntervalSec";
+    public static final long   DEFAULT_STATS_INTERVAL_SEC = 30;
+
+    //---- Capacity assumed until a switch reports one
+    private static final int  UNKNOWN_CAPACITY  = 1500;
+
+    //---- DNS query, IP and ARP flows set by FlowMgr.setDefaultFlows
+    private static final int  DEFAULT_FLOWS     = 3;
+
+    private static final long STATS_TIMEOUT_SEC = 10;
+
+    private static final int[] NO_VICTIMS = new int[0];
+
+    private final ConcurrentHashMap<Long, SwitchTable> mTables = new ConcurrentHashMap<Long, SwitchTable>();
+
+    private IFloodlightProviderService mProvider;
+    private ScheduledExecutorService   mScheduler;
+    private int                        mCapacity;
+    private int                        mHighWaterPct;
+    private int                        mLowWaterPct;
+
+    //---------------------------------------------------------------------------------------------
+    //  Flow table of one switch; guarded by its monitor
+    private static class SwitchTable
+    {
+        final IntLongHashMap lastUsed = new IntLongHashMap();   // destination -> millis it last carried traffic
+        final IntLongHashMap packets  = new IntLongHashMap();   // destination -> packet count of the last poll
+
+        int  dropFlows;
+        int  otherFlows       = DEFAULT_FLOWS;                  // flows that are neither destination nor drop flows
+        int  reportedCapacity;                                  // 0 until table statistics arrive
+        int  learnedCapacity;                                   // 0 until the switch reports its table full
+        long reportedActive   = -1;
+        long polledAt         = -1;
+
+        long evictions;
+        long tableFullErrors;
+        long reconciled;
+
+        int occupancy() { return lastUsed.size() + dropFlows + otherFlows; }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private FlowTableMgr()
+    {
+        // private constructor - prevent external instantiation
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static FlowTableMgr getInstance() { return INSTANCE; }
+
+    //---------------------------------------------------------------------------------------------
+    public void init( final FloodlightModuleContext context )
+    {
+        LOG.debug( "Initialize BlackList flow table manager." );
+
+        mProvider     = context.getServiceImpl( IFloodlightProviderService.class );
+        mCapacity     = BlacklistConfig.getInstance().getInt( CFG_TABLE_CAPACITY, DEFAULT_TABLE_CAPACITY );
+        mHighWaterPct = BlacklistConfig.getInstance().getInt( CFG_HIGH_WATER_PCT, DEFAULT_HIGH_WATER_PCT );
+        mLowWaterPct  = Math.min( mHighWaterPct, BlacklistConfig.getInstance().getInt( CFG_LOW_WATER_PCT, DEFAULT_LOW_WATER_PCT ) );
+
+        final long interval = BlacklistConfig.getInstance().getLong( CFG_STATS_INTERVAL_SEC, DEFAULT_STATS_INTERVAL_SEC );
+        if( interval <= 0 ) return;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        mScheduler.scheduleWithFixedDelay( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    pollSwitches();
+                }
+                catch( final Exception e )
+                {
+                    LOG.error( "Unable to poll flow tables. {}", e );
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Account for a destination flow about to be installed.
+     * @param dpid  - switch DPID
+     * @param nwDst - IPv4 destination of the flow
+     * @return destinations whose flows have to be deleted first to stay
+     *         below the high water mark; usually empty
+     */
+    public int[] reserve( final long dpid, final int nwDst )
+    {
+        final SwitchTable table = tableFor( dpid );
+        synchronized( table )
+        {
+            table.lastUsed.put( nwDst, nowMillis() );
+            return ( table.occupancy() > highWater( table ) ) ? evict( table, nwDst ) : NO_VICTIMS;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param dpid  - switch DPID
+     * @param nwDst - IPv4 destination of a removed destination flow
+     */
+    public void flowRemoved( final long dpid, final int nwDst )
+    {
+        final SwitchTable table = mTables.get( dpid );
+        if( table == null ) return;
+
+        synchronized( table )
+        {
+            table.lastUsed.remove( nwDst );
+            table.packets.remove( nwDst );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Forget the destination flows within a set of hosts and prefixes on
+     * every switch, after they were deleted.
+     * @param prefixes - IPv4 hosts and prefixes
+     */
+    public void removePrefixes( final Ipv4PrefixSet prefixes )
+    {
+        for( final SwitchTable table : mTables.values() )
+        {
+            synchronized( table )
+            {
+                table.lastUsed.removeCovered( prefixes );
+                table.packets.removeCovered( prefixes );
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param dpid  - switch DPID
+     * @param count - drop flows now installed on the switch
+     */
+    public void setDropFlows( final long dpid, final int count )
+    {
+        final SwitchTable table = tableFor( dpid );
+        synchronized( table ) { table.dropFlows = count; }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public void removeSwitch( final long dpid ) { mTables.remove( dpid ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Handle an OpenFlow error. A full flow table makes the switch's
+     * capacity what it holds now, and evicts down to the low water mark.
+     * @param ofSwitch - OpenFlow switch
+     * @param error    - error message
+     */
+    public void errorReceived( final IOFSwitch ofSwitch, final OFError error )
+    {
+        if( error.getErrorType() != OFError.OFErrorType.OFPET_FLOW_MOD_FAILED.ordinal() )           return;
+        if( error.getErrorCode() != OFError.OFFlowModFailedCode.OFPFMFC_ALL_TABLES_FULL.ordinal() ) return;
+
+        final SwitchTable table = tableFor( ofSwitch.getId() );
+        final int[]       victims;
+        synchronized( table )
+        {
+            table.tableFullErrors++;
+
+            //---- The failed flow is counted, so the table holds one less
+            final int capacity = Math.max( 1, table.occupancy() - 1 );
+            if( table.learnedCapacity == 0 || capacity < table.learnedCapacity ) table.learnedCapacity = capacity;
+
+            LOG.warn( "Flow table of switch {} is full at {} flows.", ofSwitch.getStringId(), capacity );
+            victims = evict( table, 0 );
+        }
+        FlowMgr.getInstance().evictDataFlows( ofSwitch, victims );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return flow table accounting of every switch
+     */
+    public List<FlowTableStats> getTableStats()
+    {
+        final List<FlowTableStats> list = new ArrayList<FlowTableStats>();
+        for( final Map.Entry<Long, SwitchTable> entry : mTables.entrySet() )
+        {
+            final SwitchTable table = entry.getValue();
+            synchronized( table ) { list.add( new FlowTableStats( entry.getKey(), table, capacity( table ) ) ); }
+        }
+        return list;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  evict:  choose the least recently used destination flows that bring the table to the low
+    //          water mark, and forget them; the caller deletes them from the switch
+    private int[] evict( final SwitchTable table, final int keep )
+    {
+        final int excess = table.occupancy() - lowWater( table );
+        if( excess <= 0 ) return NO_VICTIMS;
+
+        final int[]  keys = table.lastUsed.keys();
+        final long[] used = new long[keys.length];
+        for( int i = 0; i < keys.length; i++ ) used[i] = table.lastUsed.get( keys[i] );
+
+        final int count = Math.min( excess, keys.length );
+        if( count == 0 ) return NO_VICTIMS;
+
+        final long[] sorted = used.clone();
+        Arrays.sort( sorted );
+        final long threshold = sorted[count - 1];
+
+        //---- Flows older than the threshold first, then flows used at the threshold time
+        final int[] victims = new int[count];
+        int         found   = 0;
+        for( int pass = 0; pass < 2; pass++ )
+        {
+            for( int i = 0; i < keys.length && found < count; i++ )
+            {
+                if( keys[i] == keep ) continue;
+                if( ( pass == 0 ) ? used[i] >= threshold : used[i] != threshold ) continue;
+
+                victims[found++] = keys[i];
+                table.lastUsed.remove( keys[i] );
+                table.packets.remove( keys[i] );
+            }
+        }
+        table.evictions += found;
+
+        return ( found == count ) ? victims : Arrays.copyOf( victims, found );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int capacity( final SwitchTable table )
+    {
+        int capacity = ( mCapacity > 0 ) ? mCapacity : ( table.reportedCapacity > 0 ) ? table.reportedCapacity : UNKNOWN_CAPACITY;
+        if( table.learnedCapacity > 0 ) capacity = Math.min( capacity, table.learnedCapacity );
+        return capacity;
+    }
+
+    private int highWater( final SwitchTable table ) { return (int) ( (long) capacity( table ) * mHighWaterPct / 100 ); }
+    private int lowWater(  final SwitchTable table ) { return (int) ( (long) capacity( table ) * mLowWaterPct  / 100 ); }
+
+    //---------------------------------------------------------------------------------------------
+    //  pollSwitches:  request table and IPv4 flow statistics from all switches, then apply the replies
+    private void pollSwitches()
+    {
+        final List<IOFSwitch>                  switches    = new ArrayList<IOFSwitch>();
+        final List<Future<List<OFStatistics>>> tables      = new ArrayList<Future<List<OFStatistics>>>();
+        final List<Future<List<OFStatistics>>> flows       = new ArrayList<Future<List<OFStatistics>>>();
+        final long                             requestedAt = nowMillis();
+
+        for( final IOFSwitch ofSwitch : mProvider.getSwitches().values() )
+        {
+            try
+            {
+                tables.add( ofSwitch.getStatistics( tableStatsRequest() ) );
+                flows.add(  ofSwitch.getStatistics( flowStatsRequest() ) );
+                switches.add( ofSwitch );
+            }
+            catch( final Exception e )
+            {
+                LOG.error( "Unable to request flow statistics from switch {}. {}", ofSwitch.getStringId(), e );
+            }
+        }
+
+        for( int i = 0; i < switches.size(); i++ )
+        {
+            final IOFSwitch ofSwitch = switches.get( i );
+            try
+            {
+                final List<OFStatistics> tableStats = tables.get( i ).get( STATS_TIMEOUT_SEC, TimeUnit.SECONDS );
+                final List<OFStatistics> flowStats  = flows.get( i ).get(  STATS_TIMEOUT_SEC, TimeUnit.SECONDS );
+                if( tableStats == null || flowStats == null ) continue;
+
+                FlowMgr.getInstance().evictDataFlows( ofSwitch, applyStats( ofSwitch, requestedAt, tableStats, flowStats ) );
+            }
+            catch( final Exception e )
+            {
+                LOG.error( "No flow statistics from switch {}. {}", ofSwitch.getStringId(), e );
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int[] applyStats( final IOFSwitch          ofSwitch,
+                              final long               requestedAt,
+                              final List<OFStatistics> tableStats,
+                              final List<OFStatistics> flowStats )
+    {
+        long maxEntries = 0;
+        long active     = 0;
+        for( final OFStatistics stats : tableStats )
+        {
+            if( !( stats instanceof OFTableStatistics ) ) continue;
+            maxEntries += ( (OFTableStatistics) stats ).getMaximumEntries() & 0xffffffffL;
+            active     += ( (OFTableStatistics) stats ).getActiveCount()    & 0xffffffffL;
+        }
+
+        final SwitchTable    table = tableFor( ofSwitch.getId() );
+        final IntLongHashMap seen  = new IntLongHashMap();
+        final long           now   = nowMillis();
+        int                  data  = 0;
+        int                  drop  = 0;
+
+        synchronized( table )
+        {
+            //---- Destination flows that carried packets since the last poll are in use
+            for( final OFStatistics stats : flowStats )
+            {
+                if( !( stats instanceof OFFlowStatisticsReply ) ) continue;
+
+                final OFFlowStatisticsReply flow = (OFFlowStatisticsReply) stats;
+                if( flow.getPriority() == FlowMgr.PRIORITY_DROP_FLOWS ) drop++;
+                if( !FlowMgr.isDataFlow( flow.getPriority(), flow.getMatch() ) ) continue;
+
+                final int nwDst = flow.getMatch().getNetworkDestination();
+                if( nwDst == 0 ) continue;
+                data++;
+                seen.put( nwDst, 1 );
+
+                final long previous = table.packets.put( nwDst, flow.getPacketCount() );
+                if( previous == IntLongHashMap.NO_VALUE || flow.getPacketCount() > previous ) table.lastUsed.put( nwDst, now );
+            }
+
+            //---- Tracked flows last used before the request and missing from the reply are gone (missed FLOW_REMOVED)
+            for( final int nwDst : table.lastUsed.keys() )
+            {
+                if( seen.get( nwDst ) != IntLongHashMap.NO_VALUE || table.lastUsed.get( nwDst ) >= requestedAt ) continue;
+
+                table.lastUsed.remove( nwDst );
+                table.packets.remove( nwDst );
+                table.reconciled++;
+                FlowMgr.getInstance().forgetDataFlow( ofSwitch.getId(), nwDst );
+            }
+
+            if( maxEntries > 0 ) table.reportedCapacity = (int) Math.min( Integer.MAX_VALUE, maxEntries );
+            if( active > 0 )
+            {
+                table.reportedActive = active;
+                table.otherFlows     = (int) Math.max( 0, active - data - drop );
+            }
+            table.polledAt = now;
+
+            return ( table.occupancy() > highWater( table ) ) ? evict( table, 0 ) : NO_VICTIMS;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private OFStatisticsRequest tableStatsRequest()
+    {
+        final OFStatisticsRequest request = (OFStatisticsRequest) mProvider.getOFMessageFactory().getMessage( OFType.STATS_REQUEST );
+        request.setStatisticType( OFStatisticsType.TABLE );
+        request.setLengthU( OFStatisticsRequest.MINIMUM_LENGTH );
+        return request;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private OFStatisticsRequest flowStatsRequest()
+    {
+        final OFFlowStatisticsRequest flows = new OFFlowStatisticsRequest();
+        flows.setMatch( new OFMatch().setWildcards( OFMatch.OFPFW_ALL & ~OFMatch.OFPFW_DL_TYPE ).setDataLayerType( Ethernet.TYPE_IPv4 ) );
+        flows.setTableId( (byte) 0xff );
+        flows.setOutPort( OFPort.OFPP_NONE.getValue() );
+
+        final OFStatisticsRequest request = (OFStatisticsRequest) mProvider.getOFMessageFactory().getMessage( OFType.STATS_REQUEST );
+        request.setStatisticType( OFStatisticsType.FLOW );
+        request.setStatistics( Collections.singletonList( flows ) );
+        request.setLengthU( OFStatisticsRequest.MINIMUM_LENGTH + flows.getLength() );
+        return request;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private SwitchTable tableFor( final long dpid )
+    {
+        final Long  key   = dpid;
+        SwitchTable table = mTables.get( key );
+        if( table == null )
+        {
+            final SwitchTable created = new SwitchTable();
+            table = mTables.putIfAbsent( key, created );
+            if( table == null ) table = created;
+        }
+        return table;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static long nowMillis() { return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time flow table accounting of one switch.
+     */
+    public static class FlowTableStats
+    {
+        private final String mDpid;
+        private final int    mCapacity;
+        private final int    mFlows;
+        private final int    mDataFlows;
+        private final int    mDropFlows;
+        private final int    mOtherFlows;
+        private final long   mReportedFlows;
+        private final long   mEvictions;
+        private final long   mTableFullErrors;
+        private final long   mReconciled;
+        private final double mLastPollAgeSec;
+
+        FlowTableStats( final long dpid, final SwitchTable table, final int capacity )
+        {
+            mDpid            = Long.toHexString( dpid );
+            mCapacity        = capacity;
+            mFlows           = table.occupancy();
+            mDataFlows       = table.lastUsed.size();
+            mDropFlows       = table.dropFlows;
+            mOtherFlows      = table.otherFlows;
+            mReportedFlows   = table.reportedActive;
+            mEvictions       = table.evictions;
+            mTableFullErrors = table.tableFullErrors;
+            mReconciled      = table.reconciled;
+            mLastPollAgeSec  = ( table.polledAt < 0 ) ? -1 : ( nowMillis() - table.polledAt ) / 1000.0;
+        }
+
+        @JsonProperty( "dpid" )            public String getDpid()            { return mDpid; }
+        @JsonProperty( "capacity" )        public int    getCapacity()        { return mCapacity; }
+
+        /**
+         * @return estimated flows on the switch
+         */
+        @JsonProperty( "flows" )           public int    getFlows()           { return mFlows; }
+
+        @JsonProperty( "dataFlows" )       public int    getDataFlows()       { return mDataFlows; }
+        @JsonProperty( "dropFlows" )       public int    getDropFlows()       { return mDropFlows; }
+        @JsonProperty( "otherFlows" )      public int    getOtherFlows()      { return mOtherFlows; }
+
+        /**
+         * @return active flows in the last table statistics, -1 before the first poll
+         */
+        @JsonProperty( "reportedFlows" )   public long   getReportedFlows()   { return mReportedFlows; }
+
+        @JsonProperty( "evictions" )       public long   getEvictions()       { return mEvictions; }
+        @JsonProperty( "tableFullErrors" ) public long   getTableFullErrors() { return mTableFullErrors; }
+
+        /**
+         * @return tracked destination flows found missing by a poll
+         */
+        @JsonProperty( "reconciled" )      public long   getReconciled()      { return mReconciled; }
+        @JsonProperty( "lastPollAgeSec" )  public double getLastPollAgeSec()  { return mLastPollAgeSec; }
+
+        /**
+         * @return flows / capacity; eviction starts at the high water mark
+         */
+        @JsonProperty( "pressure" )
+        public double getPressure() { return ( mCapacity == 0 ) ? 0 : (double) mFlows / mCapacity; }
+    }
+}
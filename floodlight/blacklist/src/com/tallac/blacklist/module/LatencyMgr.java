@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.utils.LatencyHistogram;
+
+/**
+ * The LatencyMgr class keeps histograms of the time PacketIn processing
+ * spends in each stage, and logs their percentiles periodically.
+ */
+public class LatencyMgr
+{
+    private static final LatencyMgr INSTANCE = new LatencyMgr();
+    private static final Logger     LOG      = LoggerFactory.getLogger(LatencyMgr.class);
+
+    //---- Configuration parameter: seconds between latency log lines, 0 disables them
+    public static final String CFG_DUMP_INTERVAL_SEC     = "latencyDumpIntervalSec";
+    public static final long   DEFAULT_DUMP_INTERVAL_SEC = 60;
+
+    //---------------------------------------------------------------------------------------------
+    public enum Stage
+    {
+        MATCH_LOAD,     // OFMatch.loadFromPacket
+        IPV4_LOOKUP,    // IPv4 blacklist check
+        DNS_PARSE,      // DNS question parsing
+        DNS_LOOKUP,     // DNS blacklist check of all questions
+        OUTPUT_PORT,    // output port resolution
+        FLOW_SETUP,     // building and queueing the flow-mod and packet-out
+        WRITE,          // writing the queued messages to the switch
+        QUEUE,          // waiting for a PacketIn worker, with packetInWorkers set
+        TOTAL           // whole PacketIn, including the stages above
+    }
+
+    private final LatencyHistogram[]       mHistograms;
+    private final ScheduledExecutorService mScheduler;
+
+    //---------------------------------------------------------------------------------------------
+    private LatencyMgr()
+    {
+        // private constructor - prevent external instantiation
+        mHistograms = new LatencyHistogram[Stage.values().length];
+        for( int i = 0; i < mHistograms.length; i++ ) mHistograms[i] = new LatencyHistogram();
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static LatencyMgr getInstance() { return INSTANCE; }
+
+    //---------------------------------------------------------------------------------------------
+    public void init( final FloodlightModuleContext context )
+    {
+        final long interval = BlacklistConfig.getInstance().getLong( CFG_DUMP_INTERVAL_SEC, DEFAULT_DUMP_INTERVAL_SEC );
+        if( interval <= 0 ) return;
+
+        mScheduler.scheduleAtFixedRate( new Runnable()
+        {
+            private LatencyHistogram.Snapshot[] mLast = snapshots();
+
+            public void run()
+            {
+                final LatencyHistogram.Snapshot[] now = snapshots();
+                final StringBuilder               msg = new StringBuilder( "PacketIn latency (us, last interval):" );
+
+                for( final Stage stage : Stage.values() )
+                {
+                    final LatencyHistogram.Snapshot s = now[stage.ordinal()].minus( mLast[stage.ordinal()] );
+                    if( s.getCount() == 0 ) continue;
+
+                    msg.append( "\n  " ).append( stage ).append( ": count=" ).append( s.getCount() )
+                       .append( " p50=" ).append( micros( s.getPercentile( 50 ) ) )
+                       .append( " p99=" ).append( micros( s.getPercentile( 99 ) ) )
+                       .append( " p999=" ).append( micros( s.getPercentile( 99.9 ) ) )
+                       .append( " max=" ).append( micros( s.getMax() ) );
+                }
+                mLast = now;
+
+                LOG.info( msg.toString() );
+            }
+        }, interval, interval, TimeUnit.SECONDS );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param stage - processing stage
+     * @param nanos - time spent in the stage
+     */
+    public void record( final Stage stage, final long nanos ) { mHistograms[stage.ordinal()].record( nanos ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return percentiles of every stage since start up
+     */
+    public List<StageLatency> getLatencies()
+    {
+        final List<StageLatency> list = new ArrayList<StageLatency>();
+        for( final Stage stage : Stage.values() )
+        {
+            list.add( new StageLatency( stage, mHistograms[stage.ordinal()].snapshot() ) );
+        }
+        return list;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private LatencyHistogram.Snapshot[] snapshots()
+    {
+        final LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[mHistograms.length];
+        for( int i = 0; i < snapshots.length; i++ ) snapshots[i] = mHistograms[i].snapshot();
+        return snapshots;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static double micros( final long nanos ) { return Math.round( nanos / 100.0 ) / 10.0; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Percentiles of one stage, in microseconds.
+     */
+    public static class StageLatency
+    {
+        private final String mStage;
+        private final long   mCount;
+        private final double mMean;
+        private final double mP50;
+        private final double mP99;
+        private final double mP999;
+        private final double mMax;
+
+        StageLatency( final Stage stage, final LatencyHistogram.Snapshot s )
+        {
+            mStage = stage.name().toLowerCase();
+            mCount = s.getCount();
+            mMean  = micros( (long) s.getMean() );
+            mP50   = micros( s.getPercentile( 50 ) );
+            mP99   = micros( s.getPercentile( 99 ) );
+            mP999  = micros( s.getPercentile( 99.9 ) );
+            mMax   = micros( s.getMax() );
+        }
+
+        @JsonProperty( "stage" )      public String getStage() { return mStage; }
+        @JsonProperty( "count" )      public long   getCount() { return mCount; }
+        @JsonProperty( "meanMicros" ) public double getMean()  { return mMean; }
+        @JsonProperty( "p50Micros" )  public double getP50()   { return mP50; }
+        @JsonProperty( "p99Micros" )  public double getP99()   { return mP99; }
+        @JsonProperty( "p999Micros" ) public double getP999()  { return mP999; }
+        @JsonProperty( "maxMicros" )  public double getMax()   { return mMax; }
+    }
+}
@@ -11,7 +11,10 @@ import net.floodlightcontroller.core.IOFMessageListener;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 
+import org.openflow.protocol.OFError;
+import org.openflow.protocol.OFFlowRemoved;
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,7 +23,7 @@ import com.tallac.blacklist.BlackListModule;
 
 /**
  * The MessageListener class responsible for registering OpenFlow message
- * listener and receiving PacketIn messages.
+ * listener and receiving PacketIn, FlowRemoved and Error messages.
  */
 public class MessageListener implements IOFMessageListener
 {
@@ -46,8 +49,10 @@ public class MessageListener implements IOFMessageListener
     //---------------------------------------------------------------------------------------------
     public void startUp()
     {
-        LOG.debug("Register BlackList OpenFlow PacketIn message listener.");
+        LOG.debug("Register BlackList OpenFlow PacketIn, FlowRemoved and Error message listener.");
         mProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        mProvider.addOFMessageListener(OFType.FLOW_REMOVED, this);
+        mProvider.addOFMessageListener(OFType.ERROR, this);
     }
 
     //---------------------------------------------------------------------------------------------
@@ -76,8 +81,17 @@ public class MessageListener implements IOFMessageListener
         {
         case PACKET_IN:
            LOG.trace("Received PacketIn {} from switch {}", msg, ofSwitch);
-           PacketHandler ph = new PacketHandler(ofSwitch, msg, context);
-           return ph.processPacket();
+           return PacketInDispatcher.getInstance().dispatch( ofSwitch, (OFPacketIn) msg, context );
+
+        case FLOW_REMOVED:
+           LOG.trace("Received FlowRemoved {} from switch {}", msg, ofSwitch);
+           FlowMgr.getInstance().flowRemoved(ofSwitch, (OFFlowRemoved) msg);
+           break;
+
+        case ERROR:
+           LOG.debug("Received error {} from switch {}", msg, ofSwitch);
+           FlowTableMgr.getInstance().errorReceived(ofSwitch, (OFError) msg);
+           break;
 
         default:
            LOG.trace("Received msg {} from switch {}", msg, ofSwitch);
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-switch outbound message queues.
+ *
+ * Messages written while a PacketIn is being dispatched are held until the
+ * dispatch ends, then written to each switch with one write(List) and one
+ * flush. Messages written from other threads (REST, switch events) are
+ * held for a short window so that bursts, like deleting a prefix's flows
+ * on every switch, are coalesced too, and written by a small pool of
+ * writer threads so that a slow switch does not hold up the others.
+ * Messages to one switch keep their order.
+ */
+public class OFMessageBatcher
+{
+    private static final Logger LOG = LoggerFactory.getLogger(OFMessageBatcher.class);
+
+    //---- Upper bounds of the batch size histogram buckets; the last bucket is open
+    private static final int[] BATCH_SIZE_BOUNDS = { 1, 2, 4, 8, 16, 32, 64 };
+
+    //---- Switches written to during the current dispatch on this thread
+    private static final ThreadLocal<Dispatch> DISPATCH = new ThreadLocal<Dispatch>()
+    {
+        @Override
+        protected Dispatch initialValue() { return new Dispatch(); }
+    };
+
+    private final ConcurrentHashMap<Long, SwitchQueue> mQueues = new ConcurrentHashMap<Long, SwitchQueue>();
+    private final ScheduledExecutorService             mScheduler;
+    private final long                                 mWindowNanos;
+
+    //---- Metrics
+    private final AtomicLong      mBatches        = new AtomicLong();
+    private final AtomicLong      mMessages       = new AtomicLong();
+    private final AtomicLong      mMaxBatchSize   = new AtomicLong();
+    private final AtomicLong      mQueueNanos     = new AtomicLong();
+    private final AtomicLong      mMaxQueueNanos  = new AtomicLong();
+    private final AtomicLong      mWriteErrors    = new AtomicLong();
+    private final AtomicLongArray mBatchSizeHisto = new AtomicLongArray( BATCH_SIZE_BOUNDS.length + 1 );
+
+    //---------------------------------------------------------------------------------------------
+    private static class Dispatch
+    {
+        int                     depth;
+        final List<SwitchQueue> touched = new ArrayList<SwitchQueue>( 4 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static class Pending
+    {
+        final OFMessage     msg;
+        final long          queuedAt;
+        final FlowOperation op;         // null if nobody waits for the message
+
+        Pending( final OFMessage msg, final long queuedAt, final FlowOperation op )
+        {
+            this.msg = msg; this.queuedAt = queuedAt; this.op = op;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private class SwitchQueue implements Runnable
+    {
+        final IOFSwitch                       ofSwitch;
+        final ConcurrentLinkedQueue<Pending>  pending   = new ConcurrentLinkedQueue<Pending>();
+        final AtomicBoolean                   scheduled = new AtomicBoolean();
+
+        SwitchQueue( final IOFSwitch ofSwitch ) { this.ofSwitch = ofSwitch; }
+
+        public void run() { drain(); }
+
+        //---- Serialized per switch, so batches reach the switch in queue order
+        synchronized void drain()
+        {
+            scheduled.set( false );
+
+            Pending first = pending.poll();
+            if( first == null ) return;
+
+            final long            now   = System.nanoTime();
+            final List<OFMessage> batch = new ArrayList<OFMessage>();
+            List<FlowOperation>   ops   = null;
+            long                  maxQueued = 0;
+
+            for( Pending p = first; p != null; p = pending.poll() )
+            {
+                batch.add( p.msg );
+                if( p.op != null )
+                {
+                    if( ops == null ) ops = new ArrayList<FlowOperation>();
+                    ops.add( p.op );
+                }
+
+                final long queued = now - p.queuedAt;
+                mQueueNanos.addAndGet( queued );
+                if( queued > maxQueued ) maxQueued = queued;
+            }
+            recordBatch( batch.size(), maxQueued );
+
+            boolean written = false;
+            try
+            {
+                ofSwitch.write( batch, null );
+                ofSwitch.flush();
+                written = true;
+            }
+            catch( final IOException e )
+            {
+                mWriteErrors.incrementAndGet();
+                LOG.error( "Unable to write {} messages to switch {}. {}", new Object[] { batch.size(), ofSwitch.getStringId(), e } );
+            }
+
+            if( ops == null ) return;
+            for( int i = 0; i < ops.size(); i++ ) ops.get( i ).messageWritten( written );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param windowMicros - how long messages written outside a dispatch are
+     *                       held before they are written; 0 writes them at once
+     * @param writeThreads - threads writing those messages, each switch is
+     *                       written by one thread at a time
+     */
+    public OFMessageBatcher( final long windowMicros, final int writeThreads )
+    {
+        mWindowNanos = TimeUnit.MICROSECONDS.toNanos( Math.max( 0, windowMicros ) );
+        mScheduler   = Executors.newScheduledThreadPool( Math.max( 1, writeThreads ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Queue a message for a switch.
+     * @param ofSwitch - OpenFlow switch
+     * @param msg      - message
+     */
+    public void write( final IOFSwitch ofSwitch, final OFMessage msg ) { write( ofSwitch, msg, null ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Queue a message for a switch and report it to an operation once written.
+     * Outside a dispatch the message is always written by the writer threads,
+     * so the caller never waits for the switch.
+     * @param ofSwitch - OpenFlow switch
+     * @param msg      - message
+     * @param op       - operation the message belongs to, or null
+     */
+    public void write( final IOFSwitch ofSwitch, final OFMessage msg, final FlowOperation op )
+    {
+        final SwitchQueue queue = queueFor( ofSwitch );
+        queue.pending.add( new Pending( msg, System.nanoTime(), op ) );
+
+        final Dispatch dispatch = DISPATCH.get();
+        if( dispatch.depth > 0 )
+        {
+            if( !dispatch.touched.contains( queue ) ) dispatch.touched.add( queue );
+            return;
+        }
+
+        if( mWindowNanos == 0 && op == null )
+        {
+            queue.drain();
+        }
+        else if( queue.scheduled.compareAndSet( false, true ) )
+        {
+            mScheduler.schedule( queue, mWindowNanos, TimeUnit.NANOSECONDS );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Start holding messages written on this thread, e.g. while a PacketIn is
+     * handled. Calls nest; every call needs a matching {@link #endDispatch()}.
+     */
+    public void beginDispatch() { DISPATCH.get().depth++; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Write the messages held since the outermost {@link #beginDispatch()}.
+     */
+    public void endDispatch()
+    {
+        final Dispatch dispatch = DISPATCH.get();
+        if( --dispatch.depth > 0 ) return;
+
+        dispatch.depth = 0;
+        for( int i = 0; i < dispatch.touched.size(); i++ ) dispatch.touched.get( i ).drain();
+        dispatch.touched.clear();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Drop the queue of a disconnected switch.
+     * @param dpid - switch DPID
+     */
+    public void removeSwitch( final long dpid ) { mQueues.remove( dpid ); }
+
+    //---------------------------------------------------------------------------------------------
+    private SwitchQueue queueFor( final IOFSwitch ofSwitch )
+    {
+        final Long  dpid  = ofSwitch.getId();
+        SwitchQueue queue = mQueues.get( dpid );
+        if( queue != null && queue.ofSwitch == ofSwitch ) return queue;
+
+        final SwitchQueue created = new SwitchQueue( ofSwitch );
+        if( queue == null )
+        {
+            queue = mQueues.putIfAbsent( dpid, created );
+            if( queue == null )                return created;
+            if( queue.ofSwitch == ofSwitch )   return queue;
+        }
+
+        // A reconnected switch comes with a new IOFSwitch; the old queue still drains on its own
+        mQueues.put( dpid, created );
+        return created;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void recordBatch( final int size, final long maxQueued )
+    {
+        mBatches.incrementAndGet();
+        mMessages.addAndGet( size );
+        updateMax( mMaxBatchSize, size );
+        updateMax( mMaxQueueNanos, maxQueued );
+
+        int bucket = 0;
+        while( bucket < BATCH_SIZE_BOUNDS.length && size > BATCH_SIZE_BOUNDS[bucket] ) bucket++;
+        mBatchSizeHisto.incrementAndGet( bucket );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static void updateMax( final AtomicLong max, final long value )
+    {
+        for( long cur = max.get(); value > cur; cur = max.get() )
+        {
+            if( max.compareAndSet( cur, value ) ) return;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public WriteStats getStats() { return new WriteStats( this ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time copy of the write batching metrics.
+     */
+    public static class WriteStats
+    {
+        private final long   mBatches;
+        private final long   mMessages;
+        private final long   mMaxBatchSize;
+        private final long   mWriteErrors;
+        private final double mAvgQueueMicros;
+        private final double mMaxQueueMicros;
+        private final long[] mBatchSizeHisto;
+
+        WriteStats( final OFMessageBatcher b )
+        {
+            mBatches        = b.mBatches.get();
+            mMessages       = b.mMessages.get();
+            mMaxBatchSize   = b.mMaxBatchSize.get();
+            mWriteErrors    = b.mWriteErrors.get();
+            mAvgQueueMicros = ( mMessages == 0 ) ? 0 : b.mQueueNanos.get() / 1000.0 / mMessages;
+            mMaxQueueMicros = b.mMaxQueueNanos.get() / 1000.0;
+
+            mBatchSizeHisto = new long[b.mBatchSizeHisto.length()];
+            for( int i = 0; i < mBatchSizeHisto.length; i++ ) mBatchSizeHisto[i] = b.mBatchSizeHisto.get( i );
+        }
+
+        @JsonProperty( "batches" )        public long   getBatches()        { return mBatches; }
+        @JsonProperty( "messages" )       public long   getMessages()       { return mMessages; }
+        @JsonProperty( "maxBatchSize" )   public long   getMaxBatchSize()   { return mMaxBatchSize; }
+        @JsonProperty( "writeErrors" )    public long   getWriteErrors()    { return mWriteErrors; }
+        @JsonProperty( "avgQueueMicros" ) public double getAvgQueueMicros() { return mAvgQueueMicros; }
+        @JsonProperty( "maxQueueMicros" ) public double getMaxQueueMicros() { return mMaxQueueMicros; }
+
+        @JsonProperty( "avgBatchSize" )
+        public double getAvgBatchSize() { return ( mBatches == 0 ) ? 0 : (double) mMessages / mBatches; }
+
+        /**
+         * @return number of batches per size bucket: 1, 2, 3-4, 5-8, ..., 33-64, more than 64
+         */
+        @JsonProperty( "batchSizeHistogram" )
+        public long[] getBatchSizeHistogram() { return mBatchSizeHisto; }
+    }
+}
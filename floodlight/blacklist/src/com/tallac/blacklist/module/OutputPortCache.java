@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+
+import com.tallac.blacklist.utils.StripedCounter;
+
+/**
+ * Output ports resolved by {@link FlowMgr#getOutputPort}, per switch and
+ * destination MAC address.
+ *
+ * The cache is a direct-mapped table: a lookup is one array read and a
+ * colliding entry simply replaces the previous one. Entries are stamped
+ * with the generation they were resolved in. Topology changes and device
+ * moves start a new generation, which invalidates every entry at once; a
+ * port resolved before the change is never cached after it.
+ */
+public class OutputPortCache
+{
+    //---- Returned by get() when the port has to be resolved
+    public static final short NO_ENTRY = 0;
+
+    private final AtomicReferenceArray<Entry> mEntries;
+    private final int                         mMask;
+    private final AtomicLong                  mGeneration = new AtomicLong();
+
+    //---- Metrics
+    private final StripedCounter mHits          = new StripedCounter();
+    private final StripedCounter mMisses        = new StripedCounter();
+    private final AtomicLong     mInvalidations = new AtomicLong();
+
+    //---------------------------------------------------------------------------------------------
+    private static final class Entry
+    {
+        final long  dpid;
+        final long  mac;
+        final long  generation;
+        final short port;
+
+        Entry( final long dpid, final long mac, final long generation, final short port )
+        {
+            this.dpid = dpid; this.mac = mac; this.generation = generation; this.port = port;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param size - number of entries, rounded up to a power of two
+     */
+    public OutputPortCache( final int size )
+    {
+        int capacity = 16;
+        while( capacity < size && capacity < ( 1 << 30 ) ) capacity <<= 1;
+
+        mEntries = new AtomicReferenceArray<Entry>( capacity );
+        mMask    = capacity - 1;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param dpid - switch DPID
+     * @param mac  - destination MAC address
+     * @return cached output port, or NO_ENTRY
+     */
+    public short get( final long dpid, final long mac )
+    {
+        final Entry entry = mEntries.get( indexOf( dpid, mac ) );
+        if( entry != null && entry.dpid == dpid && entry.mac == mac && entry.generation == mGeneration.get() )
+        {
+            mHits.increment();
+            return entry.port;
+        }
+
+        mMisses.increment();
+        return NO_ENTRY;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return current generation; read it before resolving a port to put
+     */
+    public long getGeneration() { return mGeneration.get(); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param dpid       - switch DPID
+     * @param mac        - destination MAC address
+     * @param port       - resolved output port
+     * @param generation - generation read before the port was resolved
+     */
+    public void put( final long dpid, final long mac, final short port, final long generation )
+    {
+        if( generation != mGeneration.get() ) return;   // resolved from an older topology
+        mEntries.set( indexOf( dpid, mac ), new Entry( dpid, mac, generation, port ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Drop every entry, after the topology or a device location changed.
+     */
+    public void invalidate()
+    {
+        mGeneration.incrementAndGet();
+        mInvalidations.incrementAndGet();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int indexOf( final long dpid, final long mac )
+    {
+        long h = dpid * 0x9E3779B97F4A7C15L ^ mac;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (int) h & mMask;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public PortCacheStats getStats() { return new PortCacheStats( this ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time copy of the output port cache metrics.
+     */
+    public static class PortCacheStats
+    {
+        private final long mHits;
+        private final long mMisses;
+        private final long mInvalidations;
+        private final int  mSize;
+
+        PortCacheStats( final OutputPortCache c )
+        {
+            mHits          = c.mHits.sum();
+            mMisses        = c.mMisses.sum();
+            mInvalidations = c.mInvalidations.get();
+            mSize          = c.mEntries.length();
+        }
+
+        @JsonProperty( "hits" )          public long getHits()          { return mHits; }
+        @JsonProperty( "misses" )        public long getMisses()        { return mMisses; }
+
+        /**
+         * @return topology changes and device moves that emptied the cache
+         */
+        @JsonProperty( "invalidations" ) public long getInvalidations() { return mInvalidations; }
+
+        @JsonProperty( "size" )          public int  getSize()          { return mSize; }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IListener.Command;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.util.MACAddress;
+
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.openflow.protocol.OFPacketIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.blacklist.utils.StripedCounter;
+
+/**
+ * The PacketInDispatcher class runs PacketIn processing either inline on
+ * the Floodlight I/O thread that delivered the PacketIn, or on a pool of
+ * worker threads.
+ *
+ * With workers, IPv4 PacketIns are sharded by switch and source IPv4
+ * address, so the packets of one flow are processed in order by one
+ * worker. Each worker has a bounded queue; when it is full the oldest
+ * queued PacketIn is dropped to make room. Other PacketIns are still
+ * processed inline, since they go on to the Floodlight forwarding module.
+ * Floodlight clears and reuses the context of a PacketIn once its
+ * listeners return, so a queued PacketIn carries a copy of the context:
+ * the decoded packet and the source and destination devices.
+ *
+ * Before anything else, every PacketIn is checked against the rate limit
+ * of its switch and source: the source IPv4 address of IPv4 packets, the
+ * source MAC address of others. A source exceeding it gets a temporary
+ * drop flow on the switch, and its PacketIns are dropped.
+ */
+public class PacketInDispatcher
+{
+    private static final PacketInDispatcher INSTANCE = new PacketInDispatcher();
+    private static final Logger LOG = LoggerFactory.getLogger(PacketInDispatcher.class);
+
+    //---- Configuration parameter: PacketIn worker threads, 0 processes PacketIns on the I/O thread
+    public static final String CFG_WORKERS     = "packetInWorkers";
+    public static final int    DEFAULT_WORKERS = 0;
+
+    //---- Configuration parameter: PacketIns queued per worker
+    public static final String CFG_QUEUE_SIZE     = "packetInQueueSize";
+    public static final int    DEFAULT_QUEUE_SIZE = 1024;
+
+    //---- Configuration parameters: PacketIns per second and burst per switch and source,
+    //---- seconds a source exceeding them is blocked; a rate of 0 disables rate limiting
+    public static final String CFG_RATE_LIMIT           = "rateLimitPacketsPerSec";
+    public static final int    DEFAULT_RATE_LIMIT       = 0;
+    public static final String CFG_RATE_LIMIT_BURST     = "rateLimitBurst";
+    public static final int    DEFAULT_RATE_LIMIT_BURST = 1000;
+    public static final String CFG_RATE_LIMIT_BLOCK_SEC = "rateLimitBlockSec";
+    public static final int    DEFAULT_RATE_LIMIT_BLOCK = 10;
+
+    private static final int  RATE_LIMIT_SOURCES = 16384;     // buckets of the rate limiter
+    private static final long IPV4_SOURCE_KEY    = 1L << 48;  // tags IPv4 source keys apart from 48-bit MACs
+    private static final long NOT_IPV4           = -1;        // ipv4Source() of a packet without an IPv4 header
+
+    private static final int ETH_SRC_OFFSET  = 6;
+    private static final int ETH_TYPE_OFFSET = 12;
+    private static final int ETH_TYPE_VLAN   = 0x8100;
+    private static final int ETH_TYPE_IPV4   = 0x0800;
+    private static final int VLAN_TAG_LENGTH = 4;
+    private static final int IPV4_SRC_OFFSET = 12;   // from the start of the IPv4 header
+
+    private Worker[]          mWorkers = new Worker[0];
+    private int               mQueueSize;
+    private SourceRateLimiter mRateLimiter;   // null if rate limiting is disabled
+
+    //---- Metrics
+    private final StripedCounter mInline    = new StripedCounter();
+    private final StripedCounter mQueued    = new StripedCounter();
+    private final AtomicLong     mDropped   = new AtomicLong();
+
+    //---------------------------------------------------------------------------------------------
+    private static class Task
+    {
+        final IOFSwitch         ofSwitch;
+        final OFPacketIn        packetIn;
+        final FloodlightContext context;
+        final long              queuedAt;
+
+        Task( final IOFSwitch ofSwitch, final OFPacketIn packetIn, final FloodlightContext context, final long queuedAt )
+        {
+            this.ofSwitch = ofSwitch; this.packetIn = packetIn; this.context = context; this.queuedAt = queuedAt;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private class Worker implements Runnable
+    {
+        final ArrayBlockingQueue<Task> queue;
+        final AtomicLong               processed = new AtomicLong();
+        final AtomicLong               dropped   = new AtomicLong();
+        volatile int                   maxDepth;
+
+        Worker( final int queueSize ) { queue = new ArrayBlockingQueue<Task>( queueSize ); }
+
+        //---- Queue a PacketIn, dropping the oldest ones while the queue is full
+        void offer( final Task task )
+        {
+            while( !queue.offer( task ) )
+            {
+                if( queue.poll() != null )
+                {
+                    dropped.incrementAndGet();
+                    mDropped.incrementAndGet();
+                }
+            }
+
+            final int depth = queue.size();
+            if( depth > maxDepth ) maxDepth = depth;
+        }
+
+        public void run()
+        {
+            while( !Thread.currentThread().isInterrupted() )
+            {
+                final Task task;
+                try
+                {
+                    task = queue.take();
+                }
+                catch( final InterruptedException e )
+                {
+                    return;
+                }
+
+                final long start = System.nanoTime();
+                LatencyMgr.getInstance().record( LatencyMgr.Stage.QUEUE, start - task.queuedAt );
+                try
+                {
+                    process( task.ofSwitch, task.packetIn, task.context, task.queuedAt );
+                }
+                catch( final RuntimeException e )
+                {
+                    LOG.error( "Unable to process PacketIn from switch {}. {}", task.ofSwitch.getStringId(), e );
+                }
+                processed.incrementAndGet();
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private PacketInDispatcher() { }  // private constructor - prevent external instantiation
+
+    //---------------------------------------------------------------------------------------------
+    public static PacketInDispatcher getInstance() { return INSTANCE; }
+
+    //---------------------------------------------------------------------------------------------
+    public void init( final FloodlightModuleContext context )
+    {
+        final int workers = Math.max( 0, BlacklistConfig.getInstance().getInt( CFG_WORKERS, DEFAULT_WORKERS ) );
+        mQueueSize        = Math.max( 1, BlacklistConfig.getInstance().getInt( CFG_QUEUE_SIZE, DEFAULT_QUEUE_SIZE ) );
+
+        mWorkers = new Worker[workers];
+        for( int i = 0; i < workers; i++ )
+        {
+            mWorkers[i] = new Worker( mQueueSize );
+
+            final Thread thread = new Thread( mWorkers[i], "BlackList-PacketIn-" + i );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        if( workers > 0 ) LOG.info( "Process PacketIns on {} worker threads, {} queued per worker.", workers, mQueueSize );
+
+        final int rate = BlacklistConfig.getInstance().getInt( CFG_RATE_LIMIT, DEFAULT_RATE_LIMIT );
+        if( rate > 0 )
+        {
+            mRateLimiter = new SourceRateLimiter( rate,
+                    BlacklistConfig.getInstance().getInt( CFG_RATE_LIMIT_BURST,     DEFAULT_RATE_LIMIT_BURST ),
+                    BlacklistConfig.getInstance().getInt( CFG_RATE_LIMIT_BLOCK_SEC, DEFAULT_RATE_LIMIT_BLOCK ),
+                    RATE_LIMIT_SOURCES );
+            LOG.info( "Limit PacketIns to {} per second per switch and source.", rate );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Process a PacketIn, or queue it for a worker.
+     * @return STOP for a queued or rate limited PacketIn, otherwise the result of processing it
+     */
+    public Command dispatch( final IOFSwitch ofSwitch, final OFPacketIn packetIn, final FloodlightContext context )
+    {
+        final long start = System.nanoTime();
+
+        final long srcIpAddr = ipv4Source( packetIn.getPacketData() );
+
+        if( mRateLimiter != null && !admit( ofSwitch, packetIn.getPacketData(), srcIpAddr, start ) ) return Command.STOP;
+
+        if( mWorkers.length == 0 || srcIpAddr == NOT_IPV4 )
+        {
+            mInline.increment();
+            return process( ofSwitch, packetIn, context, start );
+        }
+
+        mQueued.increment();
+        mWorkers[shardOf( ofSwitch.getId(), (int) srcIpAddr )].offer( new Task( ofSwitch, packetIn, copyOf( context ), start ) );
+        return Command.STOP;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  copyOf:  context for a queued PacketIn, independent of the one Floodlight reuses
+    private static FloodlightContext copyOf( final FloodlightContext context )
+    {
+        final FloodlightContext copy = new FloodlightContext();
+        if( context != null ) copy.getStorage().putAll( context.getStorage() );
+        return copy;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  admit:  false if the source of the PacketIn exceeded its rate; blocks the source on the switch.
+    //          IPv4 sources are limited by address, others (and 0.0.0.0, e.g. DHCP) by MAC address.
+    private boolean admit( final IOFSwitch ofSwitch, final byte[] data, final long srcIpAddr, final long now )
+    {
+        if( data == null || data.length < ETH_SRC_OFFSET + 6 ) return true;
+
+        final boolean byIpv4 = srcIpAddr != NOT_IPV4 && srcIpAddr != 0;
+
+        long source;
+        if( byIpv4 )
+        {
+            source = IPV4_SOURCE_KEY | srcIpAddr;
+        }
+        else
+        {
+            source = 0;
+            for( int i = ETH_SRC_OFFSET; i < ETH_SRC_OFFSET + 6; i++ ) source = ( source << 8 ) | ( data[i] & 0xff );
+        }
+
+        switch( mRateLimiter.admit( ofSwitch.getId(), source, now ) )
+        {
+        case ADMIT:
+            return true;
+
+        case BLOCK:
+            if( byIpv4 ) FlowMgr.getInstance().installIpv4SourceDropFlow( ofSwitch, (int) srcIpAddr, mRateLimiter.getBlockSeconds() );
+            else         FlowMgr.getInstance().installSourceDropFlow(     ofSwitch, source,          mRateLimiter.getBlockSeconds() );
+            StatisticsMgr.getInstance().updateRateLimitStats( ofSwitch, byIpv4 ? IPv4.fromIPv4Address( (int) srcIpAddr )
+                                                                               : MACAddress.valueOf( source ).toString(), true );
+            return false;
+
+        default:
+            StatisticsMgr.getInstance().updateRateLimitStats( ofSwitch, null, false );
+            return false;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  process:  run the PacketHandler; flow-mods and packet-outs of the PacketIn go to the switch in one write
+    private static Command process( final IOFSwitch         ofSwitch,
+                                    final OFPacketIn        packetIn,
+                                    final FloodlightContext context,
+                                    final long              start )
+    {
+        FlowMgr.getInstance().beginDispatch();
+        try
+        {
+            return PacketHandler.forCurrentThread().processPacket( ofSwitch, packetIn, context );
+        }
+        finally
+        {
+            final long written = System.nanoTime();
+            FlowMgr.getInstance().endDispatch();
+
+            final long end = System.nanoTime();
+            LatencyMgr.getInstance().record( LatencyMgr.Stage.WRITE, end - written );
+            LatencyMgr.getInstance().record( LatencyMgr.Stage.TOTAL, end - start );
+            StatisticsMgr.getInstance().updatePacketInStats( end - start );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  ipv4Source:  unsigned source address of an IPv4 packet, optionally VLAN tagged; NOT_IPV4 for
+    //              other packets. 0.0.0.0 (DHCP discover) is a valid result.
+    private static long ipv4Source( final byte[] data )
+    {
+        if( data == null ) return NOT_IPV4;
+
+        int offset = ETH_TYPE_OFFSET;
+        int type   = readShort( data, offset );
+        if( type == ETH_TYPE_VLAN )
+        {
+            offset += VLAN_TAG_LENGTH;
+            type    = readShort( data, offset );
+        }
+        if( type != ETH_TYPE_IPV4 ) return NOT_IPV4;
+
+        final int src = offset + 2 + IPV4_SRC_OFFSET;
+        if( data.length < src + 4 ) return NOT_IPV4;
+
+        final int addr = ( ( data[src]     & 0xff ) << 24 ) | ( ( data[src + 1] & 0xff ) << 16 )
+                       | ( ( data[src + 2] & 0xff ) << 8 )  |   ( data[src + 3] & 0xff );
+        return addr & 0xffffffffL;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int readShort( final byte[] data, final int offset )
+    {
+        if( data.length < offset + 2 ) return -1;
+        return ( ( data[offset] & 0xff ) << 8 ) | ( data[offset + 1] & 0xff );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int shardOf( final long dpid, final int srcIpAddr )
+    {
+        int h = (int) ( dpid ^ ( dpid >>> 32 ) ) * 31 + srcIpAddr;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return ( h & Integer.MAX_VALUE ) % mWorkers.length;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public DispatchStats getStats() { return new DispatchStats( this ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time copy of the PacketIn dispatch metrics.
+     */
+    public static class DispatchStats
+    {
+        private final int    mWorkers;
+        private final int    mQueueSize;
+        private final long   mInline;
+        private final long   mQueued;
+        private final long   mDropped;
+        private final long[] mProcessed;
+        private final long[] mWorkerDropped;
+        private final int[]  mDepth;
+        private final int[]  mMaxDepth;
+
+        DispatchStats( final PacketInDispatcher d )
+        {
+            mWorkers   = d.mWorkers.length;
+            mQueueSize = d.mQueueSize;
+            mInline    = d.mInline.sum();
+            mQueued    = d.mQueued.sum();
+            mDropped   = d.mDropped.get();
+
+            mProcessed     = new long[mWorkers];
+            mWorkerDropped = new long[mWorkers];
+            mDepth         = new int[mWorkers];
+            mMaxDepth      = new int[mWorkers];
+            for( int i = 0; i < mWorkers; i++ )
+            {
+                final Worker w = d.mWorkers[i];
+                mProcessed[i]     = w.processed.get();
+                mWorkerDropped[i] = w.dropped.get();
+                mDepth[i]         = w.queue.size();
+                mMaxDepth[i]      = w.maxDepth;
+            }
+        }
+
+        @JsonProperty( "workers" )   public int  getWorkers()   { return mWorkers; }
+        @JsonProperty( "queueSize" ) public int  getQueueSize() { return mQueueSize; }
+
+        /**
+         * @return PacketIns processed on the I/O thread
+         */
+        @JsonProperty( "inline" )    public long getInline()    { return mInline; }
+
+        @JsonProperty( "queued" )    public long getQueued()    { return mQueued; }
+
+        /**
+         * @return queued PacketIns dropped unprocessed because their worker fell behind
+         */
+        @JsonProperty( "dropped" )   public long getDropped()   { return mDropped; }
+
+        @JsonProperty( "processed" )     public long[] getProcessed()     { return mProcessed; }
+        @JsonProperty( "workerDropped" ) public long[] getWorkerDropped() { return mWorkerDropped; }
+        @JsonProperty( "queueDepth" )    public int[]  getQueueDepth()    { return mDepth; }
+        @JsonProperty( "maxQueueDepth" ) public int[]  getMaxQueueDepth() { return mMaxDepth; }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket per switch and source, checked for every
+ * PacketIn before it is parsed.
+ *
+ * A bucket holds up to burst tokens and refills at rate tokens per second;
+ * each PacketIn takes one. The first PacketIn finding its bucket empty
+ * blocks the source for the block time, and the caller installs a drop
+ * flow for it on the switch. PacketIns already on their way while the
+ * source is blocked are dropped without another flow.
+ *
+ * Buckets live in a fixed, direct-mapped table. A source whose slot is
+ * taken over by another one starts again with a full bucket, so the
+ * table only needs to be large enough for the sources active at a time.
+ */
+public class SourceRateLimiter
+{
+    public enum Verdict
+    {
+        ADMIT,  // process the PacketIn
+        DROP,   // source is blocked, drop the PacketIn
+        BLOCK   // source just exceeded its rate, drop the PacketIn and block the source
+    }
+
+    private static final int LOCKS = 64;
+
+    private final long mNanosPerToken;
+    private final long mCapacityNanos;
+    private final long mBlockNanos;
+    private final int  mMask;
+
+    //---- Buckets; credit is the bucket content in nanoseconds of refill time
+    private final boolean[] mUsed;
+    private final long[]    mDpids;
+    private final long[]    mSources;
+    private final long[]    mCredit;
+    private final long[]    mUpdatedAt;
+    private final long[]    mBlockedUntil;
+    private final Object[]  mLocks = new Object[LOCKS];
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param rate     - PacketIns per second admitted per source, more than 0
+     * @param burst    - PacketIns admitted at once after the source was idle
+     * @param blockSec - how long a source exceeding its rate is blocked
+     * @param size     - number of buckets, rounded up to a power of two
+     */
+    public SourceRateLimiter( final int rate, final int burst, final int blockSec, final int size )
+    {
+        mNanosPerToken = TimeUnit.SECONDS.toNanos( 1 ) / Math.max( 1, rate );
+        mCapacityNanos = mNanosPerToken * Math.max( 1, burst );
+        mBlockNanos    = TimeUnit.SECONDS.toNanos( Math.max( 1, blockSec ) );
+
+        int capacity = LOCKS;
+        while( capacity < size && capacity < ( 1 << 24 ) ) capacity <<= 1;
+        mMask = capacity - 1;
+
+        mUsed         = new boolean[capacity];
+        mDpids        = new long[capacity];
+        mSources      = new long[capacity];
+        mCredit       = new long[capacity];
+        mUpdatedAt    = new long[capacity];
+        mBlockedUntil = new long[capacity];
+        for( int i = 0; i < LOCKS; i++ ) mLocks[i] = new Object();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param dpid   - switch DPID
+     * @param source - source key, e.g. the source IPv4 or MAC address
+     * @param now    - System.nanoTime()
+     * @return what to do with the PacketIn
+     */
+    public Verdict admit( final long dpid, final long source, final long now )
+    {
+        final int slot = indexOf( dpid, source );
+
+        synchronized( mLocks[slot & ( LOCKS - 1 )] )
+        {
+            if( !mUsed[slot] || mDpids[slot] != dpid || mSources[slot] != source )
+            {
+                mUsed[slot]         = true;
+                mDpids[slot]        = dpid;
+                mSources[slot]      = source;
+                mCredit[slot]       = mCapacityNanos - mNanosPerToken;
+                mUpdatedAt[slot]    = now;
+                mBlockedUntil[slot] = now;
+                return Verdict.ADMIT;
+            }
+
+            final long credit = Math.min( mCapacityNanos, mCredit[slot] + ( now - mUpdatedAt[slot] ) );
+            mUpdatedAt[slot] = now;
+
+            if( credit >= mNanosPerToken && now - mBlockedUntil[slot] >= 0 )
+            {
+                mCredit[slot] = credit - mNanosPerToken;
+                return Verdict.ADMIT;
+            }
+
+            mCredit[slot] = credit;
+            if( now - mBlockedUntil[slot] < 0 ) return Verdict.DROP;
+
+            mBlockedUntil[slot] = now + mBlockNanos;
+            return Verdict.BLOCK;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return seconds a blocked source stays blocked
+     */
+    public int getBlockSeconds() { return (int) TimeUnit.NANOSECONDS.toSeconds( mBlockNanos ); }
+
+    //---------------------------------------------------------------------------------------------
+    private int indexOf( final long dpid, final long source )
+    {
+        long h = dpid * 0x9E3779B97F4A7C15L ^ source;
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 32;
+        return (int) h & mMask;
+    }
+}
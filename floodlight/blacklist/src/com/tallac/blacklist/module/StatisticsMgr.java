@@ -7,12 +7,15 @@ package com.tallac.blacklist.module;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
@@ -20,10 +23,16 @@ import net.floodlightcontroller.packet.IPv4;
 
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.openflow.protocol.OFMatch;
+import org.openflow.util.HexString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.tallac.blacklist.utils.CircularList;
+import com.tallac.blacklist.utils.DomainTrie;
+import com.tallac.blacklist.utils.Ipv4Prefix;
+import com.tallac.blacklist.utils.PaddedAtomicLong;
+import com.tallac.blacklist.utils.SpaceSaving;
+import com.tallac.blacklist.utils.StripedCounter;
+import com.tallac.blacklist.utils.TimeSeries;
 
 public class StatisticsMgr
 {
@@ -31,37 +40,60 @@ public class StatisticsMgr
     private static final Logger LOG = LoggerFactory.getLogger(StatisticsMgr.class);
     private static final long   LOG_STATISTICS_TIMEOUT = 60;
 
+    //---- Configuration parameter: number of blocked packet details kept
+    public static final String CFG_DETAILS_CAPACITY     = "statsDetailsCapacity";
+    public static final int    DEFAULT_DETAILS_CAPACITY = 65536;
+
+    //---- Number of details returned when the caller does not ask for a number
+    public static final int    DEFAULT_DETAILS_LIMIT    = 100;
+
+    //---- Configuration parameter: counters of the top blocked domains and top source IPs sketches
+    public static final String CFG_TOP_CAPACITY     = "statsTopCapacity";
+    public static final int    DEFAULT_TOP_CAPACITY = 256;
+
     //---------------------------------------------------------------------------------------------
     public class StatisticsTotal
     {
-        private final AtomicLong m_matchCounter;
-        private Date             m_lastMatchTime;
-        private String           m_lastMatch;
+        private final StripedCounter m_matchCounter;
+        private volatile long    m_lastMatchTime;
+        private volatile String  m_lastMatch;
 
         //---------------------------------------------------------------------------------------------
        public StatisticsTotal()
         {
-            m_matchCounter = new AtomicLong(0);
-            m_lastMatchTime = new Date();
+            m_matchCounter = new StripedCounter();
+            m_lastMatchTime = System.currentTimeMillis();
             m_lastMatch = "";
         }
 
        //---------------------------------------------------------------------------------------------
-        public void setMatch(String match, Date date)
+        public void setMatch(String match, long timeMillis)
         {
-            m_matchCounter.incrementAndGet();
-            m_lastMatchTime = date;
+            m_matchCounter.increment();
+            m_lastMatchTime = timeMillis;
             m_lastMatch = match;
         }
 
         //---------------------------------------------------------------------------------------------
         public String getMatch()       { return m_lastMatch; }
-        public Date getLastMatchTime() { return m_lastMatchTime; }
-        public long getMatchCounter()  { return m_matchCounter.get(); }
+        public Date getLastMatchTime() { return new Date(m_lastMatchTime); }
+        public long getMatchCounter()  { return m_matchCounter.sum(); }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static class SwitchCounters
+    {
+        private final StripedCounter mIpv4Blocked = new StripedCounter();
+        private final StripedCounter mDnsBlocked  = new StripedCounter();
+        private final StripedCounter mRateLimited = new StripedCounter();
+
+        public long getIpv4Blocked() { return mIpv4Blocked.sum(); }
+        public long getDnsBlocked()  { return mDnsBlocked.sum(); }
+        public long getRateLimited() { return mRateLimited.sum(); }
     }
 
     //---------------------------------------------------------------------------------------------
-    public class StatisticsDetails
+    public static class StatisticsDetails
     {
         @JsonProperty("id")
         long mId;
@@ -83,17 +115,14 @@ public class StatisticsMgr
 
         //---------------------------------------------------------------------------------------------
         public StatisticsDetails() {}
-        public StatisticsDetails( final IOFSwitch ofSwitch,
-                                  final OFMatch   match,
-                                  String          entryDescr,
-                                  Date            date )
+        public StatisticsDetails( final StatisticsRing.Event event )
         {
-            mBlockedEntry = entryDescr;
-            mTime         = date.getTime();
-            mId           = getTotalMatchCounter();
-            mSwitchDpid   = ofSwitch.getStringId();
-            mInputPort    = match.getInputPort();
-            mSourceIp     = match.getNetworkSource();
+            mBlockedEntry = ( event.domain != null ) ? event.domain : IPv4.fromIPv4Address( event.dstIp );
+            mTime         = event.timeMillis;
+            mId           = event.sequence + 1;
+            mSwitchDpid   = HexString.toHexString( event.dpid );
+            mInputPort    = event.inPort;
+            mSourceIp     = event.srcIp;
         }
 
         public String getSourceIp()
@@ -111,18 +140,35 @@ public class StatisticsMgr
 
     private final StatisticsTotal mIpv4Stats;
     private final StatisticsTotal mDnsStats;
-    private final CircularList<StatisticsDetails> mEntryDetails;
-    private final static int MAX_NUMBER_OF_DETAILED_ENTRIES = 100;
+    private final StatisticsTotal mRateLimitStats;   // sources blocked by the PacketIn rate limiter
+    private volatile StatisticsRing mEntryDetails;
+
+    //---- Blocked packets per switch and per blacklist entry; entry counters are dropped with their entry
+    private final ConcurrentHashMap<Long, SwitchCounters>         mSwitchCounters    = new ConcurrentHashMap<Long, SwitchCounters>();
+    private final ConcurrentHashMap<Ipv4Prefix, PaddedAtomicLong> mIpv4EntryCounters = new ConcurrentHashMap<Ipv4Prefix, PaddedAtomicLong>();
+    private final ConcurrentHashMap<String, PaddedAtomicLong>     mDnsEntryCounters  = new ConcurrentHashMap<String, PaddedAtomicLong>();
+
+    //---- Heavy hitters: queried domain names and source IPs of blocked packets
+    private volatile SpaceSaving<String>  mTopDomains;
+    private volatile SpaceSaving<Integer> mTopSources;
+
+    //---- Blocked packets and PacketIn processing times (nanoseconds) over the last minute, hour and day
+    private final TimeSeries mIpv4History     = new TimeSeries();
+    private final TimeSeries mDnsHistory      = new TimeSeries();
+    private final TimeSeries mPacketInHistory = new TimeSeries();
     private final ScheduledExecutorService mScheduler;
 
     //---------------------------------------------------------------------------------------------
     private StatisticsMgr()
     {
         // private constructor - prevent external instantiation
-        mScheduler    = Executors.newScheduledThreadPool(2);
-        mIpv4Stats    = new StatisticsTotal();
-        mDnsStats     = new StatisticsTotal();
-        mEntryDetails = new CircularList<StatisticsDetails>(MAX_NUMBER_OF_DETAILED_ENTRIES);
+        mScheduler      = Executors.newScheduledThreadPool(2);
+        mIpv4Stats      = new StatisticsTotal();
+        mDnsStats       = new StatisticsTotal();
+        mRateLimitStats = new StatisticsTotal();
+        mEntryDetails   = new StatisticsRing(DEFAULT_DETAILS_CAPACITY);
+        mTopDomains     = new SpaceSaving<String>(DEFAULT_TOP_CAPACITY);
+        mTopSources     = new SpaceSaving<Integer>(DEFAULT_TOP_CAPACITY);
     }
 
     //---------------------------------------------------------------------------------------------
@@ -131,11 +177,22 @@ public class StatisticsMgr
     //---------------------------------------------------------------------------------------------
     public void init( final FloodlightModuleContext context )
     {
+        final int capacity = BlacklistConfig.getInstance().getInt( CFG_DETAILS_CAPACITY, DEFAULT_DETAILS_CAPACITY );
+        if( capacity != DEFAULT_DETAILS_CAPACITY ) mEntryDetails = new StatisticsRing( capacity );
+        LOG.debug( "Keeping up to {} blocked packet details.", mEntryDetails.getCapacity() );
+
+        final int topCapacity = BlacklistConfig.getInstance().getInt( CFG_TOP_CAPACITY, DEFAULT_TOP_CAPACITY );
+        if( topCapacity != DEFAULT_TOP_CAPACITY )
+        {
+            mTopDomains = new SpaceSaving<String>( topCapacity );
+            mTopSources = new SpaceSaving<Integer>( topCapacity );
+        }
+
         mScheduler.scheduleAtFixedRate(new Runnable()
         {
             public void run()
             {
-                StringBuffer statsMsg = new StringBuffer();
+                StringBuilder statsMsg = new StringBuilder();
                 statsMsg.append("IPv4 Statistics:");
                 if (mIpv4Stats.getMatchCounter() > 0)
                 {
@@ -166,30 +223,153 @@ public class StatisticsMgr
 
     public StatisticsTotal getIpv4Stats()        { return mIpv4Stats; }
     public StatisticsTotal getDnsStats()         { return mDnsStats; }
+    public StatisticsTotal getRateLimitStats()   { return mRateLimitStats; }
     public long getTotalMatchCounter()           { return mIpv4Stats.getMatchCounter() + mDnsStats.getMatchCounter(); }
 
-    public List<StatisticsDetails> getDetails()  { return mEntryDetails.get(); }
+    public List<StatisticsDetails> getDetails()  { return getDetails( DEFAULT_DETAILS_LIMIT ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param limit - maximum number of details
+     * @return details of the latest blocked packets, oldest first
+     */
+    public List<StatisticsDetails> getDetails( final int limit )
+    {
+        final StatisticsRing ring  = mEntryDetails;
+        final long           next  = ring.getNextSequence();
+        final long           first = Math.max( 0, next - Math.min( Math.max( limit, 0 ), ring.getCapacity() ) );
+
+        final List<StatisticsDetails> details = new ArrayList<StatisticsDetails>( (int) ( next - first ) );
+        final StatisticsRing.Event    event   = new StatisticsRing.Event();
+        for( long seq = first; seq < next; seq++ )
+        {
+            if( ring.read( seq, event ) ) details.add( new StatisticsDetails( event ) );
+        }
+        return details;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public Map<Long, SwitchCounters>         getSwitchCounters()    { return mSwitchCounters; }
+    public Map<Ipv4Prefix, PaddedAtomicLong> getIpv4EntryCounters() { return mIpv4EntryCounters; }
+    public Map<String, PaddedAtomicLong>     getDnsEntryCounters()  { return mDnsEntryCounters; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Drop the counters of entries that are no longer listed, after a batch
+     * removed or replaced records. Only entries that blocked a packet have
+     * a counter, so this walks far fewer keys than the blacklist holds.
+     * @param snapshot - blacklist just published
+     */
+    public void removeEntryCounters( final BlacklistSnapshot snapshot )
+    {
+        for( final Iterator<Ipv4Prefix> it = mIpv4EntryCounters.keySet().iterator(); it.hasNext(); )
+        {
+            if( !snapshot.getIpv4Matcher().containsEntry( it.next() ) ) it.remove();
+        }
+        for( final Iterator<String> it = mDnsEntryCounters.keySet().iterator(); it.hasNext(); )
+        {
+            if( !snapshot.getDnsMatcher().contains( it.next() ) ) it.remove();
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param limit - maximum number of domains
+     * @return most often blocked queried domain names, most first
+     */
+    public List<SpaceSaving.Counter<String>>  getTopDomains( int limit ) { return mTopDomains.getTop( limit ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param limit - maximum number of addresses
+     * @return source IPv4 addresses of the most blocked packets, most first
+     */
+    public List<SpaceSaving.Counter<Integer>> getTopSources( int limit ) { return mTopSources.getTop( limit ); }
+
+    //---------------------------------------------------------------------------------------------
+    public TimeSeries getIpv4History()     { return mIpv4History; }
+    public TimeSeries getDnsHistory()      { return mDnsHistory; }
+    public TimeSeries getPacketInHistory() { return mPacketInHistory; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param nanos - time taken to process one PacketIn
+     */
+    public void updatePacketInStats( final long nanos ) { mPacketInHistory.record( nanos ); }
 
     //---------------------------------------------------------------------------------------------
-    public void updateIpv4Stats( final IOFSwitch ofSwitch, final OFMatch match, InetAddress ipAddr )
+    public void updateIpv4Stats( final IOFSwitch ofSwitch, final OFMatch match, int ipAddr )
     {
-        Date ts = new Date();
-        String ipv4DestStr =  ipAddr.getHostAddress();
-        mIpv4Stats.setMatch( ipv4DestStr, ts );  // Modify total statistic
+        mIpv4Stats.setMatch( IPv4.fromIPv4Address( ipAddr ), System.currentTimeMillis() );  // Modify total statistic
+        switchCounters( ofSwitch.getId() ).mIpv4Blocked.increment();
+        mIpv4History.increment();
+        mTopSources.offer( match.getNetworkSource() );
+
+        final Ipv4Prefix entry = BlacklistMgr.getInstance().findIpv4Record( ipAddr );
+        if( entry != null ) entryCounter( mIpv4EntryCounters, entry ).incrementAndGet();
 
         // Add records to the list of detailed statistics
-        StatisticsDetails statDetails = new StatisticsDetails(ofSwitch, match, ipv4DestStr, ts);
-        mEntryDetails.add(statDetails);
+        mEntryDetails.addIpv4( ofSwitch.getId(), match.getInputPort(), match.getNetworkSource(), ipAddr );
     }
 
     //---------------------------------------------------------------------------------------------
     public void updateDnsStats( final IOFSwitch ofSwitch, final OFMatch match, String domainName )
     {
-        Date ts = new Date();
-        mDnsStats.setMatch( domainName, ts) ;    // Modify total statistic
+        mDnsStats.setMatch( domainName, System.currentTimeMillis() );    // Modify total statistic
+        switchCounters( ofSwitch.getId() ).mDnsBlocked.increment();
+        mDnsHistory.increment();
+        mTopSources.offer( match.getNetworkSource() );
+        // Queries are lower case as a rule, so neither call below copies the name for an exact hit
+        final String name = DomainTrie.toLowerCase( domainName );
+        mTopDomains.offer( name );
+
+        final String entry = BlacklistMgr.getInstance().findDnsRecord( name );
+        if( entry != null ) entryCounter( mDnsEntryCounters, entry ).incrementAndGet();
 
         // Add records to the list of detailed statistics
-        StatisticsDetails statDetails = new StatisticsDetails(ofSwitch, match, domainName, ts);
-        mEntryDetails.add(statDetails);
+        mEntryDetails.addDns( ofSwitch.getId(), match.getInputPort(), match.getNetworkSource(), domainName );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Count a PacketIn dropped by the rate limiter.
+     * @param ofSwitch - switch the PacketIn came from
+     * @param source   - source IPv4 or MAC address, only used if blocked
+     * @param blocked  - true if the source was blocked just now
+     */
+    public void updateRateLimitStats( final IOFSwitch ofSwitch, final String source, final boolean blocked )
+    {
+        switchCounters( ofSwitch.getId() ).mRateLimited.increment();
+        if( !blocked ) return;
+
+        final String entry = source + "@" + ofSwitch.getStringId();
+        mRateLimitStats.setMatch( entry, System.currentTimeMillis() );
+        LOG.warn( "Source {} exceeded its PacketIn rate and is blocked.", entry );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private SwitchCounters switchCounters( final long dpid )
+    {
+        SwitchCounters counters = mSwitchCounters.get( dpid );
+        if( counters == null )
+        {
+            final SwitchCounters created = new SwitchCounters();
+            counters = mSwitchCounters.putIfAbsent( dpid, created );
+            if( counters == null ) counters = created;
+        }
+        return counters;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static <K> PaddedAtomicLong entryCounter( final ConcurrentHashMap<K, PaddedAtomicLong> counters, final K entry )
+    {
+        PaddedAtomicLong counter = counters.get( entry );
+        if( counter == null )
+        {
+            final PaddedAtomicLong created = new PaddedAtomicLong();
+            counter = counters.putIfAbsent( entry, created );
+            if( counter == null ) counter = created;
+        }
+        return counter;
     }
 }
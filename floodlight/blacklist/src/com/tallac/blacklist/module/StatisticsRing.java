@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity ring of blocked packet events, written by many PacketIn
+ * threads without locks.
+ *
+ * Each event is stored in preallocated atomic arrays; only DNS events
+ * keep a reference, to the domain name string. A writer claims a sequence
+ * number, marks the slot busy with a compare-and-set on the slot's
+ * published sequence, fills it and publishes its own sequence number. A
+ * writer that finds the slot busy or already holding a newer event, i.e.
+ * one that was lapped by writers a full ring ahead, drops its event. A
+ * reader copies a slot and keeps it only if the slot still holds the same
+ * sequence number afterwards, so overwritten or half written events are
+ * skipped instead of returned torn. The fields are read and written
+ * through the atomic arrays, which orders them against the published
+ * sequence; plain array accesses could be reordered past the check.
+ */
+public class StatisticsRing
+{
+    private static final long EMPTY = -1;
+    private static final long BUSY  = -2;
+
+    private final int             mMask;
+    private final AtomicLong      mNext = new AtomicLong();
+    private final AtomicLongArray mPublished;
+
+    private final AtomicLongArray              mNanos;
+    private final AtomicLongArray              mDpid;
+    private final AtomicIntegerArray           mInPort;
+    private final AtomicIntegerArray           mSrcIp;
+    private final AtomicIntegerArray           mDstIp;
+    private final AtomicReferenceArray<String> mDomain;
+
+    //---- Converts System.nanoTime() to wall clock time
+    private final long mBaseNanos  = System.nanoTime();
+    private final long mBaseMillis = System.currentTimeMillis();
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * A copy of one event; reused by the reader.
+     */
+    public static class Event
+    {
+        public long   sequence;
+        public long   timeMillis;
+        public long   dpid;
+        public short  inPort;
+        public int    srcIp;
+        public int    dstIp;     // IPv4 events
+        public String domain;    // DNS events, null for IPv4 events
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param capacity - number of events kept, rounded up to a power of two
+     */
+    public StatisticsRing( final int capacity )
+    {
+        int size = 16;
+        while( size < capacity && size < ( 1 << 24 ) ) size <<= 1;
+
+        mMask      = size - 1;
+        mPublished = new AtomicLongArray( size );
+        mNanos     = new AtomicLongArray( size );
+        mDpid      = new AtomicLongArray( size );
+        mInPort    = new AtomicIntegerArray( size );
+        mSrcIp     = new AtomicIntegerArray( size );
+        mDstIp     = new AtomicIntegerArray( size );
+        mDomain    = new AtomicReferenceArray<String>( size );
+
+        for( int i = 0; i < size; i++ ) mPublished.set( i, EMPTY );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public void addIpv4( final long dpid, final short inPort, final int srcIp, final int dstIp )
+    {
+        add( dpid, inPort, srcIp, dstIp, null );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public void addDns( final long dpid, final short inPort, final int srcIp, final String domain )
+    {
+        add( dpid, inPort, srcIp, 0, domain );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void add( final long dpid, final short inPort, final int srcIp, final int dstIp, final String domain )
+    {
+        final long seq = mNext.getAndIncrement();
+        final int  i   = (int) seq & mMask;
+
+        // Claim the slot; a writer still filling it, or a newer event, wins
+        final long current = mPublished.get( i );
+        if( current == BUSY || current > seq || !mPublished.compareAndSet( i, current, BUSY ) ) return;
+
+        mNanos.set(  i, System.nanoTime() );
+        mDpid.set(   i, dpid );
+        mInPort.set( i, inPort );
+        mSrcIp.set(  i, srcIp );
+        mDstIp.set(  i, dstIp );
+        mDomain.set( i, domain );
+        mPublished.set( i, seq );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return sequence number of the next event; also the number of events added so far
+     */
+    public long getNextSequence() { return mNext.get(); }
+
+    //---------------------------------------------------------------------------------------------
+    public int getCapacity() { return mMask + 1; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Copy an event.
+     * @param seq   - event sequence number
+     * @param event - receives the event
+     * @return false if the event was overwritten, dropped or is still being written
+     */
+    public boolean read( final long seq, final Event event )
+    {
+        final int i = (int) seq & mMask;
+        if( mPublished.get( i ) != seq ) return false;
+
+        event.sequence   = seq;
+        event.timeMillis = mBaseMillis + TimeUnit.NANOSECONDS.toMillis( mNanos.get( i ) - mBaseNanos );
+        event.dpid       = mDpid.get( i );
+        event.inPort     = (short) mInPort.get( i );
+        event.srcIp      = mSrcIp.get( i );
+        event.dstIp      = mDstIp.get( i );
+        event.domain     = mDomain.get( i );
+
+        return mPublished.get( i ) == seq;
+    }
+}
@@ -60,7 +60,11 @@ public class SwitchListener implements IOFSwitchListener
 
     //---------------------------------------------------------------------------------------------
     @Override
-    public void removedSwitch(final IOFSwitch ofSwitch) { LOG.debug("Switch {} disconnected", ofSwitch); }
+    public void removedSwitch(final IOFSwitch ofSwitch)
+    {
+        LOG.debug("Switch {} disconnected", ofSwitch);
+        FlowMgr.getInstance().removeSwitch(ofSwitch);
+    }
 
     //---------------------------------------------------------------------------------------------
     @Override
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.blacklist.module;
+
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.topology.ITopologyListener;
+import net.floodlightcontroller.topology.ITopologyService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The TopologyListener class receives topology changes and device
+ * location changes, which invalidate the output ports cached by FlowMgr.
+ */
+public class TopologyListener implements ITopologyListener, IDeviceListener
+{
+    private static final TopologyListener INSTANCE = new TopologyListener();
+    private static final Logger LOG = LoggerFactory.getLogger(TopologyListener.class);
+
+    private static ITopologyService mTopology;
+    private static IDeviceService   mDeviceService;
+
+    //---------------------------------------------------------------------------------------------
+    private TopologyListener() { }  // private constructor - prevent external instantiation
+
+    //---------------------------------------------------------------------------------------------
+    public static TopologyListener getInstance() { return INSTANCE; }
+
+    //---------------------------------------------------------------------------------------------
+    public void init(final FloodlightModuleContext context)
+    {
+        LOG.trace("Initialize BlackList topology listener.");
+
+        if (mTopology != null) throw new RuntimeException("Topology listener already initialized");
+
+        mTopology      = context.getServiceImpl(ITopologyService.class);
+        mDeviceService = context.getServiceImpl(IDeviceService.class);
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public void startUp()
+    {
+        LOG.trace("Register BlackList topology and device listener.");
+        mTopology.addListener(this);
+        mDeviceService.addListener(this);
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public void topologyChanged()
+    {
+        LOG.debug("Topology changed");
+        FlowMgr.getInstance().invalidateOutputPorts();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public void deviceMoved(final IDevice device)
+    {
+        LOG.debug("Device {} moved", device.getMACAddressString());
+        FlowMgr.getInstance().invalidateOutputPorts();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public void deviceRemoved(final IDevice device)
+    {
+        LOG.debug("Device {} removed", device.getMACAddressString());
+        FlowMgr.getInstance().invalidateOutputPorts();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public void deviceAdded(final IDevice device) { }
+
+    @Override
+    public void deviceIPV4AddrChanged(final IDevice device) { }
+
+    @Override
+    public void deviceVlanChanged(final IDevice device) { }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Reversed-character trie of blacklisted domain names.
+ *
+ * Names are stored right to left ("evil.com" is stored as "moc.live"), so a
+ * single right-to-left pass over a queried name visits every parent zone of
+ * the name on the way. A listed zone therefore blocks itself and all of its
+ * subdomains. Nodes live in parallel primitive arrays (first-child /
+ * next-sibling layout) and lookups never allocate.
+ *
+ * Case folding is ASCII only, which is all DNS labels use.
+ */
+public class DomainTrie
+{
+    public static final int ROOT = 0;
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_NAME_LEN     = 255;
+    private static final int MAX_LABEL_LEN    = 63;
+    private static final int NODE_RECORD_SIZE = 2 + 4 + 4 + 1;   // label, first child, next sibling, terminal
+
+    private char[]    mLabel;
+    private int[]     mFirstChild;
+    private int[]     mNextSibling;
+    private boolean[] mTerminal;
+    private int       mNodeCount;
+    private int       mDeadNodes;   // pruned by remove(), still allocated
+    private int       mSize;
+
+    //---------------------------------------------------------------------------------------------
+    public DomainTrie()
+    {
+        this( INITIAL_CAPACITY );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public DomainTrie( int capacity )
+    {
+        capacity     = Math.max( capacity, 16 );
+        mLabel       = new char[capacity];
+        mFirstChild  = new int[capacity];
+        mNextSibling = new int[capacity];
+        mTerminal    = new boolean[capacity];
+        mNodeCount   = 0;
+        mSize        = 0;
+
+        newNode( (char) 0 );  // root
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Copy constructor; the copy can be changed without affecting the original.
+     * Nodes pruned from the original are left out of the copy.
+     * @param other - trie to copy
+     */
+    public DomainTrie( final DomainTrie other )
+    {
+        if( other.mDeadNodes > 0 )
+        {
+            copyLiveNodes( other );
+            return;
+        }
+
+        mLabel       = other.mLabel.clone();
+        mFirstChild  = other.mFirstChild.clone();
+        mNextSibling = other.mNextSibling.clone();
+        mTerminal    = other.mTerminal.clone();
+        mNodeCount   = other.mNodeCount;
+        mSize        = other.mSize;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Add domain name to the trie. A leading "*." and a trailing "." are
+     * ignored, since every listed zone already covers its subdomains.
+     * @param domainName - domain name
+     * @return true if the name was not listed before
+     */
+    public boolean add( final CharSequence domainName )
+    {
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end || end - start > MAX_NAME_LEN ) return false;
+
+        int node = ROOT;
+        for( int i = end - 1; i >= start; i-- )
+        {
+            final char c     = fold( domainName.charAt( i ) );
+            int        child = child( node, c );
+            if( child == NONE ) child = addChild( node, c );
+            node = child;
+        }
+
+        if( mTerminal[node] ) return false;
+
+        mTerminal[node] = true;
+        mSize++;
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Remove domain name from the trie. Nodes left without a listed name
+     * below them are unlinked; their slots are reclaimed when the trie is
+     * copied or written.
+     * @param domainName - domain name
+     * @return true if the name was listed
+     */
+    public boolean remove( final CharSequence domainName )
+    {
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end || end - start > MAX_NAME_LEN ) return false;
+
+        // Nodes along the name, from the root
+        final int[] path  = new int[end - start + 1];
+        int         depth = 0;
+
+        path[0] = ROOT;
+        for( int i = end - 1; i >= start; i-- )
+        {
+            final int child = child( path[depth], fold( domainName.charAt( i ) ) );
+            if( child == NONE ) return false;
+            path[++depth] = child;
+        }
+        if( !mTerminal[path[depth]] ) return false;
+
+        mTerminal[path[depth]] = false;
+        mSize--;
+
+        for( ; depth > 0 && !mTerminal[path[depth]] && mFirstChild[path[depth]] == NONE; depth-- )
+        {
+            unlink( path[depth - 1], path[depth] );
+            mDeadNodes++;
+        }
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param domainName - domain name
+     * @return true if exactly this name is listed
+     */
+    public boolean contains( final CharSequence domainName )
+    {
+        final int node = find( domainName );
+        return node != NONE && mTerminal[node];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Check domain name against the trie in one right-to-left pass.
+     * @param domainName - queried domain name
+     * @return true if the name or any of its parent zones is listed, or if
+     *         the name without "www." is queried and "www." + name is listed
+     */
+    public boolean matches( final CharSequence domainName )
+    {
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end ) return false;
+
+        int node = ROOT;
+        for( int i = end - 1; i >= start; i-- )
+        {
+            final char c = fold( domainName.charAt( i ) );
+
+            if( c == '.' && mTerminal[node] ) return true;  // parent zone is listed
+
+            node = child( node, c );
+            if( node == NONE ) return false;
+        }
+
+        if( mTerminal[node] ) return true;  // exact match
+
+        return !hasWwwPrefix( domainName, start, end ) && isWwwAliasListed( node );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Same check as {@link #matches(CharSequence)}, returning the listed name
+     * that matched. A lower-case String listed as is is returned itself;
+     * any other match creates the returned string, so it is meant for
+     * names that are already known to match, e.g. when counting hits per
+     * entry.
+     * @param domainName - queried domain name
+     * @return listed name in lower case, or null
+     */
+    public String findListedName( final CharSequence domainName )
+    {
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end ) return null;
+
+        int node = ROOT;
+        for( int i = end - 1; i >= start; i-- )
+        {
+            final char c = fold( domainName.charAt( i ) );
+
+            if( c == '.' && mTerminal[node] ) return lowerCase( domainName, i + 1, end );
+
+            node = child( node, c );
+            if( node == NONE ) return null;
+        }
+
+        if( mTerminal[node] ) return lowerCase( domainName, start, end );
+
+        if( !hasWwwPrefix( domainName, start, end ) && isWwwAliasListed( node ) )
+        {
+            return "www." + lowerCase( domainName, start, end );
+        }
+        return null;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Follow one character from the given node.
+     * @param node - current node
+     * @param c    - next character of the reversed name, already folded
+     * @return child node, or NONE
+     */
+    public int child( final int node, final char c )
+    {
+        for( int n = mFirstChild[node]; n != NONE; n = mNextSibling[n] )
+        {
+            if( mLabel[n] == c ) return n;
+        }
+        return NONE;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param node - node reached after a complete name
+     * @return true if "www." followed by that name is listed
+     */
+    public boolean isWwwAliasListed( int node )
+    {
+        node = child( node, '.' );
+        for( int i = 0; i < 3 && node != NONE; i++ ) node = child( node, 'w' );
+
+        return node != NONE && mTerminal[node];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public boolean isTerminal( final int node ) { return mTerminal[node]; }
+    public int     size()                       { return mSize; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param names - receives all listed names, in lower case
+     */
+    public void getNames( final Collection<String> names )
+    {
+        if( mSize == 0 ) return;
+
+        // Depth-first walk; the path from the root spells a name backwards
+        final char[] path  = new char[MAX_NAME_LEN];
+        final int[]  stack = new int[MAX_NAME_LEN];
+        int          depth = 0;
+
+        stack[0] = mFirstChild[ROOT];
+        while( depth >= 0 )
+        {
+            final int node = stack[depth];
+            if( node == NONE )
+            {
+                depth--;
+                if( depth >= 0 ) stack[depth] = mNextSibling[stack[depth]];
+                continue;
+            }
+
+            path[depth] = mLabel[node];
+            if( mTerminal[node] ) names.add( reversed( path, depth + 1 ) );
+
+            if( depth + 1 < path.length && mFirstChild[node] != NONE )
+            {
+                stack[++depth] = mFirstChild[node];
+            }
+            else
+            {
+                stack[depth] = mNextSibling[node];
+            }
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Write the trie in the format read by {@link #readFrom(ByteBuffer)}.
+     * @param out - output
+     */
+    public void writeTo( final DataOutput out ) throws IOException
+    {
+        if( mDeadNodes > 0 )
+        {
+            new DomainTrie( this ).writeTo( out );
+            return;
+        }
+
+        out.writeInt( mNodeCount );
+        out.writeInt( mSize );
+        for( int i = 0; i < mNodeCount; i++ ) out.writeChar( mLabel[i] );
+        for( int i = 0; i < mNodeCount; i++ ) out.writeInt( mFirstChild[i] );
+        for( int i = 0; i < mNodeCount; i++ ) out.writeInt( mNextSibling[i] );
+        for( int i = 0; i < mNodeCount; i++ ) out.writeByte( mTerminal[i] ? 1 : 0 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Read a trie written by {@link #writeTo(DataOutput)}. The node arrays
+     * are bulk copied, so no name is parsed or re-inserted. The counts are
+     * checked against the input before anything is allocated, and every
+     * link is checked to point at a node no other link points at, so a
+     * walk from the root always ends.
+     * @param in - input, positioned at the trie; left positioned after it
+     * @return trie
+     * @throws IllegalArgumentException if the input does not hold a valid trie
+     */
+    public static DomainTrie readFrom( final ByteBuffer in )
+    {
+        final int nodeCount = in.getInt();
+        final int size      = in.getInt();
+        if( nodeCount < 1 || size < 0 || size > nodeCount ) throw new IllegalArgumentException( "Invalid trie header" );
+        if( nodeCount > in.remaining() / NODE_RECORD_SIZE ) throw new IllegalArgumentException( "Invalid trie node count" );
+
+        final DomainTrie trie = new DomainTrie( nodeCount );
+
+        in.asCharBuffer().get( trie.mLabel, 0, nodeCount );
+        in.position( in.position() + 2 * nodeCount );
+        in.asIntBuffer().get( trie.mFirstChild, 0, nodeCount );
+        in.position( in.position() + 4 * nodeCount );
+        in.asIntBuffer().get( trie.mNextSibling, 0, nodeCount );
+        in.position( in.position() + 4 * nodeCount );
+        for( int i = 0; i < nodeCount; i++ ) trie.mTerminal[i] = in.get() != 0;
+
+        trie.mNodeCount = nodeCount;
+        trie.mSize      = size;
+        trie.checkLinks();
+        return trie;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Check a name to be listed: letter-digit-hyphen labels of 1 to 63
+     * characters that do not start or end with a hyphen, up to 255
+     * characters in all. A leading "*." and a trailing "." are allowed, as
+     * {@link #add(CharSequence)} ignores them.
+     * @param domainName - domain name
+     * @return true if the name is valid
+     */
+    public static boolean isValidName( final CharSequence domainName )
+    {
+        if( domainName == null ) return false;
+
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end || end - start > MAX_NAME_LEN ) return false;
+
+        int labelStart = start;
+        for( int i = start; i <= end; i++ )
+        {
+            if( i == end || domainName.charAt( i ) == '.' )
+            {
+                final int labelLen = i - labelStart;
+                if( labelLen == 0 || labelLen > MAX_LABEL_LEN ) return false;
+                if( domainName.charAt( labelStart ) == '-' || domainName.charAt( i - 1 ) == '-' ) return false;
+                labelStart = i + 1;
+                continue;
+            }
+
+            final char c = fold( domainName.charAt( i ) );
+            if( !( c >= 'a' && c <= 'z' ) && !( c >= '0' && c <= '9' ) && c != '-' ) return false;
+        }
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * ASCII lower case, independent of the default locale.
+     * @param str - string
+     * @return str itself if it has no upper-case letter, a lower-case copy otherwise
+     */
+    public static String toLowerCase( final String str )
+    {
+        return lowerCase( str, 0, str.length() );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static char fold( final char c )
+    {
+        return ( c >= 'A' && c <= 'Z' ) ? (char) ( c + ( 'a' - 'A' ) ) : c;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int find( final CharSequence domainName )
+    {
+        final int start = nameStart( domainName );
+        final int end   = nameEnd( domainName );
+        if( start >= end ) return NONE;
+
+        int node = ROOT;
+        for( int i = end - 1; i >= start && node != NONE; i-- )
+        {
+            node = child( node, fold( domainName.charAt( i ) ) );
+        }
+        return node;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int nameStart( final CharSequence domainName )
+    {
+        if( domainName.length() > 1 && domainName.charAt( 0 ) == '*' && domainName.charAt( 1 ) == '.' ) return 2;
+        return 0;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int nameEnd( final CharSequence domainName )
+    {
+        final int len = domainName.length();
+        return ( len > 0 && domainName.charAt( len - 1 ) == '.' ) ? len - 1 : len;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static String reversed( final char[] path, final int length )
+    {
+        final char[] name = new char[length];
+        for( int i = 0; i < length; i++ ) name[i] = path[length - 1 - i];
+        return new String( name );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static String lowerCase( final CharSequence str, final int start, final int end )
+    {
+        if( start == 0 && end == str.length() && str instanceof String && !hasUpperCase( str ) ) return (String) str;
+
+        final char[] chars = new char[end - start];
+        for( int i = start; i < end; i++ ) chars[i - start] = fold( str.charAt( i ) );
+        return new String( chars );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static boolean hasUpperCase( final CharSequence str )
+    {
+        for( int i = 0; i < str.length(); i++ )
+        {
+            if( str.charAt( i ) >= 'A' && str.charAt( i ) <= 'Z' ) return true;
+        }
+        return false;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static boolean hasWwwPrefix( final CharSequence domainName, final int start, final int end )
+    {
+        return end - start > 4
+            && fold( domainName.charAt( start ) )     == 'w'
+            && fold( domainName.charAt( start + 1 ) ) == 'w'
+            && fold( domainName.charAt( start + 2 ) ) == 'w'
+            && domainName.charAt( start + 3 )         == '.';
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void unlink( final int parent, final int node )
+    {
+        if( mFirstChild[parent] == node )
+        {
+            mFirstChild[parent] = mNextSibling[node];
+            return;
+        }
+
+        int n = mFirstChild[parent];
+        while( mNextSibling[n] != node ) n = mNextSibling[n];
+        mNextSibling[n] = mNextSibling[node];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  checkLinks:  every node but the root is linked exactly once, and the terminal count matches
+    private void checkLinks()
+    {
+        final boolean[] linked    = new boolean[mNodeCount];
+        int             terminals = 0;
+
+        for( int n = 0; n < mNodeCount; n++ )
+        {
+            linkTo( linked, mFirstChild[n] );
+            linkTo( linked, mNextSibling[n] );
+            if( mTerminal[n] ) terminals++;
+        }
+        if( mNextSibling[ROOT] != NONE || mTerminal[ROOT] ) throw new IllegalArgumentException( "Invalid trie root" );
+        if( terminals != mSize )                            throw new IllegalArgumentException( "Invalid trie size" );
+
+        for( int n = 1; n < mNodeCount; n++ )
+        {
+            if( !linked[n] ) throw new IllegalArgumentException( "Unlinked trie node " + n );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static void linkTo( final boolean[] linked, final int node )
+    {
+        if( node == NONE ) return;
+        if( node <= ROOT || node >= linked.length || linked[node] ) throw new IllegalArgumentException( "Invalid trie link " + node );
+        linked[node] = true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  copyLiveNodes:  copy the nodes reachable from the root, renumbered breadth first
+    private void copyLiveNodes( final DomainTrie other )
+    {
+        final int live     = other.mNodeCount - other.mDeadNodes;
+        final int capacity = Math.max( live, 16 );
+
+        mLabel       = new char[capacity];
+        mFirstChild  = new int[capacity];
+        mNextSibling = new int[capacity];
+        mTerminal    = new boolean[capacity];
+
+        // A node's new number is its position in the queue
+        final int[] queue = new int[live];
+        int         count = 1;
+
+        queue[0]        = ROOT;
+        mLabel[0]       = other.mLabel[ROOT];
+        mTerminal[0]    = other.mTerminal[ROOT];
+        mNextSibling[0] = NONE;
+
+        for( int head = 0; head < count; head++ )
+        {
+            int prev = NONE;
+            mFirstChild[head] = NONE;
+
+            for( int n = other.mFirstChild[queue[head]]; n != NONE; n = other.mNextSibling[n] )
+            {
+                final int node = count++;
+                queue[node]        = n;
+                mLabel[node]       = other.mLabel[n];
+                mTerminal[node]    = other.mTerminal[n];
+                mNextSibling[node] = NONE;
+
+                if( prev == NONE ) mFirstChild[head]  = node;
+                else               mNextSibling[prev] = node;
+                prev = node;
+            }
+        }
+
+        mNodeCount = count;
+        mSize      = other.mSize;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int addChild( final int parent, final char c )
+    {
+        final int node = newNode( c );
+
+        mNextSibling[node]  = mFirstChild[parent];
+        mFirstChild[parent] = node;
+        return node;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int newNode( final char c )
+    {
+        if( mNodeCount == mLabel.length ) grow();
+
+        final int node = mNodeCount++;
+        mLabel[node]       = c;
+        mFirstChild[node]  = NONE;
+        mNextSibling[node] = NONE;
+        mTerminal[node]    = false;
+        return node;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void grow()
+    {
+        final int capacity = mLabel.length * 2;
+
+        final char[]    label       = new char[capacity];
+        final int[]     firstChild  = new int[capacity];
+        final int[]     nextSibling = new int[capacity];
+        final boolean[] terminal    = new boolean[capacity];
+
+        System.arraycopy( mLabel,       0, label,       0, mNodeCount );
+        System.arraycopy( mFirstChild,  0, firstChild,  0, mNodeCount );
+        System.arraycopy( mNextSibling, 0, nextSibling, 0, mNodeCount );
+        System.arraycopy( mTerminal,    0, terminal,    0, mNodeCount );
+
+        mLabel       = label;
+        mFirstChild  = firstChild;
+        mNextSibling = nextSibling;
+        mTerminal    = terminal;
+    }
+}
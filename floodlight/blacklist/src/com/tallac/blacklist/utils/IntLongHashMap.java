@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+/**
+ * Map from non-zero int keys, e.g. IPv4 addresses, to long values.
+ *
+ * Open addressing with linear probing over two primitive arrays, so lookups
+ * and updates create no objects. Key 0 marks a free slot and can not be
+ * stored. Not thread safe.
+ */
+public class IntLongHashMap
+{
+    public static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[]  mKeys;
+    private long[] mValues;
+    private int    mSize;
+
+    //---------------------------------------------------------------------------------------------
+    public IntLongHashMap()
+    {
+        mKeys   = new int[INITIAL_CAPACITY];
+        mValues = new long[INITIAL_CAPACITY];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param key - non-zero key
+     * @return value, or {@link #NO_VALUE} if the key is not in the map
+     */
+    public long get( final int key )
+    {
+        final int[] keys = mKeys;
+        final int   mask = keys.length - 1;
+        for( int i = hash( key ) & mask; keys[i] != 0; i = ( i + 1 ) & mask )
+        {
+            if( keys[i] == key ) return mValues[i];
+        }
+        return NO_VALUE;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param key   - non-zero key
+     * @param value - value
+     * @return previous value, or {@link #NO_VALUE}
+     */
+    public long put( final int key, final long value )
+    {
+        if( key == 0 ) throw new IllegalArgumentException( "Key 0 can not be stored" );
+
+        if( ( mSize + 1 ) * 2 > mKeys.length ) rehash( mKeys.length * 2 );
+
+        final int mask = mKeys.length - 1;
+        int       i    = hash( key ) & mask;
+        for( ; mKeys[i] != 0; i = ( i + 1 ) & mask )
+        {
+            if( mKeys[i] == key )
+            {
+                final long previous = mValues[i];
+                mValues[i] = value;
+                return previous;
+            }
+        }
+
+        mKeys[i]   = key;
+        mValues[i] = value;
+        mSize++;
+        return NO_VALUE;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  remove:  backward shift, so no tombstones are needed
+    /**
+     * @param key - key
+     * @return removed value, or {@link #NO_VALUE}
+     */
+    public long remove( final int key )
+    {
+        if( key == 0 ) return NO_VALUE;
+
+        final int[]  keys   = mKeys;
+        final long[] values = mValues;
+        final int    mask   = keys.length - 1;
+
+        int i = hash( key ) & mask;
+        while( keys[i] != key )
+        {
+            if( keys[i] == 0 ) return NO_VALUE;
+            i = ( i + 1 ) & mask;
+        }
+        final long removed = values[i];
+
+        int gap = i;
+        for( int j = ( gap + 1 ) & mask; keys[j] != 0; j = ( j + 1 ) & mask )
+        {
+            final int home = hash( keys[j] ) & mask;
+
+            // Move the entry back if its home slot does not lie cyclically in (gap, j]
+            if( ( ( j - home ) & mask ) >= ( ( j - gap ) & mask ) )
+            {
+                keys[gap]   = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        mSize--;
+        return removed;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Remove all keys within an address range, e.g. an IPv4 prefix.
+     * @param address - range base
+     * @param mask    - range mask; a key is removed if (key &amp; mask) == (address &amp; mask)
+     * @return number of keys removed
+     */
+    public int removeMasked( final int address, final int mask )
+    {
+        if( mask == -1 ) return ( remove( address ) == NO_VALUE ) ? 0 : 1;   // a single host, no scan
+
+        final int base = address & mask;
+
+        int   count   = 0;
+        int[] matched = null;
+        for( final int key : mKeys )
+        {
+            if( key == 0 || ( key & mask ) != base ) continue;
+
+            if( matched == null ) matched = new int[Math.min( mSize, 16 )];
+            if( count == matched.length )
+            {
+                final int[] grown = new int[count * 2];
+                System.arraycopy( matched, 0, grown, 0, count );
+                matched = grown;
+            }
+            matched[count++] = key;
+        }
+
+        // Removal shifts entries, so it is done after the scan
+        for( int i = 0; i < count; i++ ) remove( matched[i] );
+        return count;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Remove all keys listed in or covered by a set of hosts and prefixes,
+     * in a single pass; a set of only a few hosts is removed key by key.
+     * @param prefixes - hosts and prefixes
+     * @return number of keys removed
+     */
+    public int removeCovered( final Ipv4PrefixSet prefixes )
+    {
+        int count = 0;
+
+        if( prefixes.getPrefixCount() == 0 && prefixes.size() < mSize )
+        {
+            for( final int host : prefixes.getHosts() )
+            {
+                if( remove( host ) != NO_VALUE ) count++;
+            }
+            return count;
+        }
+
+        int[] matched = null;
+        for( final int key : mKeys )
+        {
+            if( key == 0 || !prefixes.contains( key ) ) continue;
+
+            if( matched == null ) matched = new int[Math.min( mSize, 16 )];
+            if( count == matched.length )
+            {
+                final int[] grown = new int[count * 2];
+                System.arraycopy( matched, 0, grown, 0, count );
+                matched = grown;
+            }
+            matched[count++] = key;
+        }
+
+        // Removal shifts entries, so it is done after the scan
+        for( int i = 0; i < count; i++ ) remove( matched[i] );
+        return count;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return copy of the keys, in no particular order
+     */
+    public int[] keys()
+    {
+        final int[] keys  = new int[mSize];
+        int         count = 0;
+        for( final int key : mKeys )
+        {
+            if( key != 0 ) keys[count++] = key;
+        }
+        return keys;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int size() { return mSize; }
+
+    //---------------------------------------------------------------------------------------------
+    public void clear()
+    {
+        mKeys   = new int[INITIAL_CAPACITY];
+        mValues = new long[INITIAL_CAPACITY];
+        mSize   = 0;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void rehash( final int capacity )
+    {
+        final int[]  oldKeys   = mKeys;
+        final long[] oldValues = mValues;
+
+        mKeys   = new int[capacity];
+        mValues = new long[capacity];
+        mSize   = 0;
+        for( int i = 0; i < oldKeys.length; i++ )
+        {
+            if( oldKeys[i] != 0 ) put( oldKeys[i], oldValues[i] );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int hash( final int key )
+    {
+        final int h = key * 0x9E3779B9;
+        return h ^ ( h >>> 16 );
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+/**
+ * IPv4 address prefix, e.g. 203.0.113.0/24. A single host is a /32 prefix.
+ */
+public class Ipv4Prefix
+{
+    /**
+     * Shortest prefix {@link #parse} accepts. Blacklisting a shorter one
+     * would drop most of the address space and delete nearly every flow.
+     */
+    public static final int MIN_LENGTH = 8;
+
+    private final int mAddress;
+    private final int mLength;
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param address - IPv4 address, host bits beyond the prefix are cleared
+     * @param length  - prefix length, 0..32
+     */
+    public Ipv4Prefix( final int address, final int length )
+    {
+        if( length < 0 || length > 32 ) throw new IllegalArgumentException( "Invalid prefix length " + length );
+
+        mAddress = address & mask( length );
+        mLength  = length;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Parse "a.b.c.d" or "a.b.c.d/n" without regular expressions or name
+     * resolution.
+     * @param str - prefix string
+     * @return prefix, or null if the string is not a valid IPv4 address/prefix
+     *         or the prefix is shorter than {@link #MIN_LENGTH}
+     */
+    public static Ipv4Prefix parse( String str )
+    {
+        if( str == null ) return null;
+
+        str = str.trim();
+        final int len = str.length();
+        if( len < 7 || len > 18 ) return null;
+
+        int address = 0;
+        int octets  = 0;
+        int pos     = 0;
+
+        while( octets < 4 )
+        {
+            final int start = pos;
+            int       value = 0;
+
+            while( pos < len && pos - start < 3 && Character.isDigit( str.charAt( pos ) ) )
+            {
+                value = value * 10 + ( str.charAt( pos ) - '0' );
+                pos++;
+            }
+            if( pos == start || value > 255 ) return null;
+
+            address = ( address << 8 ) | value;
+            octets++;
+
+            if( octets < 4 )
+            {
+                if( pos >= len || str.charAt( pos ) != '.' ) return null;
+                pos++;
+            }
+        }
+
+        if( pos == len ) return new Ipv4Prefix( address, 32 );
+        if( str.charAt( pos ) != '/' || pos + 1 == len || len - pos > 3 ) return null;
+
+        int prefixLen = 0;
+        for( pos++; pos < len; pos++ )
+        {
+            if( !Character.isDigit( str.charAt( pos ) ) ) return null;
+            prefixLen = prefixLen * 10 + ( str.charAt( pos ) - '0' );
+        }
+        if( prefixLen < MIN_LENGTH || prefixLen > 32 ) return null;
+
+        return new Ipv4Prefix( address, prefixLen );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static int mask( final int length )
+    {
+        return ( length == 0 ) ? 0 : ( 0xFFFFFFFF << ( 32 - length ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static String toAddressString( final int address )
+    {
+        return ( ( address >>> 24 ) & 0xFF ) + "." + ( ( address >>> 16 ) & 0xFF ) + "."
+             + ( ( address >>> 8 )  & 0xFF ) + "." + ( address & 0xFF );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int     getAddress()        { return mAddress; }
+    public int     getLength()         { return mLength; }
+    public boolean isHost()            { return mLength == 32; }
+    public boolean covers( int addr )  { return ( addr & mask( mLength ) ) == mAddress; }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public boolean equals( Object obj )
+    {
+        if( !( obj instanceof Ipv4Prefix ) ) return false;
+
+        Ipv4Prefix other = (Ipv4Prefix) obj;
+        return mAddress == other.mAddress && mLength == other.mLength;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public int hashCode() { return mAddress * 31 + mLength; }
+
+    //---------------------------------------------------------------------------------------------
+    //  toString:  hosts are printed without "/32", which keeps the blacklist file format unchanged
+    @Override
+    public String toString()
+    {
+        return isHost() ? toAddressString( mAddress ) : toAddressString( mAddress ) + "/" + mLength;
+    }
+}
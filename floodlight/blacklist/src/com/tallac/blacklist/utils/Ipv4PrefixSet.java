@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Set of IPv4 hosts and prefixes keyed by primitive int addresses.
+ *
+ * Hosts (/32) are kept in an open-addressing hash set with linear probing;
+ * shorter prefixes are kept in a binary radix trie stored in int arrays.
+ * {@link #contains(int)} answers "is this address listed or covered by a
+ * listed prefix" without creating objects.
+ */
+public class Ipv4PrefixSet
+{
+    private static final int NONE             = -1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    //---- Host set. 0 marks a free slot, so address 0.0.0.0 is tracked separately.
+    private int[]   mHosts;
+    private int     mHostCount;
+    private boolean mHasZeroHost;
+
+    //---- Prefix trie, node 0 is the root (/0)
+    private int[]     mChild0;
+    private int[]     mChild1;
+    private boolean[] mPrefixEnd;
+    private int       mNodeCount;
+    private int       mDeadNodes;   // pruned by remove(), still allocated
+    private int       mPrefixCount;
+
+    //---------------------------------------------------------------------------------------------
+    public Ipv4PrefixSet()
+    {
+        this( INITIAL_CAPACITY );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public Ipv4PrefixSet( final int expectedHosts )
+    {
+        mHosts = new int[tableSizeFor( expectedHosts )];
+
+        mChild0    = new int[INITIAL_CAPACITY];
+        mChild1    = new int[INITIAL_CAPACITY];
+        mPrefixEnd = new boolean[INITIAL_CAPACITY];
+        newNode();  // root
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Copy constructor; the copy can be changed without affecting the original.
+     * Trie nodes pruned from the original are left out of the copy.
+     * @param other - set to copy
+     */
+    public Ipv4PrefixSet( final Ipv4PrefixSet other )
+    {
+        mHosts       = other.mHosts.clone();
+        mHostCount   = other.mHostCount;
+        mHasZeroHost = other.mHasZeroHost;
+
+        if( other.mDeadNodes > 0 )
+        {
+            copyLiveNodes( other );
+            return;
+        }
+
+        mChild0      = other.mChild0.clone();
+        mChild1      = other.mChild1.clone();
+        mPrefixEnd   = other.mPrefixEnd.clone();
+        mNodeCount   = other.mNodeCount;
+        mPrefixCount = other.mPrefixCount;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param addr - IPv4 address, e.g. from OFMatch.getNetworkDestination()
+     * @return true if the address is listed or covered by a listed prefix
+     */
+    public boolean contains( final int addr )
+    {
+        if( containsHost( addr ) ) return true;
+        if( mPrefixCount == 0 )    return false;
+
+        int node = 0;
+        for( int bit = 31; bit >= 0; bit-- )
+        {
+            if( mPrefixEnd[node] ) return true;
+
+            node = ( ( addr >>> bit ) & 1 ) == 0 ? mChild0[node] : mChild1[node];
+            if( node == NONE ) return false;
+        }
+        return false;  // a /32 is never stored in the trie
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param addr - IPv4 address
+     * @return length of the longest listed host or prefix covering the
+     *         address (32 for a listed host), or -1 if none does
+     */
+    public int matchLength( final int addr )
+    {
+        if( containsHost( addr ) ) return 32;
+
+        int match = -1;
+        int node  = 0;
+        for( int depth = 0; depth < 32 && node != NONE; depth++ )
+        {
+            if( mPrefixEnd[node] ) match = depth;
+            node = ( ( addr >>> ( 31 - depth ) ) & 1 ) == 0 ? mChild0[node] : mChild1[node];
+        }
+        return match;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param prefix - host or prefix
+     * @return true if exactly this host or prefix is listed
+     */
+    public boolean containsEntry( final Ipv4Prefix prefix )
+    {
+        if( prefix.isHost() ) return containsHost( prefix.getAddress() );
+
+        final int node = findNode( prefix, false );
+        return node != NONE && mPrefixEnd[node];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param entry - host or prefix
+     * @return true if the entry is listed or lies within a listed prefix
+     */
+    public boolean covers( final Ipv4Prefix entry )
+    {
+        if( entry.isHost() ) return contains( entry.getAddress() );
+
+        final int addr = entry.getAddress();
+        int       node = 0;
+        for( int depth = 0; node != NONE; depth++ )
+        {
+            if( mPrefixEnd[node] )           return true;
+            if( depth == entry.getLength() ) return false;
+
+            node = ( ( addr >>> ( 31 - depth ) ) & 1 ) == 0 ? mChild0[node] : mChild1[node];
+        }
+        return false;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public boolean add( final Ipv4Prefix prefix )
+    {
+        if( prefix.isHost() ) return addHost( prefix.getAddress() );
+
+        final int node = findNode( prefix, true );
+        if( mPrefixEnd[node] ) return false;
+
+        mPrefixEnd[node] = true;
+        mPrefixCount++;
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Remove a host or prefix. Trie nodes left without a listed prefix
+     * below them are unlinked; their slots are reclaimed when the set is
+     * copied.
+     * @param prefix - host or prefix
+     * @return true if it was listed
+     */
+    public boolean remove( final Ipv4Prefix prefix )
+    {
+        if( prefix.isHost() ) return removeHost( prefix.getAddress() );
+
+        // Nodes along the prefix, from the root
+        final int   addr  = prefix.getAddress();
+        final int[] path  = new int[prefix.getLength() + 1];
+        int         depth = 0;
+
+        for( ; depth < prefix.getLength(); depth++ )
+        {
+            final int child = ( ( addr >>> ( 31 - depth ) ) & 1 ) == 0 ? mChild0[path[depth]] : mChild1[path[depth]];
+            if( child == NONE ) return false;
+            path[depth + 1] = child;
+        }
+        if( !mPrefixEnd[path[depth]] ) return false;
+
+        mPrefixEnd[path[depth]] = false;
+        mPrefixCount--;
+
+        for( ; depth > 0 && !mPrefixEnd[path[depth]] && mChild0[path[depth]] == NONE && mChild1[path[depth]] == NONE; depth-- )
+        {
+            final int parent = path[depth - 1];
+            if( mChild0[parent] == path[depth] ) mChild0[parent] = NONE;
+            else                                 mChild1[parent] = NONE;
+            mDeadNodes++;
+        }
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int size()           { return mHostCount + ( mHasZeroHost ? 1 : 0 ) + mPrefixCount; }
+    public int getPrefixCount() { return mPrefixCount; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return copy of the listed hosts, in no particular order
+     */
+    public int[] getHosts()
+    {
+        final int[] hosts = new int[mHostCount + ( mHasZeroHost ? 1 : 0 )];
+
+        int n = 0;
+        if( mHasZeroHost ) hosts[n++] = 0;
+        for( final int host : mHosts )
+        {
+            if( host != 0 ) hosts[n++] = host;
+        }
+        return hosts;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return all listed hosts and prefixes
+     */
+    public List<Ipv4Prefix> getEntries()
+    {
+        final List<Ipv4Prefix> entries = new ArrayList<Ipv4Prefix>( size() );
+
+        if( mHasZeroHost ) entries.add( new Ipv4Prefix( 0, 32 ) );
+        for( final int host : mHosts )
+        {
+            if( host != 0 ) entries.add( new Ipv4Prefix( host, 32 ) );
+        }
+        collectPrefixes( 0, 0, 0, entries );
+
+        return entries;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Write the set in the format read by {@link #readFrom(ByteBuffer)}: the
+     * hosts as a sorted int array, followed by the prefixes as
+     * (address, length) pairs.
+     * @param out - output
+     */
+    public void writeTo( final DataOutput out ) throws IOException
+    {
+        final int[] hosts = getHosts();
+        Arrays.sort( hosts );
+
+        out.writeInt( hosts.length );
+        for( final int host : hosts ) out.writeInt( host );
+
+        final List<Ipv4Prefix> prefixes = new ArrayList<Ipv4Prefix>( mPrefixCount );
+        collectPrefixes( 0, 0, 0, prefixes );
+
+        out.writeInt( prefixes.size() );
+        for( final Ipv4Prefix prefix : prefixes )
+        {
+            out.writeInt( prefix.getAddress() );
+            out.writeInt( prefix.getLength() );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Read a set written by {@link #writeTo(DataOutput)}. The counts are
+     * checked against the input before anything is allocated.
+     * @param in - input, positioned at the set; left positioned after it
+     * @return set
+     * @throws IllegalArgumentException if the input does not hold a valid set
+     */
+    public static Ipv4PrefixSet readFrom( final ByteBuffer in )
+    {
+        final int hostCount = in.getInt();
+        if( hostCount < 0 || hostCount > in.remaining() / 4 ) throw new IllegalArgumentException( "Invalid host count" );
+
+        final int[] hosts = new int[hostCount];
+        in.asIntBuffer().get( hosts );
+        in.position( in.position() + 4 * hostCount );
+
+        final Ipv4PrefixSet set = new Ipv4PrefixSet( hostCount );
+        for( final int host : hosts ) set.addHost( host );
+
+        final int prefixCount = in.getInt();
+        if( prefixCount < 0 || prefixCount > in.remaining() / 8 ) throw new IllegalArgumentException( "Invalid prefix count" );
+
+        for( int i = 0; i < prefixCount; i++ )
+        {
+            final int address = in.getInt();
+            set.add( new Ipv4Prefix( address, in.getInt() ) );
+        }
+        return set;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void collectPrefixes( final int node, final int addr, final int depth, final List<Ipv4Prefix> entries )
+    {
+        if( mPrefixEnd[node] ) entries.add( new Ipv4Prefix( addr, depth ) );
+
+        if( mChild0[node] != NONE ) collectPrefixes( mChild0[node], addr, depth + 1, entries );
+        if( mChild1[node] != NONE ) collectPrefixes( mChild1[node], addr | ( 1 << ( 31 - depth ) ), depth + 1, entries );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int findNode( final Ipv4Prefix prefix, final boolean create )
+    {
+        final int addr = prefix.getAddress();
+
+        int node = 0;
+        for( int depth = 0; depth < prefix.getLength(); depth++ )
+        {
+            final boolean one   = ( ( addr >>> ( 31 - depth ) ) & 1 ) != 0;
+            int           child = one ? mChild1[node] : mChild0[node];
+
+            if( child == NONE )
+            {
+                if( !create ) return NONE;
+
+                child = newNode();
+                if( one ) mChild1[node] = child;
+                else      mChild0[node] = child;
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  copyLiveNodes:  copy the trie nodes reachable from the root, renumbered breadth first
+    private void copyLiveNodes( final Ipv4PrefixSet other )
+    {
+        final int live     = other.mNodeCount - other.mDeadNodes;
+        final int capacity = Math.max( live, INITIAL_CAPACITY );
+
+        mChild0    = new int[capacity];
+        mChild1    = new int[capacity];
+        mPrefixEnd = new boolean[capacity];
+
+        // A node's new number is its position in the queue
+        final int[] queue = new int[live];
+        int         count = 1;
+
+        queue[0]      = 0;
+        mPrefixEnd[0] = other.mPrefixEnd[0];
+
+        for( int head = 0; head < count; head++ )
+        {
+            mChild0[head] = NONE;
+            mChild1[head] = NONE;
+
+            final int child0 = other.mChild0[queue[head]];
+            if( child0 != NONE )
+            {
+                queue[count]      = child0;
+                mPrefixEnd[count] = other.mPrefixEnd[child0];
+                mChild0[head]     = count++;
+            }
+
+            final int child1 = other.mChild1[queue[head]];
+            if( child1 != NONE )
+            {
+                queue[count]      = child1;
+                mPrefixEnd[count] = other.mPrefixEnd[child1];
+                mChild1[head]     = count++;
+            }
+        }
+
+        mNodeCount   = count;
+        mPrefixCount = other.mPrefixCount;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int newNode()
+    {
+        if( mNodeCount == mChild0.length )
+        {
+            final int capacity = mChild0.length * 2;
+
+            final int[]     child0    = new int[capacity];
+            final int[]     child1    = new int[capacity];
+            final boolean[] prefixEnd = new boolean[capacity];
+            System.arraycopy( mChild0,    0, child0,    0, mNodeCount );
+            System.arraycopy( mChild1,    0, child1,    0, mNodeCount );
+            System.arraycopy( mPrefixEnd, 0, prefixEnd, 0, mNodeCount );
+            mChild0    = child0;
+            mChild1    = child1;
+            mPrefixEnd = prefixEnd;
+        }
+
+        final int node = mNodeCount++;
+        mChild0[node]    = NONE;
+        mChild1[node]    = NONE;
+        mPrefixEnd[node] = false;
+        return node;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private boolean containsHost( final int addr )
+    {
+        if( addr == 0 ) return mHasZeroHost;
+
+        final int[] hosts = mHosts;
+        final int   mask  = hosts.length - 1;
+        for( int i = hash( addr ) & mask; hosts[i] != 0; i = ( i + 1 ) & mask )
+        {
+            if( hosts[i] == addr ) return true;
+        }
+        return false;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private boolean addHost( final int addr )
+    {
+        if( addr == 0 )
+        {
+            if( mHasZeroHost ) return false;
+            return mHasZeroHost = true;
+        }
+
+        if( ( mHostCount + 1 ) * 2 > mHosts.length ) rehash( mHosts.length * 2 );
+
+        final int mask = mHosts.length - 1;
+        int       i    = hash( addr ) & mask;
+        for( ; mHosts[i] != 0; i = ( i + 1 ) & mask )
+        {
+            if( mHosts[i] == addr ) return false;
+        }
+
+        mHosts[i] = addr;
+        mHostCount++;
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  removeHost:  linear probing removal with backward shift, so no tombstones are needed
+    private boolean removeHost( final int addr )
+    {
+        if( addr == 0 )
+        {
+            final boolean had = mHasZeroHost;
+            mHasZeroHost = false;
+            return had;
+        }
+
+        final int[] hosts = mHosts;
+        final int   mask  = hosts.length - 1;
+
+        int i = hash( addr ) & mask;
+        while( hosts[i] != addr )
+        {
+            if( hosts[i] == 0 ) return false;
+            i = ( i + 1 ) & mask;
+        }
+
+        int gap = i;
+        for( int j = ( gap + 1 ) & mask; hosts[j] != 0; j = ( j + 1 ) & mask )
+        {
+            final int home = hash( hosts[j] ) & mask;
+
+            // Move the entry back if its home slot does not lie cyclically in (gap, j]
+            if( ( ( j - home ) & mask ) >= ( ( j - gap ) & mask ) )
+            {
+                hosts[gap] = hosts[j];
+                gap = j;
+            }
+        }
+        hosts[gap] = 0;
+        mHostCount--;
+        return true;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void rehash( final int capacity )
+    {
+        final int[] old = mHosts;
+
+        mHosts     = new int[capacity];
+        mHostCount = 0;
+        for( final int host : old )
+        {
+            if( host != 0 ) addHost( host );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int hash( final int addr )
+    {
+        final int h = addr * 0x9E3779B9;
+        return h ^ ( h >>> 16 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int tableSizeFor( final int expected )
+    {
+        int size = INITIAL_CAPACITY;
+        while( size < expected * 2 ) size <<= 1;
+        return size;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AtomicLong followed by a cache line of padding, so counters allocated
+ * one after another, e.g. per blacklist entry, do not share a line. A
+ * single cell is enough for counters that only see blocked packets; see
+ * {@link StripedCounter} for ones every PacketIn updates.
+ */
+public class PaddedAtomicLong extends AtomicLong
+{
+    private static final long serialVersionUID = 1L;
+
+    //---- Never read; subclass fields are laid out after the AtomicLong value
+    @SuppressWarnings( "unused" )
+    private long mPad1, mPad2, mPad3, mPad4, mPad5, mPad6, mPad7;
+
+    //---------------------------------------------------------------------------------------------
+    public PaddedAtomicLong() { super(); }
+}
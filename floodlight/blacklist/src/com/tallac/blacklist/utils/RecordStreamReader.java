@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Incremental reader of blacklist records from a bulk import body.
+ *
+ * Two formats are accepted and detected from the first non-blank character:
+ * <ul>
+ * <li>plain text, one record per line; blank lines and lines starting with
+ *     '#' are skipped,</li>
+ * <li>a JSON array whose elements are strings or objects with a "record"
+ *     member, as returned by the blacklist config GET resources.</li>
+ * </ul>
+ * Records are returned one at a time, so the body is never held in memory
+ * as a whole.
+ */
+public class RecordStreamReader implements Closeable
+{
+    private static final int MAX_RECORD_LEN = 1024;
+    private static final int EOF            = -1;
+
+    private final Reader        mIn;
+    private final StringBuilder mBuf = new StringBuilder( 256 );
+
+    private boolean mStarted;
+    private boolean mJson;
+    private boolean mDone;
+    private int     mPushback = EOF;
+    private long    mPosition;
+    private int     mRecordCount;
+
+    //---------------------------------------------------------------------------------------------
+    public RecordStreamReader( final Reader in )
+    {
+        mIn = ( in instanceof BufferedReader ) ? in : new BufferedReader( in, 64 * 1024 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return next record, or null at the end of the input
+     * @throws IOException if the input cannot be read or is malformed
+     */
+    public String next() throws IOException
+    {
+        if( mDone ) return null;
+
+        if( !mStarted )
+        {
+            mStarted = true;
+
+            final int c = skipWhitespace();
+            if( c == EOF ) { mDone = true; return null; }
+
+            mJson = ( c == '[' );
+            if( !mJson ) unread( c );
+        }
+
+        final String record = mJson ? nextJsonElement() : nextLine();
+        if( record == null ) mDone = true;
+        else                 mRecordCount++;
+
+        return record;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int     getRecordCount() { return mRecordCount; }
+    public boolean isJson()         { return mJson; }
+
+    //---------------------------------------------------------------------------------------------
+    @Override
+    public void close() throws IOException { mIn.close(); }
+
+    //---------------------------------------------------------------------------------------------
+    private String nextLine() throws IOException
+    {
+        while( true )
+        {
+            mBuf.setLength( 0 );
+
+            int c = read();
+            if( c == EOF ) return null;
+
+            for( ; c != EOF && c != '\n'; c = read() )
+            {
+                if( c == '\r' ) continue;
+                if( mBuf.length() == MAX_RECORD_LEN ) throw error( "Record too long" );
+                mBuf.append( (char) c );
+            }
+
+            final String line = mBuf.toString().trim();
+            if( !line.isEmpty() && line.charAt( 0 ) != '#' ) return line;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private String nextJsonElement() throws IOException
+    {
+        int c = skipWhitespace();
+
+        if( mRecordCount > 0 )
+        {
+            if( c == ']' ) return endOfArray();
+            if( c != ',' ) throw error( "Expected ',' or ']'" );
+            c = skipWhitespace();
+        }
+        else if( c == ']' )
+        {
+            return endOfArray();
+        }
+
+        if( c == '"' ) return readJsonString();
+        if( c == '{' ) return readJsonObject();
+
+        throw error( "Expected string or object" );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private String endOfArray() throws IOException
+    {
+        if( skipWhitespace() != EOF ) throw error( "Unexpected data after ']'" );
+        return null;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  readJsonObject:  {"record": "..."} with any other string members ignored
+    private String readJsonObject() throws IOException
+    {
+        String record = null;
+
+        int c = skipWhitespace();
+        if( c == '}' ) throw error( "Object without \"record\"" );
+
+        while( true )
+        {
+            if( c != '"' ) throw error( "Expected member name" );
+            final String name = readJsonString();
+
+            if( skipWhitespace() != ':' ) throw error( "Expected ':'" );
+            if( skipWhitespace() != '"' ) throw error( "Expected string value" );
+            final String value = readJsonString();
+
+            if( name.equals( "record" ) ) record = value;
+
+            c = skipWhitespace();
+            if( c == '}' ) break;
+            if( c != ',' ) throw error( "Expected ',' or '}'" );
+            c = skipWhitespace();
+        }
+
+        if( record == null ) throw error( "Object without \"record\"" );
+        return record;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  readJsonString:  called after the opening quote
+    private String readJsonString() throws IOException
+    {
+        mBuf.setLength( 0 );
+
+        while( true )
+        {
+            int c = read();
+            if( c == EOF )  throw error( "Unterminated string" );
+            if( c == '"' )  break;
+
+            if( c == '\\' )
+            {
+                c = read();
+                switch( c )
+                {
+                    case '"': case '\\': case '/': break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'u': c = readHex4(); break;
+                    default:  throw error( "Invalid escape" );
+                }
+            }
+
+            if( mBuf.length() == MAX_RECORD_LEN ) throw error( "Record too long" );
+            mBuf.append( (char) c );
+        }
+
+        return mBuf.toString().trim();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int readHex4() throws IOException
+    {
+        int value = 0;
+        for( int i = 0; i < 4; i++ )
+        {
+            final int digit = Character.digit( read(), 16 );
+            if( digit < 0 ) throw error( "Invalid \\u escape" );
+            value = ( value << 4 ) | digit;
+        }
+        return value;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int skipWhitespace() throws IOException
+    {
+        int c;
+        do { c = read(); } while( c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\uFEFF' );
+        return c;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private int read() throws IOException
+    {
+        if( mPushback != EOF )
+        {
+            final int c = mPushback;
+            mPushback = EOF;
+            return c;
+        }
+
+        final int c = mIn.read();
+        if( c != EOF ) mPosition++;
+        return c;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void unread( final int c ) { mPushback = c; }
+
+    //---------------------------------------------------------------------------------------------
+    private IOException error( final String msg )
+    {
+        return new IOException( msg + " at character " + mPosition + " (record " + ( mRecordCount + 1 ) + ")." );
+    }
+}
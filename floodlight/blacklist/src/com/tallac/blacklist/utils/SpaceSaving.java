@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Space-Saving heavy hitter sketch: approximate top-K of a stream using a
+ * fixed number of counters.
+ *
+ * A key that is not tracked replaces the key with the smallest count and
+ * inherits that count as its error. Every key seen more than
+ * total / capacity times is guaranteed to be tracked, and a tracked key's
+ * count overestimates its true count by at most its error. Counters are
+ * kept in a min-heap, so an update is O(log capacity). Synchronized.
+ *
+ * @param <K> key type
+ */
+public class SpaceSaving<K>
+{
+    private final HashMap<K, Integer> mSlots;
+    private final Object[]            mKeys;
+    private final long[]              mCounts;
+    private final long[]              mErrors;
+    private final int[]               mHeap;      // slots, min count at index 0
+    private final int[]               mHeapPos;   // slot -> index in mHeap
+    private int                       mSize;
+    private long                      mTotal;
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * One tracked key.
+     * @param <K> key type
+     */
+    public static class Counter<K>
+    {
+        private final K    mKey;
+        private final long mCount;
+        private final long mError;
+
+        Counter( final K key, final long count, final long error ) { mKey = key; mCount = count; mError = error; }
+
+        public K    getKey()   { return mKey; }
+        public long getCount() { return mCount; }
+
+        /**
+         * @return maximum overestimate of the count
+         */
+        public long getError() { return mError; }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param capacity - number of counters
+     */
+    public SpaceSaving( final int capacity )
+    {
+        final int n = Math.max( 1, capacity );
+
+        mSlots   = new HashMap<K, Integer>( n * 2 );
+        mKeys    = new Object[n];
+        mCounts  = new long[n];
+        mErrors  = new long[n];
+        mHeap    = new int[n];
+        mHeapPos = new int[n];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public synchronized void offer( final K key )
+    {
+        mTotal++;
+
+        final Integer slot = mSlots.get( key );
+        if( slot != null )
+        {
+            mCounts[slot]++;
+            siftDown( mHeapPos[slot] );
+            return;
+        }
+
+        if( mSize < mKeys.length )
+        {
+            final int s = mSize++;
+            mKeys[s]    = key;
+            mCounts[s]  = 1;
+            mErrors[s]  = 0;
+            mHeap[s]    = s;
+            mHeapPos[s] = s;
+            mSlots.put( key, s );
+            siftUp( s );
+            return;
+        }
+
+        // Replace the key with the smallest count
+        final int min = mHeap[0];
+        mSlots.remove( mKeys[min] );
+        mKeys[min]   = key;
+        mErrors[min] = mCounts[min];
+        mCounts[min]++;
+        mSlots.put( key, min );
+        siftDown( 0 );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return number of keys offered so far
+     */
+    public synchronized long getTotal() { return mTotal; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param limit - maximum number of counters returned
+     * @return tracked keys with the highest counts, highest first
+     */
+    @SuppressWarnings( "unchecked" )
+    public List<Counter<K>> getTop( final int limit )
+    {
+        final List<Counter<K>> top = new ArrayList<Counter<K>>();
+        synchronized( this )
+        {
+            for( int s = 0; s < mSize; s++ ) top.add( new Counter<K>( (K) mKeys[s], mCounts[s], mErrors[s] ) );
+        }
+
+        Collections.sort( top, new Comparator<Counter<K>>()
+        {
+            public int compare( final Counter<K> a, final Counter<K> b )
+            {
+                return ( a.mCount < b.mCount ) ? 1 : ( a.mCount > b.mCount ) ? -1 : 0;
+            }
+        } );
+        return ( top.size() > limit ) ? top.subList( 0, Math.max( 0, limit ) ) : top;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void siftUp( int i )
+    {
+        while( i > 0 )
+        {
+            final int parent = ( i - 1 ) >>> 1;
+            if( mCounts[mHeap[parent]] <= mCounts[mHeap[i]] ) return;
+            swap( i, parent );
+            i = parent;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void siftDown( int i )
+    {
+        for( ;; )
+        {
+            final int left  = 2 * i + 1;
+            if( left >= mSize ) return;
+
+            final int right    = left + 1;
+            final int smallest = ( right < mSize && mCounts[mHeap[right]] < mCounts[mHeap[left]] ) ? right : left;
+            if( mCounts[mHeap[i]] <= mCounts[mHeap[smallest]] ) return;
+
+            swap( i, smallest );
+            i = smallest;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void swap( final int i, final int j )
+    {
+        final int a = mHeap[i];
+        final int b = mHeap[j];
+        mHeap[i] = b;  mHeapPos[b] = i;
+        mHeap[j] = a;  mHeapPos[a] = j;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter updated by many threads.
+ *
+ * Each thread adds to one of several cells chosen by its thread id, so
+ * PacketIn threads do not contend on one cache line; {@link #sum()} adds
+ * the cells up. Cells are spaced a cache line apart.
+ */
+public class StripedCounter
+{
+    private static final int STRIPES = Integer.highestOneBit( Math.max( 1, Runtime.getRuntime().availableProcessors() ) ) * 2;
+    private static final int SPACING = 8;  // longs per 64 byte cache line
+
+    private final AtomicLongArray mCells = new AtomicLongArray( STRIPES * SPACING );
+
+    //---------------------------------------------------------------------------------------------
+    public void increment() { add( 1 ); }
+
+    //---------------------------------------------------------------------------------------------
+    public void add( final long delta )
+    {
+        final long id     = Thread.currentThread().getId();
+        final int  stripe = (int) ( id ^ ( id >>> 16 ) ) & ( STRIPES - 1 );
+
+        mCells.addAndGet( stripe * SPACING, delta );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return current total; not an atomic snapshot while other threads add
+     */
+    public long sum()
+    {
+        long sum = 0;
+        for( int i = 0; i < STRIPES; i++ ) sum += mCells.get( i * SPACING );
+        return sum;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolling count, sum and maximum of recorded values at three resolutions:
+ * the last 60 seconds, the last 60 minutes and the last 24 hours.
+ *
+ * Each resolution is a ring of buckets in primitive arrays; a bucket is
+ * reused when its time comes around again. Recording takes no locks. A
+ * value recorded by one thread while another starts a new bucket in the
+ * same slot may be lost, which is fine for graphing rates.
+ */
+public class TimeSeries
+{
+    public enum Resolution
+    {
+        SECOND( 1000L,      60 ),
+        MINUTE( 60000L,     60 ),
+        HOUR(   3600000L,   24 );
+
+        private final long mMillis;
+        private final int  mBuckets;
+
+        Resolution( final long millis, final int buckets ) { mMillis = millis; mBuckets = buckets; }
+
+        public long getMillis()  { return mMillis; }
+        public int  getBuckets() { return mBuckets; }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * One bucket, copied by {@link TimeSeries#getBuckets(Resolution)}.
+     */
+    public static class Bucket
+    {
+        private final long mTime;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Bucket( final long time, final long count, final long sum, final long max )
+        {
+            mTime = time; mCount = count; mSum = sum; mMax = max;
+        }
+
+        /**
+         * @return bucket start, milliseconds since the epoch
+         */
+        public long getTime()  { return mTime; }
+        public long getCount() { return mCount; }
+        public long getSum()   { return mSum; }
+        public long getMax()   { return mMax; }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static class Ring
+    {
+        final Resolution      res;
+        final AtomicLongArray period;  // time / resolution of the bucket in each slot
+        final AtomicLongArray count;
+        final AtomicLongArray sum;
+        final AtomicLongArray max;
+
+        Ring( final Resolution res )
+        {
+            this.res = res;
+            period   = new AtomicLongArray( res.getBuckets() );
+            count    = new AtomicLongArray( res.getBuckets() );
+            sum      = new AtomicLongArray( res.getBuckets() );
+            max      = new AtomicLongArray( res.getBuckets() );
+            for( int i = 0; i < res.getBuckets(); i++ ) period.set( i, -1 );
+        }
+
+        void record( final long now, final long value )
+        {
+            final long p    = now / res.getMillis();
+            final int  slot = (int) ( p % res.getBuckets() );
+
+            final long old = period.get( slot );
+            if( old < p && period.compareAndSet( slot, old, p ) )
+            {
+                count.set( slot, 0 );
+                sum.set(   slot, 0 );
+                max.set(   slot, 0 );
+            }
+
+            count.incrementAndGet( slot );
+            sum.addAndGet( slot, value );
+            for( long cur = max.get( slot ); value > cur; cur = max.get( slot ) )
+            {
+                if( max.compareAndSet( slot, cur, value ) ) break;
+            }
+        }
+    }
+
+    private final Ring[] mRings;
+
+    //---------------------------------------------------------------------------------------------
+    public TimeSeries()
+    {
+        final Resolution[] resolutions = Resolution.values();
+
+        mRings = new Ring[resolutions.length];
+        for( int i = 0; i < resolutions.length; i++ ) mRings[i] = new Ring( resolutions[i] );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Count one event, e.g. a blocked packet.
+     */
+    public void increment() { record( 0 ); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Count one event with a value, e.g. a processing time.
+     * @param value - value added to the bucket sum and maximum
+     */
+    public void record( final long value )
+    {
+        final long now = System.currentTimeMillis();
+        for( final Ring ring : mRings ) ring.record( now, value );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param res - resolution
+     * @return one bucket per period of the resolution, oldest first, ending
+     *         with the current (partial) period; periods without events have
+     *         zero counts
+     */
+    public List<Bucket> getBuckets( final Resolution res )
+    {
+        final Ring ring    = mRings[res.ordinal()];
+        final int  buckets = res.getBuckets();
+        final long current = System.currentTimeMillis() / res.getMillis();
+
+        final List<Bucket> list = new ArrayList<Bucket>( buckets );
+        for( long p = current - buckets + 1; p <= current; p++ )
+        {
+            final int slot = (int) ( p % buckets );
+            if( ring.period.get( slot ) == p )
+            {
+                list.add( new Bucket( p * res.getMillis(), ring.count.get( slot ), ring.sum.get( slot ), ring.max.get( slot ) ) );
+            }
+            else
+            {
+                list.add( new Bucket( p * res.getMillis(), 0, 0, 0 ) );
+            }
+        }
+        return list;
+    }
+}
@@ -16,6 +16,7 @@ import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.topology.ITopologyService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,9 +25,12 @@ import com.tallac.nac.api.RestApi;
 import com.tallac.nac.listeners.DeviceListener;
 import com.tallac.nac.listeners.MessageListener;
 import com.tallac.nac.listeners.SwitchListener;
+import com.tallac.nac.listeners.TopologyListener;
 import com.tallac.nac.module.ClientMgr;
 import com.tallac.nac.module.ConfigMgr;
 import com.tallac.nac.module.FlowMgr;
+import com.tallac.nac.module.LatencyMgr;
+import com.tallac.nac.module.LogMgr;
 import com.tallac.nac.packethandler.HttpPacketHandler;
 
 public class NacModule implements IFloodlightModule
@@ -51,6 +55,7 @@ public class NacModule implements IFloodlightModule
 
         dependencies.add(IFloodlightProviderService.class);
         dependencies.add(IRestApiService.class);
+        dependencies.add(ITopologyService.class);
 
         return dependencies;
     }
@@ -62,11 +67,14 @@ public class NacModule implements IFloodlightModule
         LOG.trace("Init");
         
         ConfigMgr.getInstance().        init();
+        LogMgr.getInstance().           init();
         FlowMgr.getInstance().          init(context);
         SwitchListener.getInstance().   init(context);
         MessageListener.getInstance().  init(context);
         DeviceListener.getInstance().   init(context);
+        TopologyListener.getInstance(). init(context);
         ClientMgr.getInstance().        init();
+        LatencyMgr.getInstance().       init();
         HttpPacketHandler.getInstance().init();
         RestApi.getInstance().          init(context);
    }
@@ -79,6 +87,7 @@ public class NacModule implements IFloodlightModule
         SwitchListener.getInstance(). startUp();
         MessageListener.getInstance().startUp();
         DeviceListener.getInstance(). startUp();
+        TopologyListener.getInstance().startUp();
         RestApi.getInstance().        startUp();
         ClientMgr.getInstance().      startUp();
     }
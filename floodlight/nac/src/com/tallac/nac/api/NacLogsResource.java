@@ -7,8 +7,11 @@ package com.tallac.nac.api;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
+import net.floodlightcontroller.util.MACAddress;
+
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
@@ -16,13 +19,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.nac.module.LogMgr;
+import com.tallac.nac.module.LogMgr.EventType;
 import com.tallac.nac.module.LogMgr.LogRecord;
+import com.tallac.nac.module.LogMgr.Query;
 import com.tallac.nac.utils.TallacUtils;
 
 public class NacLogsResource extends ServerResource
 {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(NacLogsResource.class);
+
+	//---- Records returned when no limit is given, and at most
+	private static final int DEFAULT_LIMIT = 1000;
+	private static final int MAX_LIMIT     = 10000;
 	
     // Inner classes should be created as static in order to be serialized by
     // json
@@ -36,6 +45,9 @@ public class NacLogsResource extends ServerResource
         public String state;
         public String details;
         public String event;
+        public long   id;           // pass the last one as "before" for the next page
+        public String type;
+        public long   timestamp;
 
         public LogRecordResource(){} 
         public LogRecordResource(@JsonProperty("time")String iTime, 
@@ -55,7 +67,7 @@ public class NacLogsResource extends ServerResource
 
         @Override
         public String toString() {
-            return "LogRecordResource [time=" + time + ", mac=" + mac + ", ip="
+            return "LogRecordResource [id=" + id + ", time=" + time + ", mac=" + mac + ", ip="
                     + ip + ", state=" + state + ", details=" + details
                     + ", event=" + event + "]";
         }
@@ -65,19 +77,56 @@ public class NacLogsResource extends ServerResource
     @Get("json")
     public List<LogRecordResource> retrieve()
     {
-        LOG.debug("Received REST GET NAC logs request.");
+        String macStr    = getQuery().getFirstValue("mac");
+        String typeStr   = getQuery().getFirstValue("type");
+        String fromStr   = getQuery().getFirstValue("from");
+        String toStr     = getQuery().getFirstValue("to");
+        String beforeStr = getQuery().getFirstValue("before");
+        String limitStr  = getQuery().getFirstValue("limit");
+        LOG.debug("Received REST GET NAC logs request. MAC: {} type: {}", macStr, typeStr);
+
+        //---- Build the query; times are milliseconds since the epoch, results are newest first
+        Query query = new Query();
+        query.limit = DEFAULT_LIMIT;
+        try
+        {
+            if (macStr != null)    query.mac    = MACAddress.valueOf(macStr);
+            if (fromStr != null)   query.from   = new Date(Long.parseLong(fromStr));
+            if (toStr != null)     query.to     = new Date(Long.parseLong(toStr));
+            if (beforeStr != null) query.before = Long.parseLong(beforeStr);
+            if (limitStr != null)  query.limit  = Math.min(Integer.parseInt(limitStr), MAX_LIMIT);
+        }
+        catch (IllegalArgumentException e)
+        {
+            TallacUtils.setRestApiError( String.format("Unable to parse query parameters: %s.", e.getMessage()) );
+            return null;
+        }
+        if (typeStr != null)
+        {
+            query.type = EventType.parseType(typeStr);
+            if (query.type == null)
+            {
+                TallacUtils.setRestApiError( String.format("Unknown event type [%s].", typeStr) );
+                return null;
+            }
+        }
 
         List<LogRecordResource> retVal = new ArrayList<LogRecordResource>();
-       
-        for (LogRecord lr : LogMgr.getInstance().getLog())
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MMM dd yyyy hh:mm:ss");
+
+        for (LogRecord lr : LogMgr.getInstance().query(query))
         {
-            retVal.add(new LogRecordResource(
-                new SimpleDateFormat("MMM dd yyyy hh:mm:ss").format(lr.getDate()),
-                lr.getClient().getMacAddr().toString(),
-                TallacUtils.intIpToString(lr.getClient().getIpAddr()), 
-                lr.getClient().getState().name(),
-                lr.getClient().getDetails(), 
-                lr.getEvent()));
+            LogRecordResource record = new LogRecordResource(
+                dateFormat.format(lr.getDate()),
+                lr.getMacAddr().toString(),
+                TallacUtils.intIpToString(lr.getIpAddr()), 
+                lr.getState().name(),
+                lr.getDetails(), 
+                lr.getEvent());
+            record.id        = lr.getId();
+            record.type      = lr.getType().name();
+            record.timestamp = lr.getDate().getTime();
+            retVal.add(record);
         }
         return retVal;
     }
@@ -145,11 +145,24 @@ public class NacUserResource extends ServerResource {
 		
 		List<User> retVal = new ArrayList<User>();
 
-		//Add records matching target MAC *AND* IPv4 address in the output list 
+		//Look up the client of an IPv4 address in the IP index
+		if (ipInt != 0)
+		{
+		    Client cl = ClientMgr.getInstance().getClient(ipInt);
+		    if (cl != null)
+		    {
+		        retVal.add( new User( cl.getMacAddr().toString(),
+		                              TallacUtils.intIpToString(cl.getIpAddr()), 
+		                              cl.getState().name(), 
+		                              cl.getDetails() ) );
+		    }
+		    return retVal;
+		}
+
+		//Add records matching target MAC address in the output list 
 		for (Client cl : ClientMgr.getInstance().getClients())
 		{
-		    if ((macStr == null || cl.getMacAddr().toString().equalsIgnoreCase(macStr)) && 
-                (ipInt == 0 || cl.getIpAddr() == ipInt))
+		    if (macStr == null || cl.getMacAddr().toString().equalsIgnoreCase(macStr))
 		    {
 		        retVal.add( new User( cl.getMacAddr().toString(),
 		                              TallacUtils.intIpToString(cl.getIpAddr()), 
@@ -42,6 +42,7 @@ public class RestApi
         mRestApi.addRestletRoutable(new RestRoutable("nac/users/{id}", NacUserResource.class));
         mRestApi.addRestletRoutable(new RestRoutable("nac/users", NacUserResource.class));
         mRestApi.addRestletRoutable(new RestRoutable("nac/logs", NacLogsResource.class));
+        mRestApi.addRestletRoutable(new RestRoutable("nac/stats/latency", NacLatencyResource.class));
 
 	// Web UI routable is under /tallac/ui/...
         mRestApi.addRestletRoutable(new WebUiRoutable());
@@ -7,6 +7,12 @@ import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.devicemanager.SwitchPort;
+import net.floodlightcontroller.util.MACAddress;
+
+import com.tallac.nac.module.ClientMgr;
+import com.tallac.nac.module.SwitchMgr;
+import com.tallac.nac.module.SwitchMgr.NacSwitch;
 
 public class DeviceListener implements IDeviceListener {
 
@@ -49,6 +55,14 @@ public class DeviceListener implements IDeviceListener {
 	public void deviceMoved( IDevice device ) {
 		LOG.info( "Device location changed: {}", device );
 		
+		//---- Find the edge port the device is attached to now, ports on unknown switches and uplinks are not client locations
+		for( SwitchPort attachmentPoint : device.getAttachmentPoints() ) {
+			NacSwitch nacSwitch = SwitchMgr.getInstance().getSwitch( attachmentPoint.getSwitchDPID() );
+			if( nacSwitch == null || attachmentPoint.getPort() == nacSwitch.getUplinkPortNumber() ) continue;
+
+			ClientMgr.getInstance().moveClient( MACAddress.valueOf( device.getMACAddress() ), attachmentPoint.getSwitchDPID(), (short) attachmentPoint.getPort() );
+			return;
+		}
 	}
 
 	@Override
@@ -12,16 +12,19 @@ import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 
 import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.nac.NacModule;
+import com.tallac.nac.module.FlowMgr;
+import com.tallac.nac.module.LatencyMgr;
 import com.tallac.nac.packethandler.PacketHandler;
 
 /**
  * The MessageListener class responsible for registering OpenFlow message
- * listener and receiving PacketIn messages.
+ * listener and receiving PacketIn and BarrierReply messages.
  */
 public class MessageListener implements IOFMessageListener
 {
@@ -54,8 +57,9 @@ public class MessageListener implements IOFMessageListener
 
     public void startUp()
     {
-        LOG.debug("Register NAC OpenFlow PacketIn message listener.");
+        LOG.debug("Register NAC OpenFlow PacketIn and BarrierReply message listener.");
         mProvider.addOFMessageListener(OFType.PACKET_IN, this);
+        mProvider.addOFMessageListener(OFType.BARRIER_REPLY, this);
     }
 
     @Override
@@ -89,8 +93,19 @@ public class MessageListener implements IOFMessageListener
         {
         case PACKET_IN:
            LOG.trace("Received PacketIn {} from switch {}", msg, ofSwitch);
-           PacketHandler ph = new PacketHandler( ofSwitch, msg, context );
-           return ph.processPacket();
+           final long start = System.nanoTime();
+           try
+           {
+               return PacketHandler.forCurrentThread().processPacket( ofSwitch, (OFPacketIn) msg, context );
+           }
+           finally
+           {
+               LatencyMgr.getInstance().record( LatencyMgr.Stage.TOTAL, System.nanoTime() - start );
+           }
+
+        case BARRIER_REPLY:
+           FlowMgr.getInstance().barrierReplied( ofSwitch, msg.getXid() );
+           break;
 
         default:
            LOG.trace("Received msg {} from switch {}", msg, ofSwitch);
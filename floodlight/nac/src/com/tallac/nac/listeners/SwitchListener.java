@@ -69,6 +69,8 @@ public class SwitchListener implements IOFSwitchListener
         LOG.info( "Adding ofSwitch to SwitchMgr: {}", ofSwitch );
         SwitchMgr.getInstance().addSwitch( ofSwitch );
         
+        TopologyListener.getInstance().updateTransitFlows( ofSwitch );   // with edge placement, forward what comes in from other switches
+        
     }
 
     @Override
@@ -77,6 +79,7 @@ public class SwitchListener implements IOFSwitchListener
         LOG.debug("Switch {} disconnected", ofSwitch);
         
         LOG.info( "Removing ofSwitch from Switchmgr: {}", ofSwitch );
+        FlowMgr.getInstance().clearTransitFlows( ofSwitch );
     }
 
     @Override
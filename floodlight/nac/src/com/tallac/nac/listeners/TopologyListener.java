@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.nac.listeners;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.topology.ITopologyListener;
+import net.floodlightcontroller.topology.ITopologyService;
+
+import org.openflow.protocol.OFPhysicalPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.nac.module.FlowMgr;
+import com.tallac.nac.module.SwitchMgr;
+import com.tallac.nac.module.SwitchMgr.NacSwitch;
+
+/**
+ * The TopologyListener class keeps the transit flows of every switch in
+ * step with its uplink and inter-switch ports, when client flows are
+ * placed on the client's edge switch only.
+ */
+public class TopologyListener implements ITopologyListener
+{
+    private static final TopologyListener INSTANCE = new TopologyListener();
+    private static final Logger LOG = LoggerFactory.getLogger(TopologyListener.class);
+
+    private static IFloodlightProviderService mProvider;
+    private static ITopologyService           mTopology;
+
+    private TopologyListener()
+    {
+        // private constructor - prevent external instantiation
+    }
+
+    public static TopologyListener getInstance()
+    {
+        return INSTANCE;
+    }
+
+    public void init(final FloodlightModuleContext context)
+    {
+        LOG.trace("Initialize NAC topology listener.");
+        if (mTopology != null)
+        {
+            throw new RuntimeException("Topology listener already initialized");
+        }
+
+        mProvider = context.getServiceImpl(IFloodlightProviderService.class);
+        mTopology = context.getServiceImpl(ITopologyService.class);
+    }
+
+    public void startUp()
+    {
+        if (!FlowMgr.getInstance().isEdgePlacement()) return;
+
+        LOG.trace("Register NAC topology listener.");
+        mTopology.addListener(this);
+    }
+
+    @Override
+    public void topologyChanged()
+    {
+        LOG.debug("Topology changed");
+        for (IOFSwitch ofSwitch : mProvider.getSwitches().values()) updateTransitFlows(ofSwitch);
+    }
+
+    /**
+     * @param switchId - switch DPID
+     * @param port     - port number
+     * @return false if the topology knows the port as a link to another switch
+     */
+    public boolean isAttachmentPointPort(final long switchId, final short port)
+    {
+        return mTopology == null || mTopology.isAttachmentPointPort(switchId, port);
+    }
+
+    /**
+     * Set the transit flows of a switch: its configured uplink port and the
+     * ports the topology knows as links to other switches.
+     *
+     * @param ofSwitch - target switch
+     */
+    public void updateTransitFlows(final IOFSwitch ofSwitch)
+    {
+        if (!FlowMgr.getInstance().isEdgePlacement()) return;
+
+        Set<Short> ports = new HashSet<Short>();
+
+        NacSwitch nacSwitch = SwitchMgr.getInstance().getSwitch(ofSwitch.getId());
+        if (nacSwitch != null) ports.add(nacSwitch.getUplinkPortNumber());
+
+        for (OFPhysicalPort port : ofSwitch.getEnabledPorts())
+        {
+            if (!mTopology.isAttachmentPointPort(ofSwitch.getId(), port.getPortNumber())) ports.add(port.getPortNumber());
+        }
+
+        FlowMgr.getInstance().setTransitFlows(ofSwitch, ports);
+    }
+}
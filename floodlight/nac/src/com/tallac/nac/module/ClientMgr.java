@@ -15,6 +15,7 @@ import net.floodlightcontroller.util.MACAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.tallac.nac.module.LogMgr.EventType;
 import com.tallac.nac.utils.TallacUtils;
 
 public class ClientMgr {
@@ -79,16 +80,17 @@ public class ClientMgr {
        //---- Update client
         public void update( int ip, ClientState clientState, String details )
         {
-        	if( ip != 0 ) mIpAddr = ip;  // Update the ip address only if the value passed is non-zero
+        	if( ip != 0 ) setIpAddr( ip );  // Update the ip address only if the value passed is non-zero
         	
         	mClientState = clientState;
         	mDetails     = details;
         	
         	String ipAddrString = TallacUtils.intIpToString( ip );
-        	LogMgr.getInstance().log( this, String.format( "Client updated:  ip:[%s], state:[%s], details:[%s]", ipAddrString, clientState, details ) );
+        	LogMgr.getInstance().log( this, EventType.UPDATED, String.format( "Client updated:  ip:[%s], state:[%s], details:[%s]", ipAddrString, clientState, details ) );
+        	ClientStore.getInstance().save( this );
         }
 
-        public void setIpAddr(int ipAddr)  { mIpAddr = ipAddr; }
+        public void setIpAddr(int ipAddr)  { INSTANCE.changeIpAddr( this, ipAddr ); }
         public int  getIpAddr()            { return mIpAddr; }
         
         public void        setState(ClientState clientState) { mClientState = clientState; }
@@ -111,23 +113,36 @@ public class ClientMgr {
     }
 
     private ConcurrentHashMap<MACAddress, Client> mClients;
+    private ConcurrentHashMap<Integer, Client>    mClientsByIp;   // secondary index, kept in step with Client.mIpAddr
 
     //---- Constructor:  ClientMgr private constructor to prevent external instantiation.
     private ClientMgr() { 
-    	mClients = new ConcurrentHashMap<MACAddress, Client>();
+    	mClients     = new ConcurrentHashMap<MACAddress, Client>();
+    	mClientsByIp = new ConcurrentHashMap<Integer, Client>();
     }
 
     //---- getInstance: Normal getInstance method to return reference to this singleton
     public static ClientMgr getInstance() { return INSTANCE; }
 
-    //---- init: Nothing going on here, maybe remove?
+    //---- init:  Restore the clients kept by the client store.  Their flows are set as switches connect.
     public void init()  
     {
+        ClientStore.getInstance().init();
+        for( Client client : ClientStore.getInstance().load() )
+        {
+            mClients.put( client.getMacAddr(), client );
+            int ipAddr = client.getIpAddr();
+            if( ipAddr != 0 ) changeIpAddr( client, ipAddr );
+
+            LogMgr.getInstance().log( client, EventType.CREATED, String.format( "Client restored:  mac:[%s], ip:[%s], state:[%s]", 
+                                      client.getMacAddr().toString(), TallacUtils.intIpToString( ipAddr ), client.getState() ) );
+        }
     }
 
-    //---- startUp:  Nothing going on here, maybe remove?
+    //---- startUp:  Start writing client changes to the client store
     public void startUp() 
     {
+        ClientStore.getInstance().startUp();
     }
            
     //---- getClients:  Returns a list of all the client objects.
@@ -145,8 +160,35 @@ public class ClientMgr {
     //---- getClient:  Returns the client given the IP address if found, null otherwise.
     public Client getClient( InetAddress clientIp )
     {
-        for( Client client : mClients.values() ) if( client.getIpAddr() == TallacUtils.inetAddressToInt( clientIp) ) return client; 
-        return null;
+        return getClient( TallacUtils.inetAddressToInt( clientIp ) );
+    }
+
+    //---- getClient:  Returns the client given the IP address as an int if found, null otherwise.
+    public Client getClient( int clientIp )
+    {
+        if( clientIp == 0 ) return null;
+        return mClientsByIp.get( clientIp );
+    }
+
+    //---- changeIpAddr:  Set a client's IP address and move it in the IP index.  A client that took over
+    //                    an address from another one (new DHCP lease) replaces it in the index.
+    private void changeIpAddr( Client client, int ipAddr )
+    {
+        synchronized( client )
+        {
+            int prevIpAddr = client.mIpAddr;
+            client.mIpAddr = ipAddr;
+
+            if( mClients.get( client.getMacAddr() ) != client ) return;   // not managed here, nothing to index
+
+            if( prevIpAddr != 0 && prevIpAddr != ipAddr ) mClientsByIp.remove( prevIpAddr, client );
+            if( ipAddr != 0 )
+            {
+                Client prev = mClientsByIp.put( ipAddr, client );
+                if( prev != null && prev != client ) LOG.info( "IP address {} moved from client {} to {}", 
+                                                               new Object[] { TallacUtils.intIpToString( ipAddr ), prev.getMacAddr(), client.getMacAddr() } );
+            }
+        }
     }
     
     //---- createClient:  create Client object and add it to the list of Clients
@@ -159,10 +201,12 @@ public class ClientMgr {
     {
     	if ( getClient( mac ) != null ) return null;
     	
-    	Client client = new Client( mac, ipAddr, clientState, details, ofSwitchId, ofSwitchPort );
-    	mClients.put( mac, client );
+    	Client client = new Client( mac, 0, clientState, details, ofSwitchId, ofSwitchPort );
+    	if( mClients.putIfAbsent( mac, client ) != null ) return null;  // created by another thread meanwhile
+    	if( ipAddr != 0 ) changeIpAddr( client, ipAddr );
 
-    	LogMgr.getInstance().log( client, String.format( "Client created:  mac:[%s], ip:[%d]", mac.toString(), ipAddr ) );
+    	LogMgr.getInstance().log( client, EventType.CREATED, String.format( "Client created:  mac:[%s], ip:[%d]", mac.toString(), ipAddr ) );
+    	ClientStore.getInstance().save( client );
     	
     	return client;
     }
@@ -185,43 +229,81 @@ public class ClientMgr {
             return null;
         }
         
-        //---- Handle state changes
-        ClientState prevState = client.getState();
-        if( state != prevState )  // If the state is changing, log the information
-        {                
-            client.setState(state);       // Change client state to the new value
-            LogMgr.getInstance().log(client, String.format( "Client state changed from [%s] to [%s].", prevState, state ) );
-        }
+        //---- State change and flows under the client lock, so a concurrent move sees a consistent state
+        synchronized( client )
+        {
+            //---- Handle state changes
+            ClientState prevState = client.getState();
+            if( state != prevState )  // If the state is changing, log the information
+            {                
+                client.setState(state);       // Change client state to the new value
+                LogMgr.getInstance().log(client, EventType.STATE_CHANGED, String.format( "Client state changed from [%s] to [%s].", prevState, state ) );
+            }
         
-        //---- Handle details changes
-        String prevDetails = client.getDetails();
-        if( !details.equals( prevDetails ) )
-        {                
-            client.setDetails(details);                // set new client description
-            LogMgr.getInstance().log(client, String.format( "Client details changed from [%s] to [%s].", 
-                            (prevDetails == null ? "" : prevDetails), (details == null ? "" : details)));
-        }
+            //---- Handle details changes
+            String prevDetails = client.getDetails();
+            if( !details.equals( prevDetails ) )
+            {                
+                client.setDetails(details);                // set new client description
+                LogMgr.getInstance().log(client, EventType.DETAILS_CHANGED, String.format( "Client details changed from [%s] to [%s].", 
+                                (prevDetails == null ? "" : prevDetails), (details == null ? "" : details)));
+            }
         
-        //---- Handle setting up the flows for allowed client
-        if( client.getState() == ClientState.AUTHENTICATED || client.getState() == ClientState.GUEST )  // If user is now allowed onto network...
-        {          
-            FlowMgr.getInstance().removeUnauthFlowsOnAllSwitches( client.getMacAddr() );   // First remove Unauth flows on switches
-            FlowMgr.getInstance().setAuthFlowsOnAllSwitches( client.getMacAddr() );        // Next, set Auth flows onto switches.
-         }
+            //---- Handle setting up the flows for allowed client
+            if( client.getState() == ClientState.AUTHENTICATED || client.getState() == ClientState.GUEST )  // If user is now allowed onto network...
+            {          
+                FlowMgr.getInstance().changeToAuthFlowsOnAllSwitches( client.getMacAddr() );   // Remove Unauth flows and set Auth flows, in one batch per switch
+             }
         
-        //---- ... else handle setting up the flows for unauthenticated client
-        else if( client.getState() == ClientState.UNAUTHENTICATED )
-        {
-            FlowMgr.getInstance().removeAuthFlowsOnAllSwitches( client.getMacAddr() );  // First remove Auth flows on switches
-            FlowMgr.getInstance().setUnauthFlowsOnAllSwitches( mac );                   // Next, set Unauth flows on switches
+            //---- ... else handle setting up the flows for unauthenticated client
+            else if( client.getState() == ClientState.UNAUTHENTICATED )
+            {
+                FlowMgr.getInstance().changeToUnauthFlowsOnAllSwitches( mac );              // Remove Auth flows and set Unauth flows, in one batch per switch
+            }
         }
 
         String sIpAddr = TallacUtils.intIpToString( client.getIpAddr() );
-    	LogMgr.getInstance().log( client, String.format( "Client updated:  mac:[%s], ip:[%s], state:[%s], details:[%s]", mac.toString(), sIpAddr, state, details ) );
+    	LogMgr.getInstance().log( client, EventType.UPDATED, String.format( "Client updated:  mac:[%s], ip:[%s], state:[%s], details:[%s]", mac.toString(), sIpAddr, state, details ) );
+    	ClientStore.getInstance().save( client );
     	
         return client;    
     }
 
+    /**
+     * Record that a client is attached to another switch port, and move its
+     * flows there when they are placed on the client's edge switch only.
+     * @param mac        - MAC address
+     * @param switchId   - switch the client is attached to now
+     * @param switchPort - port the client is attached to now
+     */
+    public void moveClient( MACAddress mac, 
+                            long       switchId, 
+                            short      switchPort ) 
+    {
+        Client client = mClients.get(mac);
+        if( client == null ) return;   // not a NAC client (yet), nothing to move
+
+        //---- Flows are moved under the client lock, so a concurrent updateClient cannot leave
+        //     the flows of the state it replaced on either switch
+        synchronized( client )
+        {
+            long prevSwitchId = client.getSwitchId();
+            if( prevSwitchId == switchId && client.getSwitchPort() == switchPort ) return;
+
+            client.setSwitchId( switchId );
+            client.setSwitchPort( switchPort );
+
+            LogMgr.getInstance().log( client, EventType.MOVED, String.format( "Client moved to switch:[%d] port:[%d]", switchId, switchPort ) );
+            ClientStore.getInstance().save( client );
+
+            if( prevSwitchId != switchId )
+            {
+                boolean authorized = client.getState() == ClientState.AUTHENTICATED || client.getState() == ClientState.GUEST;
+                FlowMgr.getInstance().moveClientFlows( mac, authorized, prevSwitchId, switchId );
+            }
+        }
+    }
+
     //---- removeClientFlows:  remove the authentication flows that exist for this client (helps with testing)
     public void removeClientFlows( MACAddress  mac ) 
     {
@@ -246,20 +328,24 @@ public class ClientMgr {
     public void setClientsFlows( IOFSwitch ofSwitch ) 
     {
         //---- Go through all clients and add appropriate flows depending on the client's state.  Only relevant if we are pushing all client flows to all switches.
+        FlowBatch batch = FlowMgr.getInstance().newBatch( "client flows" );
         for( Client client : mClients.values() )
         {
+            if( !FlowMgr.getInstance().isClientSwitch( client, ofSwitch ) ) continue;   // edge placement, client is on another switch
+
         	switch( client.getState() )
         	{
         		case GUEST:
         		case AUTHENTICATED: {
-        			FlowMgr.getInstance().setAuthFlowsOnSwitch( ofSwitch, client.getMacAddr() );
-        			return;
+        			FlowMgr.getInstance().setAuthFlowsOnSwitch( ofSwitch, client.getMacAddr(), batch );
+        			break;
         		}
         		case UNAUTHENTICATED: {
-                	FlowMgr.getInstance().setUnauthFlowsOnSwitch( ofSwitch, client.getMacAddr() );
-        			return;
+                	FlowMgr.getInstance().setUnauthFlowsOnSwitch( ofSwitch, client.getMacAddr(), batch );
+        			break;
         		}
         	}
         }
+        FlowMgr.getInstance().send( batch );   // all clients' flows in one write
     }
 }
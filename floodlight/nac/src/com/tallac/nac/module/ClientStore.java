@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.nac.module;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.floodlightcontroller.util.MACAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tallac.nac.module.ClientMgr.Client;
+import com.tallac.nac.module.ClientMgr.ClientState;
+import com.tallac.nac.utils.TallacUtils;
+
+/**
+ * Keeps the client list on disk, so clients that authenticated before a
+ * controller restart do not all have to go through the captive portal
+ * again.
+ *
+ * The store is a snapshot file ("nac.clientStoreFile") and a journal next
+ * to it with the ".log" suffix. Every client change appends one line to the
+ * journal; on start up the snapshot is read, the journal is replayed over it
+ * and both are compacted into a new snapshot. The journal is compacted
+ * again once it has "nac.clientStoreCompactRecords" lines.
+ *
+ * A line is "2,mac,ip,state,switchId,switchPort,details", the leading "2"
+ * being the record version. Details are free text set by the portal, so
+ * '%', ',' and control characters in them are written as "%XX"; a record
+ * is always one line. Lines without a version are of the older
+ * "mac,ip,state,details" form. Changes are written by a single thread, one
+ * batch at a time, so a burst of changes costs one write and one sync.
+ */
+public class ClientStore {
+
+    private static final ClientStore INSTANCE = new ClientStore();
+    private static final Logger      LOG      = LoggerFactory.getLogger(ClientStore.class);
+
+    private static final String DEFAULT_FILE   = "clientList.txt";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final int    QUEUE_SIZE     = 65536;
+    private static final String VERSION        = "2";
+
+    private final BlockingQueue<String> mQueue = new LinkedBlockingQueue<String>(QUEUE_SIZE);
+    private final Object                mWriteLock = new Object();
+
+    private File             mSnapshotFile;
+    private File             mJournalFile;
+    private FileOutputStream mJournalStream;
+    private BufferedWriter   mJournal;
+    private long             mCompactRecords;
+    private boolean          mSync;
+    private int              mJournalRecords;
+    private volatile boolean mCompactNeeded;   // set when a change could not be queued
+    private volatile boolean mEnabled;
+
+    //---- Constructor:  private to prevent external instantiation
+    private ClientStore() { }
+
+    //---- getInstance: Normal getInstance method to return reference to this singleton
+    public static ClientStore getInstance() { return INSTANCE; }
+
+    //---- init:  read the configuration; an empty file name turns the store off
+    public void init()
+    {
+        String fileName = ConfigMgr.getInstance().getString("nac.clientStoreFile");
+        if( fileName == null ) fileName = DEFAULT_FILE;
+        fileName = fileName.trim();
+
+        mEnabled = !fileName.isEmpty();
+        if( !mEnabled )
+        {
+            LOG.info( "Client store is disabled, clients will not be kept across restarts." );
+            return;
+        }
+
+        mSnapshotFile   = new File( fileName );
+        mJournalFile    = new File( fileName + JOURNAL_SUFFIX );
+        mCompactRecords = ConfigMgr.getInstance().getLong( "nac.clientStoreCompactRecords", 10000 );
+        mSync           = ConfigMgr.getInstance().getLong( "nac.clientStoreSync", 1 ) != 0;
+    }
+
+    /**
+     * @return the clients of the snapshot with the journal replayed over it
+     */
+    public Collection<Client> load()
+    {
+        LinkedHashMap<MACAddress, Client> clients = new LinkedHashMap<MACAddress, Client>();
+        if( !mEnabled ) return clients.values();
+
+        read( mSnapshotFile, clients );
+        read( mJournalFile, clients );
+
+        LOG.info( "Loaded {} clients from {}.", clients.size(), mSnapshotFile );
+        return clients.values();
+    }
+
+    //---- startUp:  compact what was loaded and start writing changes
+    public void startUp()
+    {
+        if( !mEnabled ) return;
+
+        synchronized( mWriteLock )
+        {
+            compact();
+        }
+
+        Thread writer = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                while( true )
+                {
+                    try
+                    {
+                        String record = mQueue.take();
+                        synchronized( mWriteLock )
+                        {
+                            List<String> batch = new ArrayList<String>();
+                            batch.add( record );
+                            mQueue.drainTo( batch );
+                            append( batch );
+                        }
+                    }
+                    catch( InterruptedException e )
+                    {
+                        return;
+                    }
+                }
+            }
+        }, "NAC client store" );
+        writer.setDaemon( true );
+        writer.start();
+
+        //---- Write the changes still queued when the controller stops
+        Runtime.getRuntime().addShutdownHook( new Thread( new Runnable()
+        {
+            public void run()
+            {
+                synchronized( mWriteLock )
+                {
+                    List<String> batch = new ArrayList<String>();
+                    mQueue.drainTo( batch );
+                    if( !batch.isEmpty() ) append( batch );
+                }
+            }
+        }, "NAC client store shutdown" ) );
+    }
+
+    /**
+     * Queue the current state of a client to be written.
+     * @param client - client that was created or changed
+     */
+    public void save( Client client )
+    {
+        if( !mEnabled ) return;
+
+        if( !mQueue.offer( format( client ) ) )
+        {
+            // The writer has fallen behind; the next compaction writes every client anyway
+            mCompactNeeded = true;
+            LOG.warn( "Client store queue is full, {} is written at the next compaction.", client.getMacAddr() );
+        }
+    }
+
+    //---- append:  write a batch of records to the journal, compact it when it has grown too long
+    private void append( List<String> batch )
+    {
+        if( mJournal == null ) compact();   // reopen after an earlier failure
+        if( mJournal == null )
+        {
+            mCompactNeeded = true;           // the clients are still in memory, retry with the next batch
+            return;
+        }
+
+        try
+        {
+            for( String record : batch )
+            {
+                mJournal.write( record );
+                mJournal.newLine();
+            }
+            mJournal.flush();
+            if( mSync ) mJournalStream.getFD().sync();
+            mJournalRecords += batch.size();
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to write client store journal {}: {}", mJournalFile, e.getLocalizedMessage() );
+        }
+
+        if( mCompactNeeded || mJournalRecords >= mCompactRecords ) compact();
+    }
+
+    //---- compact:  write every client to a new snapshot and start an empty journal.  Called with the write lock held.
+    private void compact()
+    {
+        mCompactNeeded = false;
+        File tmpFile = new File( mSnapshotFile.getPath() + ".tmp" );
+
+        try
+        {
+            closeJournal();
+
+            FileOutputStream stream = new FileOutputStream( tmpFile );
+            BufferedWriter   writer = new BufferedWriter( new OutputStreamWriter( stream, "UTF-8" ) );
+            try
+            {
+                for( Client client : ClientMgr.getInstance().getClients() )
+                {
+                    writer.write( format( client ) );
+                    writer.newLine();
+                }
+                writer.flush();
+                stream.getFD().sync();
+            }
+            finally
+            {
+                writer.close();
+            }
+
+            if( !tmpFile.renameTo( mSnapshotFile ) ) throw new IOException( "cannot rename " + tmpFile + " to " + mSnapshotFile );
+
+            // The snapshot now holds everything in the journal, start it again
+            mJournalStream  = new FileOutputStream( mJournalFile, false );
+            mJournal        = new BufferedWriter( new OutputStreamWriter( mJournalStream, "UTF-8" ) );
+            mJournalRecords = 0;
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to compact client store {}: {}", mSnapshotFile, e.getLocalizedMessage() );
+
+            // Keep appending to the existing journal so no change is lost
+            try
+            {
+                if( mJournal == null )
+                {
+                    mJournalStream = new FileOutputStream( mJournalFile, true );
+                    mJournal       = new BufferedWriter( new OutputStreamWriter( mJournalStream, "UTF-8" ) );
+                }
+            }
+            catch( IOException e2 )
+            {
+                LOG.error( "Unable to open client store journal {}: {}", mJournalFile, e2.getLocalizedMessage() );
+            }
+        }
+    }
+
+    private void closeJournal() throws IOException
+    {
+        if( mJournal == null ) return;
+        mJournal.close();
+        mJournal       = null;
+        mJournalStream = null;
+    }
+
+    //---- read:  add the clients of a store file to the map, later lines replace earlier ones
+    private static void read( File file, LinkedHashMap<MACAddress, Client> clients )
+    {
+        if( !file.exists() ) return;
+
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+            String line;
+            int    lineNumber = 0;
+            while( (line = reader.readLine()) != null )
+            {
+                lineNumber++;
+                if( line.trim().isEmpty() ) continue;
+
+                Client client = parse( line );
+                if( client == null )
+                {
+                    // Most likely the last line of a journal written while the controller stopped
+                    LOG.warn( "Ignoring malformed client record {}:{} [{}]", new Object[] { file, lineNumber, line } );
+                    continue;
+                }
+                clients.remove( client.getMacAddr() );
+                clients.put( client.getMacAddr(), client );
+            }
+        }
+        catch( IOException e )
+        {
+            LOG.error( "Unable to read client store {}: {}", file, e.getLocalizedMessage() );
+        }
+        finally
+        {
+            if( reader != null ) try { reader.close(); } catch( IOException e ) { }
+        }
+    }
+
+    //---- format:  one store line for the client
+    private static String format( Client client )
+    {
+        return VERSION + "," +
+               client.getMacAddr().toString() + "," +
+               TallacUtils.intIpToString( client.getIpAddr() ) + "," +
+               client.getState().name() + "," +
+               client.getSwitchId() + "," +
+               client.getSwitchPort() + "," +
+               escape( client.getDetails() );
+    }
+
+    //---- parse:  the client of a store line, null if the line is malformed
+    private static Client parse( String line )
+    {
+        long   switchId   = -1;
+        short  switchPort = -1;
+        String details;
+        String[] fields;
+
+        try
+        {
+            if( line.startsWith( VERSION + "," ) )
+            {
+                fields = line.substring( VERSION.length() + 1 ).split( ",", 6 );
+                if( fields.length < 6 ) return null;
+
+                switchId   = Long.parseLong( fields[3].trim() );
+                switchPort = Short.parseShort( fields[4].trim() );
+                details    = unescape( fields[5] );
+            }
+            else
+            {
+                // Older "mac,ip,state,details" line, without the switch
+                fields = line.split( ",", 4 );
+                if( fields.length < 3 ) return null;
+
+                details = (fields.length < 4) ? "" : fields[3];
+            }
+
+            MACAddress  mac    = MACAddress.valueOf( fields[0].trim() );
+            InetAddress ipAddr = TallacUtils.convertIpv4Address( fields[1].trim() );
+            ClientState state  = ClientState.parseState( fields[2] );
+            if( ipAddr == null || state == null ) return null;
+
+            return new Client( mac, TallacUtils.inetAddressToInt( ipAddr ), state, details, switchId, switchPort );
+        }
+        catch( IllegalArgumentException e )
+        {
+            return null;
+        }
+    }
+
+    //---- escape:  details with '%', ',' and control characters as "%XX"
+    private static String escape( String details )
+    {
+        if( details == null ) return "";
+
+        StringBuilder escaped = new StringBuilder( details.length() );
+        for( int i = 0; i < details.length(); i++ )
+        {
+            char c = details.charAt( i );
+            if( c == '%' || c == ',' || c < 0x20 || c == 0x7f ) escaped.append( String.format( "%%%02X", (int) c ) );
+            else                                                escaped.append( c );
+        }
+        return escaped.toString();
+    }
+
+    //---- unescape:  details written by escape(); IllegalArgumentException if an escape is malformed
+    private static String unescape( String field )
+    {
+        if( field.indexOf( '%' ) < 0 ) return field;
+
+        StringBuilder details = new StringBuilder( field.length() );
+        for( int i = 0; i < field.length(); i++ )
+        {
+            char c = field.charAt( i );
+            if( c != '%' )
+            {
+                details.append( c );
+                continue;
+            }
+            if( i + 2 >= field.length() ) throw new IllegalArgumentException( "truncated escape in [" + field + "]" );
+            details.append( (char) Integer.parseInt( field.substring( i + 1, i + 3 ), 16 ) );
+            i += 2;
+        }
+        return details.toString();
+    }
+}
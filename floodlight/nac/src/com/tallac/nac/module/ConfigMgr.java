@@ -65,4 +65,8 @@ public class ConfigMgr {
         return mProperties.getShort(key);
     }
 
+    public long getLong(String key, long defaultValue) {
+        return mProperties.getLong(key, defaultValue);
+    }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+
+package com.tallac.nac.module;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+import org.openflow.protocol.OFMessage;
+
+/**
+ * Flow-mods of one client state transition, grouped per switch.
+ *
+ * A batch is filled by the FlowMgr flow methods taking a FlowBatch and
+ * sent with {@link FlowMgr#send(FlowBatch)}: each switch gets all of its
+ * flow-mods and a barrier request in a single write. The transition is
+ * confirmed when every switch has answered its barrier.
+ */
+public class FlowBatch
+{
+    private final String                               mDescription;
+    private final long                                 mCreated;     // System.nanoTime()
+    private final Map<IOFSwitch, List<OFMessage>>      mMessages;
+    private final AtomicInteger                        mUnconfirmed; // switches still to answer the barrier
+    private volatile long                              mSent;        // System.currentTimeMillis(), 0 until sent
+    private int                                        mFlowMods;
+
+    //---- FlowBatch:  created by FlowMgr.newBatch()
+    FlowBatch( String description )
+    {
+        mDescription = description;
+        mCreated     = System.nanoTime();
+        mMessages    = new LinkedHashMap<IOFSwitch, List<OFMessage>>();
+        mUnconfirmed = new AtomicInteger();
+    }
+
+    //---- add:  queue a message for the switch, in order
+    void add( IOFSwitch ofSwitch, OFMessage msg )
+    {
+        List<OFMessage> messages = mMessages.get( ofSwitch );
+        if( messages == null )
+        {
+            messages = new ArrayList<OFMessage>();
+            mMessages.put( ofSwitch, messages );
+        }
+        messages.add( msg );
+        mFlowMods++;
+    }
+
+    Map<IOFSwitch, List<OFMessage>> getMessages() { return mMessages; }
+
+    //---- sent:  the batch was written, barriers are expected from the given number of switches
+    void sent( int switches )
+    {
+        mUnconfirmed.set( switches );
+        mSent = System.currentTimeMillis();
+    }
+
+    //---- confirmed:  a switch answered its barrier; true for the last one
+    boolean confirmed() { return mUnconfirmed.decrementAndGet() == 0; }
+
+    long getCreated() { return mCreated; }
+    long getSent()    { return mSent; }
+
+    public String getDescription() { return mDescription; }
+    public int    getFlowMods()    { return mFlowMods; }
+    public int    getSwitches()    { return mMessages.size(); }
+
+    @Override
+    public String toString() {
+        return "FlowBatch [" + mDescription + ", flowMods=" + mFlowMods + ", switches=" + mMessages.size() + "]";
+    }
+}
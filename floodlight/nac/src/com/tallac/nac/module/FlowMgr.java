@@ -9,8 +9,13 @@ import static org.openflow.protocol.OFMatch.OFPFW_ALL;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -22,8 +27,10 @@ import net.floodlightcontroller.staticflowentry.StaticFlowEntries;
 import net.floodlightcontroller.staticflowentry.StaticFlowEntryPusher;
 import net.floodlightcontroller.util.MACAddress;
 
+import org.openflow.protocol.OFBarrierRequest;
 import org.openflow.protocol.OFFlowMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPacketOut;
 import org.openflow.protocol.OFPort;
@@ -44,6 +51,15 @@ public class FlowMgr
     private static final Logger  LOG             = LoggerFactory.getLogger(FlowMgr.class);
     public static  final short   NO_IDLE_TIMEOUT = 0;
 
+    // Packet-out action lists shared by all threads. Unmodifiable, since a written message keeps a reference.
+    private static final List<OFAction> NO_ACTIONS     = Collections.emptyList();
+    private static final List<OFAction> NORMAL_ACTIONS = Collections.<OFAction>singletonList(new OFActionOutput(OFPort.OFPP_NORMAL.getValue()));
+    private static final List<OFAction> FLOOD_ACTIONS  = Collections.<OFAction>singletonList(new OFActionOutput(OFPort.OFPP_FLOOD.getValue()));
+
+    // Barriers not answered within the timeout (e.g. switch disconnected) are dropped once there are too many
+    private static final long BARRIER_TIMEOUT_MS   = 10000;
+    private static final int  MAX_PENDING_BARRIERS = 4096;
+
     private IFloodlightProviderService mProvider;
 
     private ArrayList<OFFlowMod> mDefaultFlows;     // List of default flow. Initializes on init.
@@ -52,6 +68,33 @@ public class FlowMgr
     private short mUnauthFlowPriority;
     private short mDropUnauthFlowPriority;
 
+    private boolean mEdgePlacement;   // client flows only on the client's edge switch, "nac.flowPlacement=edge"
+    private short   mTransitFlowPriority;
+
+    private ConcurrentHashMap<Long, Set<Short>> mTransitPorts;   // ports with a transit flow, per switch
+
+    private ConcurrentHashMap<BarrierKey, FlowBatch> mPendingBarriers;   // batches waiting for barrier replies
+
+    //---- BarrierKey:  switch and transaction ID of a barrier request
+    private static final class BarrierKey
+    {
+        private final long mSwitchId;
+        private final int  mXid;
+
+        BarrierKey( long switchId, int xid ) { mSwitchId = switchId; mXid = xid; }
+
+        @Override
+        public int hashCode() { return (int)(mSwitchId ^ (mSwitchId >>> 32)) * 31 + mXid; }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            if( !(obj instanceof BarrierKey) ) return false;
+            BarrierKey other = (BarrierKey) obj;
+            return mSwitchId == other.mSwitchId && mXid == other.mXid;
+        }
+    }
+
     //---- FlowMgr:  private constructor to prevent external instantiation
     private FlowMgr() 
     {
@@ -60,6 +103,8 @@ public class FlowMgr
         mAuthFlowPriority       = 0;
         mUnauthFlowPriority     = 0;
         mDropUnauthFlowPriority = 0;
+        mPendingBarriers        = new ConcurrentHashMap<BarrierKey, FlowBatch>();
+        mTransitPorts           = new ConcurrentHashMap<Long, Set<Short>>();
     }
 
     public static FlowMgr getInstance() { return INSTANCE; }
@@ -88,6 +133,12 @@ public class FlowMgr
         mAuthFlowPriority       = ConfigMgr.getInstance().getShort( "nac.authFlowPriority" );
         mUnauthFlowPriority     = ConfigMgr.getInstance().getShort( "nac.unauthFlowPriority" );
         mDropUnauthFlowPriority = ConfigMgr.getInstance().getShort( "nac.dropUnauthFlowPriority" );
+
+        //---- Get flow placement: "all" switches (default) or the client's "edge" switch only
+        String placement = ConfigMgr.getInstance().getString( "nac.flowPlacement" );
+        mEdgePlacement   = placement != null && placement.trim().equalsIgnoreCase( "edge" );
+        mTransitFlowPriority = (short) ConfigMgr.getInstance().getLong( "nac.transitFlowPriority", 100 );
+        LOG.info( "Client flows are placed on {}.", mEdgePlacement ? "the client's edge switch" : "all switches" );
     }
     
     /**
@@ -98,7 +149,87 @@ public class FlowMgr
     //---- setDefaultFlows:  set default flows for the given switch
     public void setDefaultFlows( final IOFSwitch ofSwitch )
     {
-        for (OFFlowMod flow : mDefaultFlows) { sendFlowModMessage( ofSwitch, flow );  }  // Iterate through flows, setting each on switch
+        FlowBatch batch = newBatch( "default flows" );
+        for (OFFlowMod flow : mDefaultFlows) { sendFlowModMessage( ofSwitch, flow, batch );  }  // Iterate through flows, setting each on switch
+        send( batch );
+    }
+
+    /**
+     * Create an empty batch of flow-mods, filled by the flow methods taking
+     * a FlowBatch.
+     * 
+     * @param description - what the batch does, for logging
+     */
+    public FlowBatch newBatch( final String description )
+    {
+        return new FlowBatch( description );
+    }
+
+    /**
+     * Write a batch: all flow-mods of a switch and a barrier request in one
+     * write. The time until every switch answered its barrier is recorded
+     * as the FLOW_CONFIRM latency.
+     * 
+     * @param batch - flow-mods to write
+     */
+    public void send( final FlowBatch batch )
+    {
+        if( mPendingBarriers.size() > MAX_PENDING_BARRIERS ) expireBarriers();
+
+        batch.sent( batch.getSwitches() );
+        for( Map.Entry<IOFSwitch, List<OFMessage>> entry : batch.getMessages().entrySet() )
+        {
+            IOFSwitch       ofSwitch = entry.getKey();
+            List<OFMessage> messages = entry.getValue();
+
+            OFBarrierRequest barrier = (OFBarrierRequest) mProvider.getOFMessageFactory().getMessage( OFType.BARRIER_REQUEST );
+            barrier.setXid( ofSwitch.getNextTransactionId() );
+            messages.add( barrier );
+            mPendingBarriers.put( new BarrierKey( ofSwitch.getId(), barrier.getXid() ), batch );
+
+            try
+            {
+                ofSwitch.write( messages, null );
+                ofSwitch.flush();
+            }
+            catch (final IOException e)
+            {
+                LOG.error( "Unable to write {} to switch {} err: {}", new Object[] { batch, ofSwitch.getId(), e } );
+                barrierReplied( ofSwitch, barrier.getXid() );   // nothing to wait for
+            }
+        }
+        LatencyMgr.getInstance().record( LatencyMgr.Stage.FLOW_WRITE, System.nanoTime() - batch.getCreated() );
+        LOG.trace( "Sent {}", batch );
+    }
+
+    /**
+     * Handle a barrier reply, confirming the batch it was sent with.
+     * 
+     * @param ofSwitch - switch that replied
+     * @param xid      - transaction ID of the barrier
+     */
+    public void barrierReplied( final IOFSwitch ofSwitch, final int xid )
+    {
+        FlowBatch batch = mPendingBarriers.remove( new BarrierKey( ofSwitch.getId(), xid ) );
+        if( batch == null || !batch.confirmed() ) return;
+
+        LatencyMgr.getInstance().record( LatencyMgr.Stage.FLOW_CONFIRM, System.nanoTime() - batch.getCreated() );
+        LOG.debug( "Confirmed {}", batch );
+    }
+
+    //---- expireBarriers:  forget barriers that will not be answered anymore
+    private void expireBarriers()
+    {
+        long expired = System.currentTimeMillis() - BARRIER_TIMEOUT_MS;
+        for( Iterator<FlowBatch> it = mPendingBarriers.values().iterator(); it.hasNext(); )
+        {
+            FlowBatch batch = it.next();
+            if( batch.getSent() < expired )
+            {
+                LOG.info( "No barrier reply for {}", batch );
+                it.remove();
+            }
+        }
     }
     
     /**
@@ -116,8 +247,7 @@ public class FlowMgr
     {
         LOG.debug("Drop packet");
         
-        final List<OFAction> flActions = new ArrayList<OFAction>();
-        sendPacketOut( ofSwitch, cntx, packetIn, flActions );
+        sendPacketOut( ofSwitch, cntx, packetIn, NO_ACTIONS );
     }
 
     /**
@@ -194,8 +324,10 @@ public class FlowMgr
                                short             outputPort ) 
     {
     	//---- Set the action for sending the packet out the appropriate outputPort
-        List<OFAction> ofActions = new ArrayList<OFAction>();
-        ofActions.add( new OFActionOutput( outputPort ) );
+        List<OFAction> ofActions;
+        if(      outputPort == OFPort.OFPP_NORMAL.getValue() ) ofActions = NORMAL_ACTIONS;
+        else if( outputPort == OFPort.OFPP_FLOOD.getValue() )  ofActions = FLOOD_ACTIONS;
+        else                                                    ofActions = Collections.<OFAction>singletonList( new OFActionOutput( outputPort ) );
         
         sendPacketOut(ofSwitch, context, packetIn, ofActions); // Forward packet back to the switch
     }
@@ -217,7 +349,9 @@ public class FlowMgr
      */
     public void setAuthFlowsOnAllSwitches( final MACAddress mac ) 
     {
-        modifyAuthFlowsOnAllSwitches( OFFlowMod.OFPFC_ADD, mac );
+        FlowBatch batch = newBatch( "set auth flows " + mac );
+        modifyAuthFlowsOnAllSwitches( OFFlowMod.OFPFC_ADD, mac, batch );
+        send( batch );
     }
  
     /**
@@ -227,7 +361,9 @@ public class FlowMgr
      */
     public void setUnauthFlowsOnAllSwitches( final MACAddress mac ) 
     {
-        modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_ADD, mac );
+        FlowBatch batch = newBatch( "set unauth flows " + mac );
+        modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_ADD, mac, batch );
+        send( batch );
     }
 
     /**
@@ -237,14 +373,138 @@ public class FlowMgr
      */
     public void removeAuthFlowsOnAllSwitches( final MACAddress mac ) 
     {
-        modifyAuthFlowsOnAllSwitches( OFFlowMod.OFPFC_DELETE, mac );
+        FlowBatch batch = newBatch( "remove auth flows " + mac );
+        modifyAuthFlowsOnAllSwitches( OFFlowMod.OFPFC_DELETE, mac, batch );
+        send( batch );
     }
     
     public void removeUnauthFlowsOnAllSwitches( final MACAddress mac )
     {
-    	modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_DELETE, mac );
+        FlowBatch batch = newBatch( "remove unauth flows " + mac );
+    	modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_DELETE, mac, batch );
+        send( batch );
+    }
+
+    /**
+     * Replace client's Allow-HTTP flows by bidirectional flows on all 
+     * connected switches, in one batch per switch.
+     *
+     * @param  mac - client mac
+     */
+    public void changeToAuthFlowsOnAllSwitches( final MACAddress mac )
+    {
+        FlowBatch batch = newBatch( "authorize " + mac );
+        modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_DELETE, mac, batch );
+        modifyAuthFlowsOnAllSwitches(   OFFlowMod.OFPFC_ADD,    mac, batch );
+        send( batch );
+    }
+
+    /**
+     * Replace client's bidirectional flows by Allow-HTTP flows on all 
+     * connected switches, in one batch per switch.
+     *
+     * @param  mac - client mac
+     */
+    public void changeToUnauthFlowsOnAllSwitches( final MACAddress mac )
+    {
+        FlowBatch batch = newBatch( "unauthorize " + mac );
+        modifyAuthFlowsOnAllSwitches(   OFFlowMod.OFPFC_DELETE, mac, batch );
+        modifyUnauthFlowsOnAllSwitches( OFFlowMod.OFPFC_ADD,    mac, batch );
+        send( batch );
     }
     
+    /**
+     * Move client's flows from the switch it was attached to onto the switch
+     * it is attached to now; both the Auth and Unauth flows are deleted on
+     * the previous switch. Only used with edge placement; with all-switch
+     * placement every switch has the flows already.
+     *
+     * @param  mac          - client mac
+     * @param  authorized   - whether the client has Auth flows rather than Unauth flows
+     * @param  prevSwitchId - switch the client was attached to, -1 if unknown
+     * @param  switchId     - switch the client is attached to now
+     */
+    public void moveClientFlows( final MACAddress mac,
+                                 final boolean    authorized,
+                                 final long       prevSwitchId,
+                                 final long       switchId )
+    {
+        if( !mEdgePlacement ) return;
+
+        FlowBatch batch = newBatch( "move " + mac );
+        Map<Long, IOFSwitch> switches = mProvider.getSwitches();
+
+        IOFSwitch prevSwitch = switches.get( prevSwitchId );
+        if( prevSwitch != null )
+        {
+            // Both sets, in case the client changed state since its flows were placed there
+            modifyAuthFlowOnSwitch(    prevSwitch, OFFlowMod.OFPFC_DELETE, mac, batch );
+            modifyUnauthFlowsOnSwitch( prevSwitch, OFFlowMod.OFPFC_DELETE, mac, batch );
+        }
+
+        IOFSwitch ofSwitch = switches.get( switchId );
+        if( ofSwitch != null )
+        {
+            if( authorized ) modifyAuthFlowOnSwitch(    ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
+            else             modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
+        }
+        send( batch );
+    }
+
+    /**
+     * @return whether client flows are placed on the client's edge switch only
+     */
+    public boolean isEdgePlacement() { return mEdgePlacement; }
+
+    /**
+     * With edge placement only the edge switch of a client has its flows, so
+     * the other switches forward whatever comes in on their uplink and
+     * inter-switch ports: the edge switch already admitted it. Transit flows
+     * are below the client drop flows, which still apply on the edge switch.
+     *
+     * @param  ofSwitch - target switch
+     * @param  ports    - uplink and inter-switch ports of the switch
+     */
+    public synchronized void setTransitFlows( final IOFSwitch  ofSwitch,
+                                              final Set<Short> ports )
+    {
+        if( !mEdgePlacement ) return;
+
+        Set<Short> prevPorts = mTransitPorts.put( ofSwitch.getId(), ports );
+        if( ports.equals( prevPorts ) ) return;
+
+        FlowBatch batch = newBatch( "transit flows" );
+        if( prevPorts != null )
+        {
+            for( Short port : prevPorts ) if( !ports.contains( port ) ) modifyTransitFlow( ofSwitch, OFFlowMod.OFPFC_DELETE_STRICT, port, batch );
+        }
+        for( Short port : ports ) if( prevPorts == null || !prevPorts.contains( port ) ) modifyTransitFlow( ofSwitch, OFFlowMod.OFPFC_ADD, port, batch );
+        send( batch );
+
+        LOG.info( "Transit ports of switch {}: {}", ofSwitch.getStringId(), ports );
+    }
+
+    /**
+     * Forget the transit flows of a disconnected switch; they are set again when it reconnects.
+     *
+     * @param  ofSwitch - disconnected switch
+     */
+    public void clearTransitFlows( final IOFSwitch ofSwitch )
+    {
+        mTransitPorts.remove( ofSwitch.getId() );
+    }
+
+    /**
+     * @param  client   - client
+     * @param  ofSwitch - switch
+     * @return whether the client's flows belong on the switch
+     */
+    public boolean isClientSwitch( final ClientMgr.Client client,
+                                   final IOFSwitch        ofSwitch )
+    {
+        return !mEdgePlacement || client.getSwitchId() == -1 || client.getSwitchId() == ofSwitch.getId();
+    }
+
     /**
      * Create bidirectional client's flow on target switches.
      *
@@ -254,7 +514,23 @@ public class FlowMgr
     public void setAuthFlowsOnSwitch( final IOFSwitch  ofSwitch,
                                       final MACAddress mac ) 
     {
-        modifyAuthFlowOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac );
+        FlowBatch batch = newBatch( "set auth flows " + mac );
+        modifyAuthFlowOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
+        send( batch );
+    }
+
+    /**
+     * Add client's bidirectional flow on target switch to a batch.
+     *
+     * @param  ofSwitch - target switch
+     * @param  mac      - target MAC Address
+     * @param  batch    - batch to add the flow-mods to
+     */
+    public void setAuthFlowsOnSwitch( final IOFSwitch  ofSwitch,
+                                      final MACAddress mac,
+                                      final FlowBatch  batch ) 
+    {
+        modifyAuthFlowOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
     }
     
     /**
@@ -266,7 +542,23 @@ public class FlowMgr
     public void setUnauthFlowsOnSwitch( final IOFSwitch  ofSwitch,
                                         final MACAddress mac ) {
     	
-    	modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac );   	
+        FlowBatch batch = newBatch( "set unauth flows " + mac );
+    	modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
+        send( batch );
+    }
+
+    /**
+     * Add client flows to allow HTTP traffic on target switch to a batch.
+     *
+     * @param  ofSwitch - target switch
+     * @param  mac      - target MAC Address
+     * @param  batch    - batch to add the flow-mods to
+     */
+    public void setUnauthFlowsOnSwitch( final IOFSwitch  ofSwitch,
+                                        final MACAddress mac,
+                                        final FlowBatch  batch ) {
+    	
+    	modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_ADD, mac, batch );
     }
 
     /**
@@ -278,7 +570,9 @@ public class FlowMgr
     public void removeUnauthFlowsOnSwitch(  final IOFSwitch  ofSwitch, 
     		                                final MACAddress mac       ) {
 
-    	modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_DELETE, mac );   	
+        FlowBatch batch = newBatch( "remove unauth flows " + mac );
+    	modifyUnauthFlowsOnSwitch( ofSwitch, OFFlowMod.OFPFC_DELETE, mac, batch );
+        send( batch );
     }
 
     /**
@@ -297,38 +591,56 @@ public class FlowMgr
     }
 
     /**
-     * Modify bidirectional client's MAC flow on all connected switches.
+     * Return the connected switches a client's flows are placed on: its edge
+     * switch with edge placement, all switches otherwise or while the edge
+     * switch of the client is not known.
+     *
+     * @param  mac - client mac
+     */
+    private Collection<IOFSwitch> getClientSwitches( final MACAddress mac )
+    {
+        Map<Long, IOFSwitch> switches = mProvider.getSwitches();
+        if( !mEdgePlacement ) return switches.values();
+
+        ClientMgr.Client client = ClientMgr.getInstance().getClient( mac );
+        if( client == null || client.getSwitchId() == -1 ) return switches.values();
+
+        IOFSwitch ofSwitch = switches.get( client.getSwitchId() );
+        if( ofSwitch == null ) return Collections.emptyList();   // flows are set when the switch connects
+        return Collections.singletonList( ofSwitch );
+    }
+
+    /**
+     * Modify bidirectional client's MAC flow on the client's switches.
      *
      * @param  command - FlowMod command ADD/DELETE
      * @param  mac - target mac
+     * @param  batch - batch to add the flow-mods to
      */
     private void modifyAuthFlowsOnAllSwitches( final short      command,
-                                               final MACAddress mac      ) 
+                                               final MACAddress mac,
+                                               final FlowBatch  batch    ) 
     {
-        // Loop through connected switches and add bidirectional flow for the client
-        Map<Long, IOFSwitch> switches = mProvider.getSwitches();
-        
-        for( Map.Entry<Long, IOFSwitch> ofSwitchEntry : switches.entrySet() ) {
-            IOFSwitch ofSwitch = ofSwitchEntry.getValue();
-            modifyAuthFlowOnSwitch( ofSwitch, command, mac );
+        // Loop through the client's switches and add bidirectional flow for the client
+        for( IOFSwitch ofSwitch : getClientSwitches( mac ) ) {
+            modifyAuthFlowOnSwitch( ofSwitch, command, mac, batch );
         }
     }
  
     /**
-     * Modify bidirectional client's Allow-HTTP flows on all connected switches.
+     * Modify bidirectional client's Allow-HTTP flows on the client's switches.
      *
      * @param  command - FlowMod command ADD/DELETE
      * @param  mac - target mac
+     * @param  batch - batch to add the flow-mods to
      */
     private void modifyUnauthFlowsOnAllSwitches( final short      command,
-                                                 final MACAddress mac     ) 
+                                                 final MACAddress mac,
+                                                 final FlowBatch  batch   ) 
     {
-        // Loop through connected switches and add bidirectional flow for the client
-        Map<Long, IOFSwitch> switches = mProvider.getSwitches();
-        
-        for( Map.Entry<Long, IOFSwitch> ofSwitchEntry : switches.entrySet() ) {
-            IOFSwitch ofSwitch = ofSwitchEntry.getValue();
-            modifyUnauthFlowsOnSwitch( ofSwitch, command, mac );
+        // Loop through the client's switches and add bidirectional flow for the client
+        for( IOFSwitch ofSwitch : getClientSwitches( mac ) ) {
+            modifyUnauthFlowsOnSwitch( ofSwitch, command, mac, batch );
         }
     }
 
@@ -338,10 +650,12 @@ public class FlowMgr
      * @param  ofSwitch - target switch
      * @param  command - FlowMod command ADD/DELETE
      * @param  mac    - target MAC Address
+     * @param  batch  - batch to add the flow-mods to
      */
     private void modifyAuthFlowOnSwitch( final IOFSwitch  ofSwitch,
                                          final short      command,
-                                         final MACAddress mac )
+                                         final MACAddress mac,
+                                         final FlowBatch  batch )
     {
         
         /* Create output action "NORMAL"*/
@@ -356,25 +670,46 @@ public class FlowMgr
         OFMatch ofMatch = new OFMatch();
         ofMatch.setWildcards(            allExclude( OFMatch.OFPFW_DL_DST) );
         ofMatch.setDataLayerDestination( mac.toBytes() );
-        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActions, mAuthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActions, mAuthFlowPriority, NO_IDLE_TIMEOUT, batch );
 
         // Add flow with specified source MAC address
         ofMatch = new OFMatch();
         ofMatch.setWildcards(       allExclude( OFMatch.OFPFW_DL_SRC) );
         ofMatch.setDataLayerSource( mac.toBytes() );
-        sendFlowModMessage(         ofSwitch, command, ofMatch, ofActions, mAuthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage(         ofSwitch, command, ofMatch, ofActions, mAuthFlowPriority, NO_IDLE_TIMEOUT, batch );
     }
     
+    /**
+     * Set/delete the flow forwarding everything coming in on a transit port.
+     *
+     * @param  ofSwitch - target switch
+     * @param  command  - FlowMod command ADD/DELETE_STRICT
+     * @param  port     - uplink or inter-switch port
+     * @param  batch    - batch to add the flow-mod to
+     */
+    private void modifyTransitFlow( final IOFSwitch ofSwitch,
+                                    final short     command,
+                                    final short     port,
+                                    final FlowBatch batch )
+    {
+        OFMatch ofMatch = new OFMatch();
+        ofMatch.setWildcards( allExclude( OFMatch.OFPFW_IN_PORT ) );
+        ofMatch.setInputPort( port );
+        sendFlowModMessage( ofSwitch, command, ofMatch, NORMAL_ACTIONS, mTransitFlowPriority, NO_IDLE_TIMEOUT, batch );
+    }
+
     /**
      * Set/delete client's HTTP flows on target switches.
      *
      * @param  ofSwitch - target switch
      * @param  command - FlowMod command ADD/DELETE
      * @param  mac    - target MAC Address
+     * @param  batch  - batch to add the flow-mods to
      */
     private void modifyUnauthFlowsOnSwitch( final IOFSwitch  ofSwitch,
                                             final short      command,
-                                            final MACAddress mac ) {
+                                            final MACAddress mac,
+                                            final FlowBatch  batch ) {
     	
         // Create output action for forward these HTTP flows to the CONTROLLER
 //        OFAction ofActionToController         = new OFActionOutput(OFPort.OFPP_CONTROLLER.getValue());
@@ -401,13 +736,13 @@ public class FlowMgr
         ofMatch.setDataLayerType(        Ethernet.TYPE_IPv4 );
         ofMatch.setNetworkProtocol(      IPv4.PROTOCOL_TCP );
         ofMatch.setTransportDestination( (short)80 );
-        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
         
         ofMatch.setTransportDestination( (short)(443) );
-        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
         
         ofMatch.setTransportDestination( (short)(8080) );
-        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsNormal, mUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsNormal, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
         
         //---- Set equivalent destination MAC flows for 80, 443, 8080
         ofMatch = new OFMatch();
@@ -418,13 +753,13 @@ public class FlowMgr
 		ofMatch.setNetworkProtocol(      IPv4.PROTOCOL_TCP );
 		ofMatch.setTransportSource(      (short)80 );
 		
-        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
 
         ofMatch.setTransportSource( (short)(443) );
-        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsToController, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
         
         ofMatch.setTransportSource( (short)(8080) );
-        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsNormal, mUnauthFlowPriority, NO_IDLE_TIMEOUT );        
+        sendFlowModMessage( ofSwitch, command, ofMatch, ofActionsNormal, mUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );        
          
         //---- Lastly, drop all other traffic for this MAC
         /* Create output action "NORMAL"*/
@@ -434,13 +769,13 @@ public class FlowMgr
         ofMatch = new OFMatch();
         ofMatch.setWildcards(            allExclude( OFMatch.OFPFW_DL_DST) );
         ofMatch.setDataLayerDestination( mac.toBytes() );
-        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActions, mDropUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage(              ofSwitch, command, ofMatch, ofActions, mDropUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
 
         // Add flow with specified source MAC address
         ofMatch = new OFMatch();
         ofMatch.setWildcards(       allExclude( OFMatch.OFPFW_DL_SRC) );
         ofMatch.setDataLayerSource( mac.toBytes() );
-        sendFlowModMessage(         ofSwitch, command, ofMatch, ofActions, mDropUnauthFlowPriority, NO_IDLE_TIMEOUT );
+        sendFlowModMessage(         ofSwitch, command, ofMatch, ofActions, mDropUnauthFlowPriority, NO_IDLE_TIMEOUT, batch );
 
    }
 
@@ -453,13 +788,15 @@ public class FlowMgr
      * @param actions      - flow actions
      * @param priority     - flow priority
      * @param idleTimeout  - flow idle timeout
+     * @param batch        - batch to add the flow-mod to
      */
     private void sendFlowModMessage( final IOFSwitch      ofSwitch,
                                      final short          command,
                                      final OFMatch        ofMatch,
                                      final List<OFAction> actions,
                                      final short          priority,
-                                     final short          idleTimeout )
+                                     final short          idleTimeout,
+                                     final FlowBatch      batch )
     {
         if (mProvider == null) LOG.error("FlowMgr is not initialized yet."); 
 
@@ -472,17 +809,19 @@ public class FlowMgr
          * example to collect flow statistics, then setup SEND_FLOW_REM flag.setFlags(OFFlowMod.OFPFF_SEND_FLOW_REM)
          */
         
-        sendFlowModMessage( ofSwitch, ofm );
+        sendFlowModMessage( ofSwitch, ofm, batch );
     }
 
     /**
-     * Send FlowMod message to specified switch.
+     * Add FlowMod message for specified switch to a batch.
      * 
      * @param ofSwitch - target switch
      * @param ofm      - OFFlowMod object representing flow
+     * @param batch    - batch to add the flow-mod to
      */
     private void sendFlowModMessage( final IOFSwitch ofSwitch,
-                                     final OFFlowMod ofm )
+                                     final OFFlowMod ofm,
+                                     final FlowBatch batch )
     {       
         // Set transaction ID
         ofm.setXid(ofSwitch.getNextTransactionId());
@@ -502,15 +841,7 @@ public class FlowMgr
         for (final OFAction action : ofm.getActions()) { actionsLength += action.getLengthU(); }
         ofm.setLengthU( OFFlowMod.MINIMUM_LENGTH + actionsLength );
 
-        try
-        {
-            ofSwitch.write(ofm, null);
-            ofSwitch.flush();
-        }
-        catch (final IOException e)
-        {
-            LOG.error("Unable to set flow " + ofm + " on switch {} err: {}", ofSwitch.getId(), e);
-        }
+        batch.add( ofSwitch, ofm );
     }
     
     /**
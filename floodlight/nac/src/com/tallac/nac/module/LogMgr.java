@@ -7,74 +7,241 @@ package com.tallac.nac.module;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.floodlightcontroller.util.MACAddress;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.nac.module.ClientMgr.Client;
+import com.tallac.nac.module.ClientMgr.ClientState;
 
+/**
+ * Client event log, kept in a ring of the last "nac.logCapacity" records.
+ *
+ * Records are numbered in the order they are logged, so they are also in
+ * time order; a time range is found by binary search. Each record links
+ * to the previous record of the same client, so the records of one MAC
+ * address are found without scanning the whole ring. Logging takes a
+ * short lock, queries run without one. Every record is also written to
+ * the LogMgr logger, which can be routed to a rolling file to keep
+ * records after they leave the ring.
+ */
 public class LogMgr {
-	
+
 	private static final LogMgr INSTANCE = new LogMgr();
 	private static final Logger LOG = LoggerFactory.getLogger(LogMgr.class);
 
-    /** 
-     * Class responsible for handling client information
-     */
-    public static class LogRecord 
-    {
-        private Date   mDate;
-        private Client mClient;
-        private String mEvent;
+	private static final int DEFAULT_CAPACITY = 10000;
 
-        public LogRecord(Client client, String event) 
-        {
-            mClient = client;
-            mEvent = event;
-            mDate = new Date();
-        }
+    public static enum EventType {
+        CREATED, UPDATED, STATE_CHANGED, DETAILS_CHANGED, MOVED, OTHER;
 
-        public Client getClient() 
+        public static EventType parseType(String type)
         {
-            return mClient;
+            for( EventType eventType:EventType.values() ) if( eventType.name().equalsIgnoreCase(type.trim()) ) return eventType;
+            return null;
         }
+    };
 
-        public String getEvent() 
-        {
-            return mEvent;
-        }
+    /**
+     * Class responsible for handling client information
+     */
+    public static class LogRecord
+    {
+        private final long        mId;
+        private final long        mPrevId;     // previous record of the same client, -1 if none
+        private final Date        mDate;
+        private final Client      mClient;
+        private final EventType   mType;
+        private final String      mEvent;
+
+        //---- Client data at the time of the event
+        private final MACAddress  mMac;
+        private final int         mIpAddr;
+        private final ClientState mState;
+        private final String      mDetails;
 
-        public Date getDate() 
+        public LogRecord(long id, long prevId, Client client, EventType type, String event)
         {
-            return mDate;
+            mId      = id;
+            mPrevId  = prevId;
+            mClient  = client;
+            mType    = type;
+            mEvent   = event;
+            mDate    = new Date();
+            mMac     = client.getMacAddr();
+            mIpAddr  = client.getIpAddr();
+            mState   = client.getState();
+            mDetails = client.getDetails();
         }
 
+        public long getId()              { return mId; }
+        public Client getClient()        { return mClient; }
+        public EventType getType()       { return mType; }
+        public String getEvent()         { return mEvent; }
+        public Date getDate()            { return mDate; }
+        public MACAddress getMacAddr()   { return mMac; }
+        public int getIpAddr()           { return mIpAddr; }
+        public ClientState getState()    { return mState; }
+        public String getDetails()       { return mDetails; }
+
         @Override
         public String toString() {
-            return "LogRecord [mDate=" + mDate + ", mClient=" + mClient
-                    + ", mEvent=" + mEvent + "]";
+            return "LogRecord [mId=" + mId + ", mDate=" + mDate + ", mClient=" + mClient
+                    + ", mType=" + mType + ", mEvent=" + mEvent + "]";
         }
     }
-    
-	private ArrayList<LogRecord> mLogRecords;
+
+    /**
+     * Filter of a log query; null fields match every record.
+     */
+    public static class Query
+    {
+        public MACAddress mac;
+        public EventType  type;
+        public Date       from;     // inclusive
+        public Date       to;       // exclusive
+        public long       before = Long.MAX_VALUE;   // only records with a lower id, for paging
+        public int        limit  = Integer.MAX_VALUE;
+    }
+
+	private volatile AtomicReferenceArray<LogRecord> mRing;
+	private volatile long                            mNextId;   // written under the lock only
+	private final ConcurrentHashMap<MACAddress, Long> mLastIdByMac = new ConcurrentHashMap<MACAddress, Long>();
 
 	private LogMgr() {
 		// private constructor - prevent external instantiation
-		mLogRecords = new ArrayList<LogRecord>();
+		mRing = new AtomicReferenceArray<LogRecord>(DEFAULT_CAPACITY);
 	}
 
 	public static LogMgr getInstance() {
 		return INSTANCE;
 	}
 
+	public synchronized void init()
+	{
+	    int capacity = (int) Math.max(1, ConfigMgr.getInstance().getLong("nac.logCapacity", DEFAULT_CAPACITY));
+	    if (capacity == mRing.length()) return;
+
+	    // Keep the newest records logged before the configuration was read
+	    AtomicReferenceArray<LogRecord> ring = new AtomicReferenceArray<LogRecord>(capacity);
+	    for (long id = Math.max(0, mNextId - Math.min(capacity, mRing.length())); id < mNextId; id++)
+	    {
+	        ring.set((int) (id % capacity), mRing.get((int) (id % mRing.length())));
+	    }
+	    mRing = ring;
+	    LOG.debug("Keeping up to {} NAC log records.", capacity);
+	}
+
+	/**
+	 * @return every record in the ring, oldest first
+	 */
 	public ArrayList<LogRecord> getLog()
 	{
-        return new ArrayList<LogRecord>(mLogRecords);
+	    ArrayList<LogRecord> records = query(new Query());
+	    ArrayList<LogRecord> oldestFirst = new ArrayList<LogRecord>(records.size());
+	    for (int i = records.size() - 1; i >= 0; i--) oldestFirst.add(records.get(i));
+        return oldestFirst;
 	}
 
     public void log(Client client, String event) {
-        LogRecord logRecord = new LogRecord(client, event);
+        log(client, EventType.OTHER, event);
+    }
+
+    public void log(Client client, EventType type, String event) {
+        LogRecord logRecord;
+        synchronized (this)
+        {
+            Long prevId = mLastIdByMac.get(client.getMacAddr());
+            logRecord = new LogRecord(mNextId, (prevId == null) ? -1 : prevId, client, type, event);
+
+            AtomicReferenceArray<LogRecord> ring = mRing;
+            ring.set((int) (mNextId % ring.length()), logRecord);
+            mLastIdByMac.put(client.getMacAddr(), mNextId);
+            mNextId++;
+        }
         LOG.trace("Record {} has been added to the Tallac NAC logs", logRecord);
-        mLogRecords.add(logRecord);
+    }
+
+    /**
+     * @param query - filter, paging cursor and maximum number of records
+     * @return matching records, newest first
+     */
+    public ArrayList<LogRecord> query(Query query)
+    {
+        AtomicReferenceArray<LogRecord> ring = mRing;
+        long next   = mNextId;
+        long oldest = Math.max(0, next - ring.length());
+        long last   = Math.min(next, query.before) - 1;   // newest id to look at
+
+        ArrayList<LogRecord> result = new ArrayList<LogRecord>();
+        if (query.limit <= 0) return result;
+
+        if (query.to != null) last = Math.min(last, firstAtOrAfter(ring, oldest, next, query.to.getTime()) - 1);
+        long first = (query.from == null) ? oldest : firstAtOrAfter(ring, oldest, next, query.from.getTime());
+
+        if (query.mac != null)
+        {
+            // Follow the chain of the client's records from its newest one
+            Long lastId = mLastIdByMac.get(query.mac);
+            long id = (lastId == null) ? -1 : lastId;
+            while (id >= first && id >= oldest)
+            {
+                LogRecord record = get(ring, id);
+                if (record == null) break;
+                if (id <= last && matches(record, query))
+                {
+                    result.add(record);
+                    if (result.size() >= query.limit) break;
+                }
+                id = record.mPrevId;
+            }
+            return result;
+        }
+
+        for (long id = last; id >= first && id >= oldest; id--)
+        {
+            LogRecord record = get(ring, id);
+            if (record == null) break;   // overwritten meanwhile; older ones are too
+            if (!matches(record, query)) continue;
+
+            result.add(record);
+            if (result.size() >= query.limit) break;
+        }
+        return result;
+    }
+
+    /**
+     * @return maximum number of records kept
+     */
+    public int getCapacity() { return mRing.length(); }
+
+    private static boolean matches(LogRecord record, Query query)
+    {
+        return query.type == null || record.mType == query.type;
+    }
+
+    //---- get:  the record with the id, null if it has been overwritten
+    private static LogRecord get(AtomicReferenceArray<LogRecord> ring, long id)
+    {
+        LogRecord record = ring.get((int) (id % ring.length()));
+        return (record != null && record.mId == id) ? record : null;
+    }
+
+    //---- firstAtOrAfter:  id of the oldest record logged at or after the time, next if none
+    private static long firstAtOrAfter(AtomicReferenceArray<LogRecord> ring, long oldest, long next, long timeMillis)
+    {
+        long low = oldest, high = next;
+        while (low < high)
+        {
+            long mid = (low + high) >>> 1;
+            LogRecord record = get(ring, mid);
+            if (record == null || record.mDate.getTime() < timeMillis) low = mid + 1;   // overwritten ones are the oldest
+            else high = mid;
+        }
+        return low;
     }
 }
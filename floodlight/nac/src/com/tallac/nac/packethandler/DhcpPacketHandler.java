@@ -14,6 +14,7 @@ import net.floodlightcontroller.util.MACAddress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.tallac.nac.listeners.TopologyListener;
 import com.tallac.nac.module.ClientMgr;
 import com.tallac.nac.module.ClientMgr.Client;
 import com.tallac.nac.module.FlowMgr;
@@ -82,21 +83,27 @@ public class DhcpPacketHandler {
         		LOG.info( "DhcpPacketHandler handleDhcpRequest: Unknown switch: {}", ofSwitch );
         	}
         	
+        	//---- Ignore DHCP requests relayed over a link from another switch; the client is not attached here
+        	else if( !TopologyListener.getInstance().isAttachmentPointPort( ofSwitch.getId(), ofIngressPort ) ) {
+        		LOG.debug( "Ignoring DHCP requests coming in on inter-switch port {}", ofIngressPort );
+        		return;
+        	}
+        	
         	//---- Only care about DHCP requests that come in from an edge port
         	else if( ofIngressPort != nacSwitch.getUplinkPortNumber() ) {
         		
-        		// TODO:  also check for inter-switch links?
-        		
         		Client client = ClientMgr.getInstance().getClient( mac );
         		if( client == null ) ClientMgr.getInstance().createClient( mac, 0, ClientState.UNAUTHENTICATED, "MAC:" + mac.toString(), ofSwitch.getId(), ofIngressPort );
         		else 
         		{
+        			ClientMgr.getInstance().moveClient( mac, ofSwitch.getId(), ofIngressPort );  // moves the client's flows along with it
+        			
         			if( client.getState() == ClientState.AUTHENTICATED ) {
         				LOG.info( "Ignoring DHCP requests for clients that are already authenticated" );
         			}
         			else
 	        		{
-	        			client.update( 0, ClientState.UNAUTHENTICATED, "MAC:" + mac.toString(), ofSwitch.getId(), ofIngressPort );
+	        			client.update( 0, ClientState.UNAUTHENTICATED, "MAC:" + mac.toString() );
 	        		}
         		}
         	}
@@ -9,6 +9,8 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -39,16 +41,28 @@ public class HttpPacketHandler {
 
         private int   mDestIpAddr;
         private short mInputPort;
+        private final List<OFAction> mResponseActions;
 
         public HttpRequestDestData(OFMatch ofMatch) {
             mDestIpAddr = ofMatch.getNetworkDestination();
             mInputPort  = ofMatch.getInputPort();
+
+            // Key thing here is to spoof the IP address and port to appear like the original request
+            final List<OFAction> actions = new ArrayList<OFAction>(2);
+            actions.add( new OFActionNetworkLayerSource( mDestIpAddr ) );
+            actions.add( new OFActionOutput(             mInputPort ) );
+            mResponseActions = Collections.unmodifiableList( actions );
         }
 
         public int getIp() { return mDestIpAddr; }
 
         public short getInputPort() { return mInputPort; }
 
+        /**
+         * @return actions sending a response back to the client, shared by all responses of the request
+         */
+        public List<OFAction> getResponseActions() { return mResponseActions; }
+
         @Override
         public String toString() {
             return "HttpRequestDestData [mDestIpAddr=" + mDestIpAddr + ", mInputPort=" + mInputPort + "]";
@@ -58,8 +72,16 @@ public class HttpPacketHandler {
 
     public static int TALLAC_WEB_IP = 0;
 
+    // Scratch key for header list lookups, one per thread. Only a copy is stored in the list.
+    private static final ThreadLocal<OFMatch> SCRATCH_KEY = new ThreadLocal<OFMatch>() {
+        @Override
+        protected OFMatch initialValue() { return new OFMatch(); }
+    };
+
     Cache<OFMatch, HttpRequestDestData> mHeaderList;
 
+    private List<OFAction> mRedirectActions;   // Actions forwarding a request to the Tallac WEB server. Set on init.
+
     //---- HttpPacketHandler: private constructor to prevent external instantiation
     private HttpPacketHandler() {
         mHeaderList = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite( 1, TimeUnit.MINUTES ).build();  // Initialize header list
@@ -76,6 +98,11 @@ public class HttpPacketHandler {
             // Get IPv4 address of WEB server using to redirect requests
             ipAddr = InetAddress.getByName( ConfigMgr.getInstance().getString("nac.httpRedirectionWebServer"));
             TALLAC_WEB_IP = ByteBuffer.wrap(ipAddr.getAddress()).getInt();
+
+            final List<OFAction> actions = new ArrayList<OFAction>(2);
+            actions.add( new OFActionNetworkLayerDestination( TALLAC_WEB_IP ) );
+            actions.add( new OFActionOutput( OFPort.OFPP_NORMAL.getValue() ) );
+            mRedirectActions = Collections.unmodifiableList( actions );
             
         } catch (UnknownHostException e) {
             LOG.error("Unable to configure HTTP packet handler {}", e);
@@ -97,24 +124,18 @@ public class HttpPacketHandler {
         }
         
         // Construct key for the header list
-        OFMatch keyMatch = makeKey( ofMatch );
+        OFMatch keyMatch = makeKey( SCRATCH_KEY.get(), ofMatch, false );
 
         // Search for header with the same key in the header list
         HttpRequestDestData reqDest = mHeaderList.getIfPresent(keyMatch);
         if (reqDest == null) 
         {
             reqDest = new HttpRequestDestData(ofMatch);
-            mHeaderList.put( keyMatch, reqDest );           // Add header to the table
+            mHeaderList.put( keyMatch.clone(), reqDest );   // Add header to the table
         }
 
-        // Create list of actions
-        final List<OFAction> actions = new ArrayList<OFAction>();
-        
-        actions.add( new OFActionNetworkLayerDestination( TALLAC_WEB_IP ) );
-        actions.add( new OFActionOutput( OFPort.OFPP_NORMAL.getValue() ) );
-
         // Forward packet to the Tallac WEB Server
-        FlowMgr.getInstance().sendPacketOut( ofSwitch, context, packetIn, actions );
+        FlowMgr.getInstance().sendPacketOut( ofSwitch, context, packetIn, mRedirectActions );
 
         return;
     }
@@ -134,7 +155,7 @@ public class HttpPacketHandler {
         }
         
         // Reverse header, recreate original record key
-        OFMatch origKeyMatch = makeKey( reverseMatch( ofMatch ) );
+        OFMatch origKeyMatch = makeKey( SCRATCH_KEY.get(), ofMatch, true );
 
         // Search for the recreated key in the header list
         HttpRequestDestData reqDest = mHeaderList.getIfPresent( origKeyMatch );
@@ -145,14 +166,8 @@ public class HttpPacketHandler {
             return;
         }
 
-        // Create list of the action, send packet back to the client
-        final List<OFAction> actions = new ArrayList<OFAction>();
-        
-        // Key thing here is to spoof the IP address and port to appear like the original request
-        actions.add( new OFActionNetworkLayerSource( reqDest.getIp() ) );   
-        actions.add( new OFActionOutput(             reqDest.getInputPort() ) );
-        
-        FlowMgr.getInstance().sendPacketOut( ofSwitch, context, packetIn, actions );
+        // Send packet back to the client
+        FlowMgr.getInstance().sendPacketOut( ofSwitch, context, packetIn, reqDest.getResponseActions() );
     }
     
     //---- isHttpForwardingRead:  make sure we've initialized our redirection server value
@@ -167,35 +182,33 @@ public class HttpPacketHandler {
         return true;
     }
 
-    //---- reverseMatch:  reverse the MAC, IP, and TCP ports, for assisting with bi-directional mapping
-    private OFMatch reverseMatch(final OFMatch ofMatch) {
-        OFMatch origMatch = ofMatch.clone();
-
-        // Reverse MAC addresses
-        origMatch.setDataLayerSource(ofMatch.getDataLayerDestination());
-        origMatch.setDataLayerDestination(ofMatch.getDataLayerSource());
-
-        // reverse IP addresses
-        origMatch.setNetworkSource(ofMatch.getNetworkDestination());
-        origMatch.setNetworkDestination(ofMatch.getNetworkSource());
-
-        // reverse ports
-        origMatch.setTransportSource(ofMatch.getTransportDestination());
-        origMatch.setTransportDestination(ofMatch.getTransportSource());
-
-        return origMatch;
-    }
-
-    //---- makeKey:  create the key for storing HTTP request info
-    private OFMatch makeKey( OFMatch ofMatch ) {
-    	
-        OFMatch keyMatch = ofMatch.clone();
+    //---- makeKey:  fill the key for storing HTTP request info. Reversing the MAC, IP, and TCP ports of a response recreates the key of its request.
+    private static OFMatch makeKey( final OFMatch key, final OFMatch ofMatch, final boolean reverse ) {
+
+        key.setWildcards(                           ofMatch.getWildcards() );
+        key.setInputPort(                           (short) 0 );
+        key.setDataLayerVirtualLan(                 ofMatch.getDataLayerVirtualLan() );
+        key.setDataLayerVirtualLanPriorityCodePoint( ofMatch.getDataLayerVirtualLanPriorityCodePoint() );
+        key.setDataLayerType(                       ofMatch.getDataLayerType() );
+        key.setNetworkTypeOfService(                ofMatch.getNetworkTypeOfService() );
+        key.setNetworkProtocol(                     ofMatch.getNetworkProtocol() );
+        key.setNetworkDestination(                  0 );
+        Arrays.fill( key.getDataLayerDestination(), (byte) 0 );
+
+        if( reverse ) {
+            System.arraycopy( ofMatch.getDataLayerDestination(), 0, key.getDataLayerSource(), 0, 6 );
+            key.setNetworkSource(        ofMatch.getNetworkDestination() );
+            key.setTransportSource(      ofMatch.getTransportDestination() );
+            key.setTransportDestination( ofMatch.getTransportSource() );
+        }
+        else {
+            System.arraycopy( ofMatch.getDataLayerSource(), 0, key.getDataLayerSource(), 0, 6 );
+            key.setNetworkSource(        ofMatch.getNetworkSource() );
+            key.setTransportSource(      ofMatch.getTransportSource() );
+            key.setTransportDestination( ofMatch.getTransportDestination() );
+        }
 
-        keyMatch.setDataLayerDestination( new byte[6] );
-        keyMatch.setInputPort( (short) 0 );
-        keyMatch.setNetworkDestination( 0 );
-        
-        return keyMatch;
+        return key;
     }
 
 }
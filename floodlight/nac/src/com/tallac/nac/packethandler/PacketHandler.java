@@ -11,7 +11,6 @@ import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.UDP;
 
 import org.openflow.protocol.OFMatch;
-import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketIn;
 import org.openflow.protocol.OFPort;
 import org.slf4j.Logger;
@@ -21,9 +20,15 @@ import com.tallac.nac.module.ClientMgr;
 import com.tallac.nac.module.ClientMgr.Client;
 import com.tallac.nac.module.ClientMgr.ClientState;
 import com.tallac.nac.module.FlowMgr;
+import com.tallac.nac.module.LatencyMgr;
+import com.tallac.nac.module.LatencyMgr.Stage;
 
 /**
  * The PacketHandler class is responsible for parsing PacketIn messages.
+ * 
+ * A handler keeps no state of the packet it processes, but reuses its
+ * OFMatch for every packet, so it must not be shared between threads.
+ * Use forCurrentThread() to get the handler of the calling thread.
  */
 public class PacketHandler
 {
@@ -31,36 +36,46 @@ public class PacketHandler
     public static final short HTTP_PORT  = 80;
     public static final short HTTPS_PORT = 443;
     
-	private final IOFSwitch         mOfSwitch;
-    private final OFPacketIn        mPacketIn;
-	private final FloodlightContext mContext;
+    private static final ThreadLocal<PacketHandler> PER_THREAD = new ThreadLocal<PacketHandler>()
+    {
+        @Override
+        protected PacketHandler initialValue() { return new PacketHandler(); }
+    };
+
+    private final OFMatch mMatch;   // reloaded from every PacketIn
 
-    public PacketHandler( final IOFSwitch ofSwitch,
-                          final OFMessage msg,
-                          final FloodlightContext context )
+    private PacketHandler()
     {
-        mOfSwitch = ofSwitch;
-        mPacketIn = (OFPacketIn) msg;
-        mContext  = context;
+        mMatch = new OFMatch();
     }
+
+    public static PacketHandler forCurrentThread() { return PER_THREAD.get(); }
+
     /**
      * Parse message.
      */
-    public Command processPacket()
+    public Command processPacket( final IOFSwitch         ofSwitch,
+                                  final OFPacketIn        packetIn,
+                                  final FloodlightContext context )
     {
         
+        final LatencyMgr latency = LatencyMgr.getInstance();
+        long             start   = System.nanoTime();
+
         /* Get match object from packetIn */
-        final OFMatch ofMatch = new OFMatch();
-        ofMatch.loadFromPacket( mPacketIn.getPacketData(), mPacketIn.getInPort() );
+        final OFMatch ofMatch = mMatch;
+        ofMatch.loadFromPacket( packetIn.getPacketData(), packetIn.getInPort() );
+        start = lap( latency, Stage.MATCH_LOAD, start );
         
         // If incoming packet is not IPv4 packet - drop the packet.
         if( ofMatch.getDataLayerType() != Ethernet.TYPE_IPv4 )
         {
-            FlowMgr.getInstance().dropPacket(mOfSwitch, mContext, mPacketIn);
+            FlowMgr.getInstance().dropPacket(ofSwitch, context, packetIn);
+            lap( latency, Stage.WRITE, start );
             return Command.STOP;
         }
         
-        final Ethernet eth = bcStore.get(mContext, CONTEXT_PI_PAYLOAD);
+        final Ethernet eth = bcStore.get(context, CONTEXT_PI_PAYLOAD);
         
         // Parse PacketIn
         if( eth.getPayload() instanceof IPv4 )
@@ -72,13 +87,15 @@ public class PacketHandler
         	
         	// First thing is to check if we've received a packet from an *already authenticated* user       	
             Client client = ClientMgr.getInstance().getClient( eth.getSourceMAC() );
+            start = lap( latency, Stage.CLIENT_LOOKUP, start );
+
         	if( client != null )
    			{
         	    // If the client is there, and is authenticated, then we need to add flows to allow access for this user.
         		if( client.getState() == ClientState.AUTHENTICATED  || client.getState() == ClientState.GUEST ) 
     	        {          
-    	            FlowMgr.getInstance().removeUnauthFlowsOnAllSwitches( client.getMacAddr() );   // First remove Unauth flows on switches
-    	            FlowMgr.getInstance().setAuthFlowsOnAllSwitches( client.getMacAddr() );        // Next, set Auth flows onto switches.
+    	            FlowMgr.getInstance().changeToAuthFlowsOnAllSwitches( client.getMacAddr() );   // Remove Unauth flows and set Auth flows on the client's switches
+    	            start = lap( latency, Stage.AUTH_FLOWS, start );
     	        }
 
         		// If it isn't authenticated, we should send down flow entries to drop their non-DHCP/DNS/HTTP traffic.
@@ -97,11 +114,12 @@ public class PacketHandler
                 if (udpData.getPayload() instanceof DHCP) 
                 {
                     // Read necessary data from the packet
-                    DhcpPacketHandler.handleDhcpRequest( (DHCP) udpData.getPayload(), mOfSwitch, ofMatch.getInputPort() );
+                    DhcpPacketHandler.handleDhcpRequest( (DHCP) udpData.getPayload(), ofSwitch, ofMatch.getInputPort() );
                 }
                 
                 // Send packetOut message back to the switch with action NORMAL
-                FlowMgr.getInstance().sendPacketOut( mOfSwitch, mContext, mPacketIn, OFPort.OFPP_NORMAL.getValue() );
+                FlowMgr.getInstance().sendPacketOut( ofSwitch, context, packetIn, OFPort.OFPP_NORMAL.getValue() );
+                lap( latency, Stage.DHCP, start );
                 
                 return Command.STOP;
             }
@@ -110,7 +128,8 @@ public class PacketHandler
             if( ofMatch.getNetworkProtocol() == IPv4.PROTOCOL_TCP && ( ofMatch.getTransportSource() == HTTP_PORT || ofMatch.getTransportSource() == HTTPS_PORT ) )
             {
                 LOG.info("HTTP response. {}", ofMatch);
-                HttpPacketHandler.getInstance().handleHttpResponse( mOfSwitch, mContext, mPacketIn, ofMatch );
+                HttpPacketHandler.getInstance().handleHttpResponse( ofSwitch, context, packetIn, ofMatch );
+                lap( latency, Stage.HTTP, start );
                 
                 return Command.STOP;
             }
@@ -119,15 +138,28 @@ public class PacketHandler
             if( ofMatch.getNetworkProtocol() == IPv4.PROTOCOL_TCP && ( ofMatch.getTransportDestination() == HTTP_PORT || ofMatch.getTransportDestination() == HTTPS_PORT ) )
             {
                 LOG.info("HTTP request. {}", ofMatch);
-                HttpPacketHandler.getInstance().handleHttpRequest( mOfSwitch, mContext, mPacketIn, ofMatch );
+                HttpPacketHandler.getInstance().handleHttpRequest( ofSwitch, context, packetIn, ofMatch );
+                lap( latency, Stage.HTTP, start );
                 
                 return Command.STOP;
             }
         }
         
         LOG.debug("Unknown packet, dropping. Match: {}", ofMatch);
-        FlowMgr.getInstance().dropPacket(mOfSwitch, mContext, mPacketIn);
+        FlowMgr.getInstance().dropPacket(ofSwitch, context, packetIn);
+        lap( latency, Stage.WRITE, start );
         return Command.STOP;
     }
 
+    /**
+     * Record the time since start for a stage.
+     * @return current time
+     */
+    private static long lap( final LatencyMgr latency, final Stage stage, final long start )
+    {
+        final long now = System.nanoTime();
+        latency.record( stage, now - start );
+        return now;
+    }
+
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.nac.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, laid out like an HDR
+ * histogram.
+ *
+ * Values below 64 get a bucket each. Above that, every power of two is
+ * split into 32 equal buckets, so a percentile is off by at most about
+ * 3%. Values of 2^41 ns (about 36 minutes) and more share the last
+ * bucket. Recording is one atomic increment of a bucket count.
+ */
+public class LatencyHistogram
+{
+    private static final int  SUB_BITS  = 6;
+    private static final int  SUB_COUNT = 1 << SUB_BITS;          // linear buckets below 64
+    private static final int  HALF      = SUB_COUNT / 2;          // buckets per power of two above
+    private static final int  MAX_MSB   = 40;
+    private static final long MAX_VALUE = ( 1L << ( MAX_MSB + 1 ) ) - 1;
+    private static final int  BUCKETS   = ( MAX_MSB - SUB_BITS + 2 ) * HALF + HALF;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong      mTotal  = new AtomicLong();
+    private final AtomicLong      mSum    = new AtomicLong();
+    private final AtomicLong      mMax    = new AtomicLong();
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param nanos - duration; negative values count as 0
+     */
+    public void record( long nanos )
+    {
+        if( nanos < 0 ) nanos = 0;
+
+        mCounts.incrementAndGet( bucketOf( Math.min( nanos, MAX_VALUE ) ) );
+        mTotal.incrementAndGet();
+        mSum.addAndGet( nanos );
+        for( long cur = mMax.get(); nanos > cur; cur = mMax.get() )
+        {
+            if( mMax.compareAndSet( cur, nanos ) ) break;
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @return copy of the current counts
+     */
+    public Snapshot snapshot()
+    {
+        final long[] counts = new long[BUCKETS];
+        long         total  = 0;
+        for( int i = 0; i < BUCKETS; i++ )
+        {
+            counts[i] = mCounts.get( i );
+            total    += counts[i];
+        }
+        return new Snapshot( counts, total, mSum.get(), mMax.get() );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    static int bucketOf( final long value )
+    {
+        if( value < SUB_COUNT ) return (int) value;
+
+        final int shift = 63 - Long.numberOfLeadingZeros( value ) - ( SUB_BITS - 1 );
+        return shift * HALF + (int) ( value >>> shift );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    static long highestValueIn( final int bucket )
+    {
+        if( bucket < SUB_COUNT ) return bucket;
+
+        final int  shift = bucket / HALF - 1;
+        final long sub   = bucket - shift * HALF;
+        return ( ( sub + 1 ) << shift ) - 1;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Point-in-time copy of a histogram. Subtracting an earlier snapshot
+     * gives the histogram of the values recorded in between.
+     */
+    public static class Snapshot
+    {
+        private final long[] mCounts;
+        private final long   mTotal;
+        private final long   mSum;
+        private final long   mMax;
+
+        Snapshot( final long[] counts, final long total, final long sum, final long max )
+        {
+            mCounts = counts; mTotal = total; mSum = sum; mMax = max;
+        }
+
+        //-----------------------------------------------------------------------------------------
+        /**
+         * @param earlier - snapshot of the same histogram taken before this one
+         * @return values recorded between the two snapshots; the maximum is
+         *         the highest bucket value seen in between
+         */
+        public Snapshot minus( final Snapshot earlier )
+        {
+            final long[] counts = new long[mCounts.length];
+            long         max    = 0;
+            for( int i = 0; i < counts.length; i++ )
+            {
+                counts[i] = mCounts[i] - earlier.mCounts[i];
+                if( counts[i] > 0 ) max = Math.min( highestValueIn( i ), mMax );
+            }
+            return new Snapshot( counts, mTotal - earlier.mTotal, mSum - earlier.mSum, max );
+        }
+
+        public long getCount() { return mTotal; }
+        public long getMax()   { return mMax; }
+        public double getMean() { return ( mTotal == 0 ) ? 0 : (double) mSum / mTotal; }
+
+        //-----------------------------------------------------------------------------------------
+        /**
+         * @param percentile - 0 to 100, e.g. 99.9
+         * @return highest value of the bucket the percentile falls in, in nanoseconds
+         */
+        public long getPercentile( final double percentile )
+        {
+            if( mTotal == 0 ) return 0;
+
+            final long rank = Math.max( 1, (long) Math.ceil( mTotal * Math.min( percentile, 100.0 ) / 100.0 ) );
+            long       seen = 0;
+            for( int i = 0; i < mCounts.length; i++ )
+            {
+                seen += mCounts[i];
+                if( seen >= rank ) return Math.min( highestValueIn( i ), mMax );
+            }
+            return mMax;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tallac.blacklist.listener.PacketListener;
+import com.tallac.blacklist.utils.DnsQuestionParser;
+import com.tallac.blacklist.utils.DomainTrie;
 
 //import com.tallac.blacklist.module.FlowMgr;
 
@@ -39,12 +41,16 @@ public class BlacklistedHostsManager {
     HashSet<String>      mDnsBlacklist;
     HashSet<InetAddress> mIpv4Blacklist;
 
+    //---- DNS matcher, kept in step with mDnsBlacklist; blocks listed zones and their subdomains
+    DomainTrie           mDnsMatcher;
+
     //---------------------------------------------------------------------------------------------
     private BlacklistedHostsManager()
     {
         // private constructor - prevent external instantiation
         mDnsBlacklist  = new HashSet<String>();
         mIpv4Blacklist = new HashSet<InetAddress>();
+        mDnsMatcher    = new DomainTrie();
     }
 
     //---------------------------------------------------------------------------------------------
@@ -60,6 +66,7 @@ public class BlacklistedHostsManager {
 
         LOG.info( LOGPREFACE + "init(): Read DNS blacklist. File {}", DNSBlacklistFilename );
         mDnsBlacklist = readDnsBlacklistFile();
+        mDnsMatcher   = buildDnsMatcher( mDnsBlacklist );
         dumpDnsBlacklist();
 
         LOG.info( LOGPREFACE + "init(): Read IPv4 blacklist. File {}", IPv4BlacklistFilename );
@@ -69,21 +76,34 @@ public class BlacklistedHostsManager {
 
     //---------------------------------------------------------------------------------------------
     public boolean checkIpv4Blacklist( InetAddress ipAddr ) { return mIpv4Blacklist.contains(ipAddr); }
-    public void    addDnsRecord(    String record ) { mDnsBlacklist.add( record.toLowerCase() ); }
-    public void    removeDnsRecord( String record ) { mDnsBlacklist.remove( record.toLowerCase() ); }
 
     //---------------------------------------------------------------------------------------------
-    public boolean checkDnsBlacklist( String domainName )
+    public void addDnsRecord( String record )
     {
-        String domainNameLC= domainName.toLowerCase();
+        mDnsBlacklist.add( record.toLowerCase() );
+        mDnsMatcher.add( record );
+    }
 
-        if( mDnsBlacklist. contains( domainNameLC ) ) return true; // If string matches, return true.
+    //---------------------------------------------------------------------------------------------
+    public void removeDnsRecord( String record )
+    {
+        mDnsBlacklist.remove( record.toLowerCase() );
+        mDnsMatcher.remove( record );
+    }
 
-        if( !domainNameLC.startsWith( "www." ) ) {
-            if( mDnsBlacklist.contains( "www." + domainNameLC ) ) return true; // Add "www.", if result matches, return true.
-        }
+    //---------------------------------------------------------------------------------------------
+    //  checkDnsBlacklist:  true if the domain name, any of its parent zones, or "www." + name is
+    //                      listed. Case-insensitive and allocation free.
+    public boolean checkDnsBlacklist( CharSequence domainName )
+    {
+        return mDnsMatcher.matches( domainName );
+    }
 
-        return false;  // No match, return false.
+    //---------------------------------------------------------------------------------------------
+    //  checkDnsBlacklist:  same check for a question of a parsed DNS query, done on packet bytes.
+    public boolean checkDnsBlacklist( DnsQuestionParser parser, int question )
+    {
+        return parser.matches( question, mDnsMatcher );
     }
 
     //---------------------------------------------------------------------------------------------
@@ -144,6 +164,15 @@ public class BlacklistedHostsManager {
         return ipv4Str;
     }
 
+    //---------------------------------------------------------------------------------------------
+    private static DomainTrie buildDnsMatcher( HashSet<String> records )
+    {
+        DomainTrie matcher = new DomainTrie( records.size() * 8 );
+
+        for( String record : records ) { matcher.add( record ); }
+        return matcher;
+    }
+
     //---------------------------------------------------------------------------------------------
     private void dumpDnsBlacklist()
     {
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+/**
+ * Parser for the question section of DNS query packets.
+ *
+ * The parser walks Ethernet (with 802.1Q tags), IPv4, UDP and DNS headers
+ * directly on the PacketIn payload using plain offset arithmetic, and
+ * records where each question name starts. Names are matched against a
+ * {@link DomainTrie} label by label straight from the packet bytes; a
+ * String is only built on request, e.g. for logging a blocked name.
+ *
+ * Instances keep reusable scratch state and are not thread-safe. Use
+ * {@link #forCurrentThread()} to get the calling thread's instance.
+ */
+public class DnsQuestionParser
+{
+    public static final int MALFORMED   = -1;
+    public static final int UNSUPPORTED = -2;   // not an unfragmented IPv4/UDP packet; left to the caller
+
+    public static final int TYPE_IPv4  = 0x0800;
+    public static final int TYPE_8021Q = 0x8100;
+
+    private static final int ETH_HEADER_LEN   = 14;
+    private static final int VLAN_TAG_LEN     = 4;
+    private static final int UDP_HEADER_LEN   = 8;
+    private static final int DNS_HEADER_LEN   = 12;
+    private static final int IP_PROTOCOL_UDP  = 17;
+    private static final int DNS_QR_BIT       = 0x8000;
+    private static final int MAX_NAME_LEN     = 255;
+    private static final int MAX_LABELS       = 128;
+    private static final int MAX_POINTER_HOPS = 16;
+    private static final int MIN_QUESTION_LEN = 1 + 4;   // root name, type, class
+
+    private static final ThreadLocal<DnsQuestionParser> PER_THREAD = new ThreadLocal<DnsQuestionParser>()
+    {
+        @Override
+        protected DnsQuestionParser initialValue() { return new DnsQuestionParser(); }
+    };
+
+    private byte[] mPkt;
+    private int    mDnsStart;
+    private int    mQuestionCount;
+    private int[]  mQuestionOffset;
+
+    //---- Label scratch for the name currently being matched
+    private final int[] mLabelOffset;
+    private final int[] mLabelLength;
+    private       int   mLabelCount;
+
+    //---------------------------------------------------------------------------------------------
+    public DnsQuestionParser()
+    {
+        mQuestionOffset = new int[4];
+        mLabelOffset    = new int[MAX_LABELS];
+        mLabelLength    = new int[MAX_LABELS];
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public static DnsQuestionParser forCurrentThread() { return PER_THREAD.get(); }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Parse DNS query packet.
+     * @param pkt - Ethernet frame from PacketIn
+     * @return number of questions, 0 if the packet is a DNS response or has
+     *         no questions, MALFORMED if the packet is truncated or invalid,
+     *         UNSUPPORTED if it is not an unfragmented UDP over IPv4 packet
+     */
+    public int parse( final byte[] pkt )
+    {
+        mPkt           = pkt;
+        mQuestionCount = 0;
+
+        //---- Ethernet header, skipping any VLAN tags
+        int pos = ETH_HEADER_LEN;
+        if( pkt.length < pos ) return MALFORMED;
+
+        int etherType = readShort( pkt, pos - 2 );
+        while( etherType == TYPE_8021Q )
+        {
+            pos += VLAN_TAG_LEN;
+            if( pkt.length < pos ) return MALFORMED;
+            etherType = readShort( pkt, pos - 2 );
+        }
+        if( etherType != TYPE_IPv4 ) return UNSUPPORTED;
+
+        //---- IPv4 header: version, header length, protocol
+        if( pkt.length < pos + 20 ) return MALFORMED;
+
+        final int version = ( pkt[pos] >> 4 ) & 0x0F;
+        final int ihl     = pkt[pos] & 0x0F;
+        if( version != 4 || ihl < 5 )                          return UNSUPPORTED;
+        if( ( pkt[pos + 9] & 0xFF ) != IP_PROTOCOL_UDP )       return UNSUPPORTED;
+        if( ( readShort( pkt, pos + 6 ) & 0x1FFF ) != 0 )      return UNSUPPORTED;  // non-first fragment
+        pos += ihl * 4;
+
+        //---- UDP header, then DNS header
+        pos += UDP_HEADER_LEN;
+        if( pkt.length < pos + DNS_HEADER_LEN ) return MALFORMED;
+
+        mDnsStart = pos;
+        if( ( readShort( pkt, pos + 2 ) & DNS_QR_BIT ) != 0 ) return 0;  // response, not a query
+
+        final int numQuestions = readShort( pkt, pos + 4 );
+        pos += DNS_HEADER_LEN;
+
+        // A forged count could never be satisfied by the packet; reject it before sizing the offsets
+        if( numQuestions > ( pkt.length - pos ) / MIN_QUESTION_LEN ) return MALFORMED;
+        if( numQuestions > mQuestionOffset.length ) mQuestionOffset = new int[numQuestions];
+
+        //---- Questions: name, type (2), class (2)
+        for( int i = 0; i < numQuestions; i++ )
+        {
+            final int nameEnd = skipName( pkt, pos );
+            if( nameEnd == MALFORMED || nameEnd + 4 > pkt.length ) return MALFORMED;
+
+            mQuestionOffset[i] = pos;
+            pos = nameEnd + 4;
+        }
+
+        mQuestionCount = numQuestions;
+        return numQuestions;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    public int getQuestionCount() { return mQuestionCount; }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Check question name against a trie. Same semantics as
+     * {@link DomainTrie#matches(CharSequence)}, evaluated on packet bytes.
+     * @param question - question index
+     * @param trie     - blacklist trie
+     * @return true if the name, a parent zone or the "www." alias is listed
+     */
+    public boolean matches( final int question, final DomainTrie trie )
+    {
+        if( !collectLabels( mQuestionOffset[question] ) || mLabelCount == 0 ) return false;
+
+        final byte[] pkt  = mPkt;
+        int          node = DomainTrie.ROOT;
+
+        for( int l = mLabelCount - 1; l >= 0; l-- )
+        {
+            if( l < mLabelCount - 1 )
+            {
+                if( trie.isTerminal( node ) ) return true;  // parent zone is listed
+
+                node = trie.child( node, '.' );
+                if( node == DomainTrie.NONE ) return false;
+            }
+
+            final int start = mLabelOffset[l];
+            for( int j = start + mLabelLength[l] - 1; j >= start; j-- )
+            {
+                node = trie.child( node, DomainTrie.fold( (char) ( pkt[j] & 0xFF ) ) );
+                if( node == DomainTrie.NONE ) return false;
+            }
+        }
+
+        if( trie.isTerminal( node ) ) return true;  // exact match
+
+        return !isWwwLabel( 0 ) && trie.isWwwAliasListed( node );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * @param trie - blacklist trie
+     * @return index of the first listed question, or -1 if none is listed
+     */
+    public int findListed( final DomainTrie trie )
+    {
+        for( int i = 0; i < mQuestionCount; i++ )
+        {
+            if( matches( i, trie ) ) return i;
+        }
+        return -1;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    /**
+     * Build the dotted name of a question. Allocates; intended for logging
+     * and statistics of blocked names only.
+     * @param question - question index
+     * @return domain name
+     */
+    public String getDomainName( final int question )
+    {
+        if( !collectLabels( mQuestionOffset[question] ) ) return "";
+
+        final StringBuilder name = new StringBuilder( MAX_NAME_LEN );
+        for( int l = 0; l < mLabelCount; l++ )
+        {
+            if( l > 0 ) name.append( '.' );
+
+            final int start = mLabelOffset[l];
+            for( int j = start; j < start + mLabelLength[l]; j++ ) name.append( (char) ( mPkt[j] & 0xFF ) );
+        }
+        return name.toString();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  skipName:  validate the name at pos and return the offset just past it in the question
+    private int skipName( final byte[] pkt, final int pos )
+    {
+        int end = MALFORMED;
+        int p   = pos;
+        int nameLen = 0;
+        int hops    = 0;
+
+        while( p < pkt.length )
+        {
+            final int len = pkt[p] & 0xFF;
+
+            if( len == 0 ) return ( end == MALFORMED ) ? p + 1 : end;
+
+            if( ( len & 0xC0 ) == 0xC0 )
+            {
+                if( p + 1 >= pkt.length || ++hops > MAX_POINTER_HOPS ) return MALFORMED;
+                if( end == MALFORMED ) end = p + 2;
+
+                final int target = mDnsStart + ( ( ( len & 0x3F ) << 8 ) | ( pkt[p + 1] & 0xFF ) );
+                if( target >= p ) return MALFORMED;  // only backward pointers, which rules out loops
+                p = target;
+            }
+            else if( ( len & 0xC0 ) != 0 )
+            {
+                return MALFORMED;  // reserved label type
+            }
+            else
+            {
+                nameLen += len + 1;
+                if( nameLen > MAX_NAME_LEN ) return MALFORMED;
+                p += len + 1;
+            }
+        }
+        return MALFORMED;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  collectLabels:  record offset/length of each label of the name at pos in the label scratch.
+    //                  Checks the name the way skipName does rather than relying on parse() having run.
+    private boolean collectLabels( int p )
+    {
+        final byte[] pkt  = mPkt;
+        int          hops = 0;
+
+        mLabelCount = 0;
+        while( p < pkt.length )
+        {
+            final int len = pkt[p] & 0xFF;
+
+            if( len == 0 ) return true;
+
+            if( ( len & 0xC0 ) == 0xC0 )
+            {
+                if( p + 1 >= pkt.length || ++hops > MAX_POINTER_HOPS ) return false;
+
+                final int target = mDnsStart + ( ( ( len & 0x3F ) << 8 ) | ( pkt[p + 1] & 0xFF ) );
+                if( target >= p ) return false;  // same rule as skipName
+                p = target;
+            }
+            else if( ( len & 0xC0 ) != 0 )
+            {
+                return false;  // reserved label type
+            }
+            else
+            {
+                if( mLabelCount == MAX_LABELS || p + 1 + len > pkt.length ) return false;
+
+                mLabelOffset[mLabelCount] = p + 1;
+                mLabelLength[mLabelCount] = len;
+                mLabelCount++;
+                p += len + 1;
+            }
+        }
+        return false;
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private boolean isWwwLabel( final int label )
+    {
+        final int start = mLabelOffset[label];
+        return mLabelCount > 1 && mLabelLength[label] == 3
+            && DomainTrie.fold( (char) ( mPkt[start]     & 0xFF ) ) == 'w'
+            && DomainTrie.fold( (char) ( mPkt[start + 1] & 0xFF ) ) == 'w'
+            && DomainTrie.fold( (char) ( mPkt[start + 2] & 0xFF ) ) == 'w';
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int readShort( final byte[] pkt, final int pos )
+    {
+        return ( ( pkt[pos] & 0xFF ) << 8 ) | ( pkt[pos + 1] & 0xFF );
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link DnsQuestionParser} on hand-built query frames.
+ */
+public class DnsQuestionParserTest
+{
+    private static final int ETH_HEADER_LEN  = 14;
+    private static final int IP_HEADER_LEN   = 20;
+    private static final int UDP_HEADER_LEN  = 8;
+    private static final int IP_PROTOCOL_UDP = 17;
+
+    private DnsQuestionParser mParser;
+    private DomainTrie        mTrie;
+
+    //---------------------------------------------------------------------------------------------
+    @Before
+    public void setUp()
+    {
+        mParser = new DnsQuestionParser();
+        mTrie   = new DomainTrie();
+        mTrie.add( "evil.com" );
+        mTrie.add( "www.example.org" );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void matchesNameAndSubdomains()
+    {
+        assertListed( true,  "evil.com" );
+        assertListed( true,  "EVIL.Com" );
+        assertListed( true,  "mail.evil.com" );
+        assertListed( false, "notevil.com" );
+        assertListed( false, "evil.co" );
+        assertListed( false, "com" );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void matchesWwwAlias()
+    {
+        assertListed( true,  "www.example.org" );
+        assertListed( true,  "example.org" );
+        assertListed( true,  "mail.www.example.org" );
+        assertListed( false, "mail.example.org" );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void parsesVlanTaggedFrames()
+    {
+        for( int tags = 0; tags <= 2; tags++ )
+        {
+            final byte[] pkt = frame( tags, IP_PROTOCOL_UDP, query( 1, question( name( "a.evil.com" ) ) ) );
+            assertEquals( 1, mParser.parse( pkt ) );
+            assertEquals( 0, mParser.findListed( mTrie ) );
+            assertEquals( "a.evil.com", mParser.getDomainName( 0 ) );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void rejectsTruncatedFrames()
+    {
+        final byte[] pkt = frame( 1, IP_PROTOCOL_UDP, query( 1, question( name( "a.evil.com" ) ) ) );
+        for( int len = 0; len < pkt.length; len++ )
+        {
+            final byte[] cut = new byte[len];
+            System.arraycopy( pkt, 0, cut, 0, len );
+            assertEquals( "length " + len, DnsQuestionParser.MALFORMED, mParser.parse( cut ) );
+        }
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void rejectsPointerLoops()
+    {
+        // Name at DNS offset 12 that points at itself
+        assertEquals( DnsQuestionParser.MALFORMED, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 1, question( pointer( 12 ) ) ) ) ) );
+
+        // Forward pointer to a name after the question, at offset 18
+        final byte[] forward = concat( question( pointer( 18 ) ), name( "evil.com" ) );
+        assertEquals( DnsQuestionParser.MALFORMED, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 1, forward ) ) ) );
+
+        // Two names pointing at each other, at offsets 12 and 20
+        final byte[] pair = concat( question( concat( new byte[] { 1, 'a' }, pointer( 20 ) ) ),
+                                    question( concat( new byte[] { 1, 'b' }, pointer( 12 ) ) ) );
+        assertEquals( DnsQuestionParser.MALFORMED, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 2, pair ) ) ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void followsBackwardPointers()
+    {
+        // Second question is "x." + pointer to the first name
+        final byte[] questions = concat( question( name( "evil.com" ) ),
+                                         question( concat( new byte[] { 1, 'x' }, pointer( 12 ) ) ) );
+        assertEquals( 2, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 2, questions ) ) ) );
+        assertEquals( "x.evil.com", mParser.getDomainName( 1 ) );
+        assertTrue( mParser.matches( 1, mTrie ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void rejectsLargeQuestionCount()
+    {
+        assertEquals( DnsQuestionParser.MALFORMED, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 0xFFFF, question( name( "evil.com" ) ) ) ) ) );
+        assertEquals( 0, mParser.getQuestionCount() );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void leavesOtherPacketsToCaller()
+    {
+        assertEquals( DnsQuestionParser.UNSUPPORTED, mParser.parse( frame( 0, 6, query( 1, question( name( "evil.com" ) ) ) ) ) );
+
+        final byte[] response = frame( 0, IP_PROTOCOL_UDP, query( 1, question( name( "evil.com" ) ) ) );
+        response[ETH_HEADER_LEN + IP_HEADER_LEN + UDP_HEADER_LEN + 2] |= 0x80;  // QR bit
+        assertEquals( 0, mParser.parse( response ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private void assertListed( final boolean listed, final String domainName )
+    {
+        assertEquals( 1, mParser.parse( frame( 0, IP_PROTOCOL_UDP, query( 1, question( name( domainName ) ) ) ) ) );
+        assertEquals( domainName, listed, mParser.matches( 0, mTrie ) );
+        assertEquals( domainName, listed ? 0 : -1, mParser.findListed( mTrie ) );
+        assertEquals( domainName, listed, mTrie.matches( domainName ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  frame:  Ethernet frame with the given number of 802.1Q tags, an IPv4 header and a UDP header
+    private static byte[] frame( final int vlanTags, final int protocol, final byte[] payload )
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write( new byte[12], 0, 12 );               // MAC addresses
+        for( int i = 0; i < vlanTags; i++ )
+        {
+            writeShort( out, 0x8100 );
+            writeShort( out, 100 + i );
+        }
+        writeShort( out, 0x0800 );
+
+        final byte[] ip = new byte[IP_HEADER_LEN];
+        ip[0] = 0x45;
+        ip[9] = (byte) protocol;
+        out.write( ip, 0, ip.length );
+
+        final byte[] udp = new byte[UDP_HEADER_LEN];
+        udp[3] = 53;
+        out.write( udp, 0, udp.length );
+
+        out.write( payload, 0, payload.length );
+        return out.toByteArray();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  query:  DNS header with the given question count, followed by the question bytes
+    private static byte[] query( final int qdcount, final byte[] questions )
+    {
+        final byte[] header = new byte[12];
+        header[4] = (byte) ( qdcount >> 8 );
+        header[5] = (byte) qdcount;
+        return concat( header, questions );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  question:  name followed by type A and class IN
+    private static byte[] question( final byte[] name )
+    {
+        return concat( name, new byte[] { 0, 1, 0, 1 } );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  name:  uncompressed name, terminated by the root label
+    private static byte[] name( final String domainName )
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( final String label : domainName.split( "\\." ) )
+        {
+            out.write( label.length() );
+            for( int i = 0; i < label.length(); i++ ) out.write( label.charAt( i ) );
+        }
+        out.write( 0 );
+        return out.toByteArray();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    //  pointer:  compression pointer to an offset from the start of the DNS header
+    private static byte[] pointer( final int offset )
+    {
+        return new byte[] { (byte) ( 0xC0 | ( offset >> 8 ) ), (byte) offset };
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static byte[] concat( final byte[]... parts )
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for( final byte[] part : parts ) out.write( part, 0, part.length );
+        return out.toByteArray();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static void writeShort( final ByteArrayOutputStream out, final int value )
+    {
+        out.write( value >> 8 );
+        out.write( value );
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2013, Elbrys Networks
+ * All Rights Reserved.
+ */
+package com.tallac.blacklist.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests of {@link DomainTrie}.
+ */
+public class DomainTrieTest
+{
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void listedZoneCoversSubdomains()
+    {
+        final DomainTrie trie = new DomainTrie();
+        assertTrue( trie.add( "Evil.com" ) );
+        assertFalse( trie.add( "*.evil.com." ) );
+
+        assertTrue( trie.matches( "evil.com" ) );
+        assertTrue( trie.matches( "a.b.EVIL.COM" ) );
+        assertTrue( trie.matches( "evil.com." ) );
+        assertFalse( trie.matches( "notevil.com" ) );
+        assertFalse( trie.matches( "com" ) );
+        assertEquals( "evil.com", trie.findListedName( "mail.Evil.com" ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void wwwEntryCoversBareName()
+    {
+        final DomainTrie trie = new DomainTrie();
+        trie.add( "www.example.org" );
+
+        assertTrue( trie.matches( "example.org" ) );
+        assertTrue( trie.matches( "www.example.org" ) );
+        assertFalse( trie.matches( "mail.example.org" ) );
+        assertEquals( "www.example.org", trie.findListedName( "Example.org" ) );
+        assertNull( trie.findListedName( "mail.example.org" ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void removePrunesNodes()
+    {
+        final DomainTrie trie = new DomainTrie();
+        trie.add( "a.evil.com" );
+        trie.add( "b.evil.com" );
+        final int written = serializedSize( trie );
+
+        assertTrue( trie.remove( "A.evil.com" ) );
+        assertFalse( trie.remove( "a.evil.com" ) );
+        assertFalse( trie.remove( "evil.com" ) );
+        assertFalse( trie.matches( "a.evil.com" ) );
+        assertTrue( trie.matches( "b.evil.com" ) );
+        assertEquals( 1, trie.size() );
+
+        // The pruned "a" node is neither written nor copied
+        assertEquals( written - 11, serializedSize( trie ) );
+        assertTrue( new DomainTrie( trie ).matches( "b.evil.com" ) );
+
+        assertTrue( trie.remove( "b.evil.com" ) );
+        assertEquals( 0, trie.size() );
+        assertEquals( 4 + 4 + 11, serializedSize( trie ) );  // root only
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void lowerCaseNamesAreNotCopied()
+    {
+        final DomainTrie trie = new DomainTrie();
+        trie.add( "evil.com" );
+
+        final String name = "evil.com";
+        assertSame( name, DomainTrie.toLowerCase( name ) );
+        assertSame( name, trie.findListedName( name ) );
+        assertEquals( "evil.com", DomainTrie.toLowerCase( "EVIL.com" ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void validatesNames()
+    {
+        assertTrue( DomainTrie.isValidName( "evil.com" ) );
+        assertTrue( DomainTrie.isValidName( "*.x-1.evil.com." ) );
+        assertFalse( DomainTrie.isValidName( "" ) );
+        assertFalse( DomainTrie.isValidName( "evil..com" ) );
+        assertFalse( DomainTrie.isValidName( "-evil.com" ) );
+        assertFalse( DomainTrie.isValidName( "evil_com" ) );
+        assertFalse( DomainTrie.isValidName( "evil.com\n+D other.com" ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void readsWhatItWrites() throws IOException
+    {
+        final DomainTrie trie = new DomainTrie();
+        trie.add( "evil.com" );
+        trie.add( "bad.org" );
+
+        final DomainTrie read = DomainTrie.readFrom( ByteBuffer.wrap( serialize( trie ) ) );
+        final Set<String> names = new HashSet<String>();
+        read.getNames( names );
+
+        assertEquals( 2, read.size() );
+        assertEquals( 2, names.size() );
+        assertTrue( names.contains( "evil.com" ) && names.contains( "bad.org" ) );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    @Test
+    public void rejectsCorruptInput() throws IOException
+    {
+        final DomainTrie trie = new DomainTrie();
+        trie.add( "evil.com" );
+
+        final byte[] bytes      = serialize( trie );
+        final int    nodeCount  = ByteBuffer.wrap( bytes ).getInt( 0 );
+        final int    firstChild = 8 + 2 * nodeCount;
+
+        assertRejected( bytes, 0, Integer.MAX_VALUE );          // node count beyond the input
+        assertRejected( bytes, firstChild + 4, nodeCount );     // link out of range
+        assertRejected( bytes, firstChild + 4, 1 );             // link back to an ancestor
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static void assertRejected( final byte[] bytes, final int offset, final int value )
+    {
+        final byte[] corrupt = bytes.clone();
+        ByteBuffer.wrap( corrupt ).putInt( offset, value );
+        try
+        {
+            DomainTrie.readFrom( ByteBuffer.wrap( corrupt ) );
+        }
+        catch( IllegalArgumentException e )
+        {
+            return;
+        }
+        throw new AssertionError( "Corrupt trie accepted, offset " + offset );
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static byte[] serialize( final DomainTrie trie ) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trie.writeTo( new DataOutputStream( out ) );
+        return out.toByteArray();
+    }
+
+    //---------------------------------------------------------------------------------------------
+    private static int serializedSize( final DomainTrie trie )
+    {
+        try
+        {
+            return serialize( trie ).length;
+        }
+        catch( IOException e )
+        {
+            throw new AssertionError( e );
+        }
+    }
+}